@@ -1,7 +1,9 @@
 #version 300 es
 precision mediump float;
 
+in vec3 v_color;
+
 out vec4 fragColor;
 void main(){
-    fragColor = vec4(0.0,1.0,0.0,1.0);
-}
\ No newline at end of file
+    fragColor = vec4(v_color,1.0);
+}
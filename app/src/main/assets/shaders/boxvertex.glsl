@@ -3,8 +3,15 @@
 uniform mat4 u_MVPMatrix;
 in vec4 a_Position;
 
+//box instance: center, half size and colour, in world space
+in vec3 a_boxCenter;
+in vec3 a_boxScale;
+in vec3 a_boxColor;
+
+out vec3 v_color;
+
 void main()
 {
-    gl_Position = u_MVPMatrix * a_Position;
+    v_color = a_boxColor;
+    gl_Position = u_MVPMatrix * vec4(a_Position.xyz * a_boxScale + a_boxCenter, 1.0);
 }
-
@@ -23,11 +23,12 @@ const float detailThreshold = 0.999;//distance [0,1) threshold at which detail w
 const float shininess = 50.0;
 const vec3 specularColor=vec3(0.980, 0.922 , 0.608);
 
-uniform sampler2D u_colorMap;  //color map
-uniform sampler2D u_heightMap; //heightmap (for debugging)
-uniform sampler2D u_splatMap;
+//maps of the cube faces, one layer per face
+uniform mediump sampler2DArray u_colorMap;  //color map
+uniform mediump sampler2DArray u_splatMap;
 uniform sampler2D u_splatSheet;
-uniform float lodlevel;
+flat in float lodlevel; //lod level of the node this fragment belongs to
+flat in float facelayer; //layer of the node's face in the face maps
 /*
 *asus tablet requires a separate precision qualifier for the sampler2DArray type
 *renderer: PowerVR Rogue GX6250
@@ -52,6 +53,46 @@ in vec3 v_normal;
 
 out vec4 fragColor;
 
+#ifdef SHADOWS
+const float shadowBias = 0.0002;
+const float shadowedLight = 0.3; //light left in the shadows
+
+uniform mediump sampler2DArrayShadow u_shadowMap;
+uniform float u_cascadeSplits[4]; //distance to the eye where every cascade ends
+
+in vec4 v_shadowCoord0;
+in vec4 v_shadowCoord1;
+in vec4 v_shadowCoord2;
+in vec4 v_shadowCoord3;
+
+/* 1 lit, shadowedLight in shadow. The cascade is picked by the distance to the eye, past the
+ last one the terrain is lit. The projections are orthographic, no w divide. */
+float shadowFactor()
+{
+    vec4 coord;
+    float layer;
+
+    if (distancef < u_cascadeSplits[0]) {
+        coord = v_shadowCoord0;
+        layer = 0.0;
+    } else if (distancef < u_cascadeSplits[1]) {
+        coord = v_shadowCoord1;
+        layer = 1.0;
+    } else if (distancef < u_cascadeSplits[2]) {
+        coord = v_shadowCoord2;
+        layer = 2.0;
+    } else if (distancef < u_cascadeSplits[3]) {
+        coord = v_shadowCoord3;
+        layer = 3.0;
+    } else {
+        return 1.0;
+    }
+
+    float lit = texture(u_shadowMap, vec4(coord.xy, layer, coord.z - shadowBias));
+    return mix(shadowedLight, 1.0, lit);
+}
+#endif
+
 float calcFogLinear(float distanceToEye);
 float calcFogExp(float distanceToEye);
 
@@ -148,14 +189,14 @@ void main()
 {
     float fogFactor = calcFogLinear(distancef);
     vec3 wirecolor;
-    vec3 colorMap = texture(u_colorMap, v_TexCoordinate).rgb;
+    vec3 colorMap = texture(u_colorMap, vec3(v_TexCoordinate, facelayer)).rgb;
 
     // avoiding the if statement (if depthValue>detailthresh)
     float depthValue = depthPosition.z /depthPosition.w;
     float detailFactor= (depthValue-detailThreshold)/(1.0-detailThreshold);
 
     // splat maps must have a non-premultiplied alpha channel
-    vec4 splatvalue=texture(u_splatMap,v_TexCoordinate);
+    vec4 splatvalue=texture(u_splatMap,vec3(v_TexCoordinate, facelayer));
 
     float splatcolor=mix(3.0*getSplatSheetColor(splatvalue),1.0,clamp(detailFactor,0.0,1.0));
 
@@ -170,6 +211,13 @@ void main()
     vec3 Ispec = max(splatvalue.b,0.1) * specularColor * pow(max(dot(r,E),0.0) , shininess);
 
     float lightDot = dot(n,l);
+
+#ifdef SHADOWS
+    float shadow = shadowFactor();
+    lightDot *= shadow;
+    Ispec *= shadow;
+#endif
+
     vec3 Idiff = colorMap * lightDot;
     vec3 diffspec = Idiff+Ispec;
 
@@ -0,0 +1,7 @@
+#version 300 es
+precision mediump float;
+
+// depth only, the color writes are disabled
+void main()
+{
+}
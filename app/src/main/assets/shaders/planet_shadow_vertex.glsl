@@ -0,0 +1,83 @@
+#version 300 es
+
+/*
+* Depth only pass of the planet nodes into a shadow map cascade. Same vertex placement as
+* planet_vertex.glsl, but the LOD ranges (morph) are measured in world space from the position
+* the cascade's selection was made from, the eye is the light.
+*/
+
+in vec2 a_gridPosition; //position of this vertex in the vertex grid range: [0,gridSize]
+
+uniform mat4 u_MVPMatrix; //light view projection * model
+uniform mat4 u_MMatrix;
+
+uniform highp sampler2DArray u_heightMap; //one layer per cube face
+
+//node instance attributes, one instance per selected node (or quarter of a node)
+in vec4 a_nodeInstance; //xy= position offset of the patch this vertex belongs to, z= quad size of its lod grid mesh, w= lod level
+in vec3 a_nodeMorph; //x= range, y= 1/(morphend-morphstart) - current range distance inverted, z= morph step
+in float a_nodeLayer; //layer of the node's face in the heightmap array
+
+#define nodeoffset a_nodeInstance.xy
+#define quad_scale a_nodeInstance.z
+#define range a_nodeMorph
+#define morphStep a_nodeMorph.z //quads of the node's grid per quad of the grid its vertices morph to (1, 2 or 4)
+
+//general uniforms
+uniform vec3 cameraPosition; //world space, origin of the LOD ranges
+uniform vec3 meshInfo; //x=meshSize in distance units, y=patch size in distance units, z= yscale
+
+float getHeightuv(in vec2 uv) {
+    return meshInfo.z * texture(u_heightMap, vec3(uv, a_nodeLayer)).r;
+}
+
+vec2 getuvsxy(in vec2 v)
+{
+    return v/meshInfo.x;
+}
+
+vec2 morphVertex( in vec2 gridPos, in vec2 worldPos, in float morph) {
+    vec2 fracPart = vec2(quad_scale) * fract(gridPos.xy / morphStep) * morphStep;
+    return worldPos - fracPart * morph;
+}
+
+vec3 getRadiusVector(in vec4 p, in float radius)
+{
+    return normalize(p.xyz-vec3(radius,-radius,radius));
+}
+
+vec4 spherizePointNormalization(in vec4 p, in float radius)
+{
+    vec4 result;
+    result.xyz = getRadiusVector(p,radius) * radius + vec3(radius,-radius,radius);
+    result.w=1.0;
+    return result;
+}
+
+vec4 applyHeightmapToSpherizedPoint(in vec4 p, in float heightValue)
+{
+    float radius=meshInfo.x * 0.5;
+    vec3 radiusVector = normalize(p.xyz-vec3(radius,-radius,radius));
+    return vec4(p.xyz + radiusVector * heightValue,1.0);
+}
+
+void main()
+{
+    float radius=meshInfo.x * 0.5;
+    vec4 hmpos=vec4(0);
+    hmpos.w = 1.0;
+    hmpos.xz = a_gridPosition * quad_scale+ nodeoffset.xy ;
+
+    float height=getHeightuv(getuvsxy(hmpos.xz));
+
+    vec4 worldpos = u_MMatrix * applyHeightmapToSpherizedPoint(spherizePointNormalization(hmpos,radius),height);
+    float dist = length(worldpos.xyz - cameraPosition);
+    float morphLerpK = 1.0 - clamp(range.x - dist * range.y, 0.0, 1.0 );
+
+    hmpos.xz = morphVertex(a_gridPosition, hmpos.xz, morphLerpK); //morphed vertex
+    vec2 uvcoords = getuvsxy(hmpos.xz);
+
+    hmpos = spherizePointNormalization(hmpos,radius);
+    hmpos = applyHeightmapToSpherizedPoint(hmpos,mix(height,getHeightuv(uvcoords),morphLerpK));
+    gl_Position = u_MVPMatrix * hmpos;
+}
@@ -26,16 +26,19 @@ uniform mat4 u_MVPMatrix;
 uniform mat4 u_MVMatrix;    		
 uniform vec3 u_LightPos; //Light position in eye space
 
-// terrain CDLOD
-uniform sampler2D u_heightMap;
-uniform sampler2D u_normalMap;
+// terrain CDLOD, one layer per cube face. Samplers of array textures have no default precision
+uniform highp sampler2DArray u_heightMap;
+uniform mediump sampler2DArray u_normalMap;
 
-//specific node uniforms
-uniform float quad_scale; //Quad size of the current lod grid mesh
-uniform vec2 range; //x= range, y= 1/(morphend-morphstart) - current range distance inverted
-uniform vec2 nodeoffset;//position offset of the patch this vertex belongs to
-uniform float lodlevel;
-uniform float gridDim;
+//node instance attributes, one instance per selected node (or quarter of a node)
+in vec4 a_nodeInstance; //xy= position offset of the patch this vertex belongs to, z= quad size of its lod grid mesh, w= lod level
+in vec3 a_nodeMorph; //x= range, y= 1/(morphend-morphstart) - current range distance inverted, z= morph step
+in float a_nodeLayer; //layer of the node's face in the texture arrays
+
+#define nodeoffset a_nodeInstance.xy
+#define quad_scale a_nodeInstance.z
+#define range a_nodeMorph
+#define morphStep a_nodeMorph.z //quads of the node's grid per quad of the grid its vertices morph to (1, 2 or 4)
 
 //general uniforms
 uniform vec3 cameraPosition;
@@ -49,6 +52,16 @@ out float distancef;
 out vec3 barycentric;
 out float morph;
 out vec3 v_normal;
+flat out float lodlevel;
+flat out float facelayer;
+
+#ifdef SHADOWS
+uniform mat4 u_shadowMatrices[4]; //object space to the texture space of every cascade
+out vec4 v_shadowCoord0;
+out vec4 v_shadowCoord1;
+out vec4 v_shadowCoord2;
+out vec4 v_shadowCoord3;
+#endif
 
 #define PI 3.14159265;
 
@@ -59,7 +72,7 @@ const float texelSize=1.0/2080.0;
 float getHeightuv(in vec2 uv, in bool usefilter) {
 
     float heightmap=0.0;
-    heightmap = texture(u_heightMap, uv).r;
+    heightmap = texture(u_heightMap, vec3(uv, a_nodeLayer)).r;
 	return meshInfo.z * heightmap;
 }
 
@@ -71,7 +84,7 @@ vec2 getuvsxy(in vec2 v)
 }
 
 vec2 morphVertex( in vec2 gridPos, in vec2 worldPos, in float morph) {
-    vec2 fracPart = vec2(quad_scale) * fract(gridPos.xy * vec2(gridDim)*0.5) * 2.0/vec2(gridDim);
+    vec2 fracPart = vec2(quad_scale) * fract(gridPos.xy / morphStep) * morphStep;
     return worldPos - fracPart * morph;
 }
 
@@ -108,7 +121,7 @@ vec3 getNormal(vec2 uv) {
     The normal map is baked on Blender (object space normal map). Coordinates there are
     different than here (.xzy, y=-yb)
     */
-    vec3 nobj = texture( u_normalMap, uv).xzy *2.0 - 1.0;
+    vec3 nobj = texture( u_normalMap, vec3(uv, a_nodeLayer)).xzy *2.0 - 1.0;
     nobj.y = -nobj.y;
     nobj = ( u_MVMatrix * vec4(nobj, 0.0)).xyz;
 	return normalize(nobj);
@@ -149,8 +162,17 @@ void main()
     barycentric = a_barycentric;
     gl_Position = finalpos;
     morph=morphLerpK;
+    lodlevel=a_nodeInstance.w;
+    facelayer=a_nodeLayer;
 
     vec3 radiusVector = getRadiusVector(hmpos,radius);
     v_normal=getNormal(uvcoords);
 
+#ifdef SHADOWS
+    v_shadowCoord0 = u_shadowMatrices[0] * hmpos;
+    v_shadowCoord1 = u_shadowMatrices[1] * hmpos;
+    v_shadowCoord2 = u_shadowMatrices[2] * hmpos;
+    v_shadowCoord3 = u_shadowMatrices[3] * hmpos;
+#endif
+
 }
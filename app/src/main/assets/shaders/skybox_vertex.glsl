@@ -12,5 +12,5 @@ void main()
     mat3 inverseview = transpose(mat3(u_Viewatrix));
     vec3 unprojected = (inverseProjection * a_Position).xyz;
     eyeDirection = inverseview * unprojected;
-    gl_Position = a_Position;
+    gl_Position = vec4(a_Position.xy, 1.0, 1.0); //far plane, behind everything drawn before
 }
\ No newline at end of file
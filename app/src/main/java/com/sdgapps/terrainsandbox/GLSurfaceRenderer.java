@@ -8,6 +8,7 @@ import com.sdgapps.terrainsandbox.MVP.MainViewMvp;
 import com.sdgapps.terrainsandbox.MiniEngine.EngineManagers;
 import com.sdgapps.terrainsandbox.MiniEngine.GameControl;
 import com.sdgapps.terrainsandbox.MiniEngine.MatrixManager;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.OpenGLChecks;
 import com.sdgapps.terrainsandbox.utils.Logger;
 
@@ -49,7 +50,7 @@ public class GLSurfaceRenderer implements GLSurfaceView.Renderer {
         centerX = w / 2;
         centerY = h / 2;
 
-        GLES30.glViewport(0, 0, surface_width, surface_height);
+        GLState.viewport(0, 0, surface_width, surface_height);
         ratio = (float) w / h;
 
         engine.setAspectRatio(ratio);
@@ -57,6 +58,9 @@ public class GLSurfaceRenderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+        /* New EGL context, the cached GL state belongs to the previous one */
+        GLState.invalidate();
+
         /* Opengl configuration */
         configGL();
         Logger.log("Lifecycle: ON SURFACE CREATED");
@@ -114,6 +118,7 @@ public class GLSurfaceRenderer implements GLSurfaceView.Renderer {
     public void onDrawFrame(GL10 unused) {
         engine.getEngineManagers().sTime.update();
         engine.getEngineManagers().sTime.tickEnd();
+        engine.getEngineManagers().sTime.workStart();
         Matrix.setIdentityM(MatrixManager.viewMatrix, 0);
 
         if (!first_load) {
@@ -121,6 +126,8 @@ public class GLSurfaceRenderer implements GLSurfaceView.Renderer {
 
             draw();
         }
+        GLState.endFrame();
+        engine.getEngineManagers().sTime.workEnd();
     }
 
     private void draw() {
@@ -131,15 +138,15 @@ public class GLSurfaceRenderer implements GLSurfaceView.Renderer {
     private void configGL() {
         GLES30.glLineWidth(3);
         GLES30.glClearColor(0.8f, 0.8f, 0.9f, 1.0f);
-        GLES30.glEnable(GLES30.GL_CULL_FACE);
-        GLES30.glCullFace(GLES30.GL_BACK);
+        GLState.enable(GLES30.GL_CULL_FACE);
+        GLState.cullFace(GLES30.GL_BACK);
 
         /* Depth buffer */
         GLES30.glClearDepthf(1.0f);
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+        GLState.enable(GLES30.GL_DEPTH_TEST);
         GLES30.glDepthFunc(GLES30.GL_LEQUAL);
 
-        GLES30.glDepthMask(true);
+        GLState.depthMask(true);
     }
 
     public EngineManagers getEngineManagers() {
@@ -78,6 +78,7 @@ public class MainActivity extends AppCompatActivity
             em.sTime.setPresenter(this);
             em.textureManager.setAssets(assetM);
             em.sShaderSystem.setAssets(assetM);
+            em.cacheDir = getCacheDir();
 
             if (savedInstanceState != null) {
                 MVPModel.setLoadedData(unpackBundle(savedInstanceState));
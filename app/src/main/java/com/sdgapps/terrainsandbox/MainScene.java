@@ -64,7 +64,6 @@ public class MainScene extends Scene implements SceneInterface {
         sceneCamera = new Camera();
         camGO.add(sceneCamera);
 
-        sceneCamera.shadowmapCaster = sun;
         sceneCamera.setAspectRatio(aspectRatio);
 
         add(camGO);
@@ -114,7 +113,6 @@ public class MainScene extends Scene implements SceneInterface {
 
         //radius of a 2d circle (xz) that contains the whole terrain mesh
         float gridMaxRadius = (float) Math.sqrt(planetXZ * planetXZ + planetXZ * planetXZ);
-        sceneCamera.setupShadowMapCamera(gridMaxRadius);
 
         orb=new OrbitAroundPivot();
         sunGO.add(orb);
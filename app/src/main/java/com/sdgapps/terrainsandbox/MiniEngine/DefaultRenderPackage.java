@@ -1,6 +1,7 @@
 package com.sdgapps.terrainsandbox.MiniEngine;
 
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.FrameBufferInterface;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 
@@ -17,8 +18,7 @@ public class DefaultRenderPackage extends RenderPackage {
 
         /*if (OpenGLChecks.oes_depth_texture
                 && shader.shadowMapTextureUniformHandle != -1) {
-            GLES30.glActiveTexture(GLES30.GL_TEXTURE5);
-            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, AppTextureManager.shadowmap.glID);
+            GLState.bindTexture(5, GLES30.GL_TEXTURE_2D, AppTextureManager.shadowmap.glID);
             GLES30.glUniform1i(shader.shadowMapTextureUniformHandle, 5);
         }*/
     }
@@ -5,6 +5,8 @@ import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Light;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderSystem;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.TextureManager;
 
+import java.io.File;
+
 public class EngineManagers {
 
     public ShaderSystem sShaderSystem = new ShaderSystem();
@@ -12,4 +14,9 @@ public class EngineManagers {
     public TextureManager textureManager=new TextureManager();
     public Camera mainCamera;
     public Light mainLight;
+
+    /**
+     * Directory for data derived from the assets that can be rebuilt (null: no caching)
+     */
+    public File cacheDir;
 }
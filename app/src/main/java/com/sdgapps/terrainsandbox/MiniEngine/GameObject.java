@@ -18,12 +18,15 @@ public class GameObject {
 
     }
 
-    public void draw() {
+    /**
+     * Add the draw packets of the object's renderers to the frame's queue
+     */
+    public void submit(RenderQueue queue) {
         transform.updateModelMatrix();
         for (int i = 0; i < behaviours.size(); i++) {
             Behaviour b = behaviours.get(i);
             if (b.renderer)
-                ((Renderer) b).draw();
+                ((Renderer) b).submit(queue);
         }
     }
 
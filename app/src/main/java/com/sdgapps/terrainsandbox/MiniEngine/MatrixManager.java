@@ -12,10 +12,6 @@ public class MatrixManager {
     public static float[] modelMatrix = new float[16];
     public static float[] MVPMatrix = new float[16];
 
-    public static float[] shadowmapProjectionMatrix;
-    public static float[] shadowmapModelViewMatrix = new float[16];
-    public static float[] shadowmapViewMatrix = new float[16];
-
     public static float[] identityMatrix = new float[16];
 
     public static void copy(float[] to, float[] from) {
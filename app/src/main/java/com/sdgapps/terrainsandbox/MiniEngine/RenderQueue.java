@@ -0,0 +1,140 @@
+package com.sdgapps.terrainsandbox.MiniEngine;
+
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Renderer;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+import java.util.Arrays;
+
+/**
+ * Draw packets of a frame, sorted before any of them is executed
+ * <p>
+ * Renderers don't draw while the scene is traversed, they add packets (see Renderer.submit):
+ * the renderer, a packet id it gives meaning to, and a 64 bit sort key. The queue is sorted
+ * once and executed in order, so the packets that share a program and a material are drawn
+ * together (the redundant state changes between them are dropped by GLState), and the opaque
+ * ones front to back, for early depth rejection.
+ * <p>
+ * Key layout, from the most significant bit:
+ * <pre>
+ * opaque:  [0][layer:3][program:10][material:10][depth:24][packet:16]
+ * blended: [0][layer:3][inverted depth:24][program:10][material:10][packet:16]
+ * </pre>
+ * The blended layers are drawn back to front. The low bits are the packet's index, so the
+ * keys are sorted as primitives and the sort is stable.
+ */
+public class RenderQueue {
+
+    /**
+     * Layers, drawn in this order
+     */
+    public static final int LAYER_SHADOW = 0;
+    public static final int LAYER_OPAQUE = 1;
+    public static final int LAYER_SKYBOX = 2;
+    /**
+     * Drawn over the skybox at the far plane, i.e. the sun
+     */
+    public static final int LAYER_SKY = 3;
+    public static final int LAYER_BLENDED = 4;
+    public static final int LAYER_OVERLAY = 5;
+
+    private static final int depthBits = 24;
+    private static final int idBits = 10;
+    private static final int indexBits = 16;
+    private static final long depthMax = (1L << depthBits) - 1;
+    private static final long idMask = (1L << idBits) - 1;
+    private static final int maxPackets = 1 << indexBits;
+
+    private long[] keys = new long[64];
+    private Renderer[] renderers = new Renderer[64];
+    private int[] packets = new int[64];
+    private int size = 0;
+
+    private final Vec3f viewPosition = new Vec3f();
+    private float depthScale = 1;
+
+    /**
+     * Start a frame seen from the camera, depths are normalized to its far plane
+     */
+    public void begin(Camera camera) {
+        size = 0;
+        if (camera != null) {
+            viewPosition.set(camera.transform.position);
+            depthScale = depthMax / camera.frustum.zfar;
+        }
+    }
+
+    /**
+     * @return distance from the frame's camera to a world space point
+     */
+    public float distance(Vec3f worldPosition) {
+        return viewPosition.distance(worldPosition);
+    }
+
+    /**
+     * @param programId see GLSLProgram.sortId
+     * @param materialId see Material.sortId
+     * @param distance to the camera, smaller first
+     */
+    public long opaqueKey(int layer, int programId, int materialId, float distance) {
+        return ((long) layer << 60)
+                | ((programId & idMask) << 50)
+                | ((materialId & idMask) << 40)
+                | (quantize(distance) << indexBits);
+    }
+
+    /**
+     * @param distance to the camera, larger first
+     */
+    public long blendedKey(int layer, int programId, int materialId, float distance) {
+        return ((long) layer << 60)
+                | ((depthMax - quantize(distance)) << 36)
+                | ((programId & idMask) << 26)
+                | ((materialId & idMask) << indexBits);
+    }
+
+    private long quantize(float distance) {
+        long d = (long) (distance * depthScale);
+        return Math.max(0, Math.min(depthMax, d));
+    }
+
+    /**
+     * @param key    see opaqueKey and blendedKey
+     * @param packet passed back to the renderer's execute
+     */
+    public void add(long key, Renderer renderer, int packet) {
+        if (size == maxPackets)
+            throw new IllegalStateException("RenderQueue: more than " + maxPackets + " packets");
+
+        if (size == keys.length) {
+            int capacity = Math.min(size * 2, maxPackets);
+            keys = Arrays.copyOf(keys, capacity);
+            renderers = Arrays.copyOf(renderers, capacity);
+            packets = Arrays.copyOf(packets, capacity);
+        }
+
+        keys[size] = key | size;
+        renderers[size] = renderer;
+        packets[size] = packet;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sort the packets and execute them
+     */
+    public void execute() {
+        Arrays.sort(keys, 0, size);
+
+        for (int i = 0; i < size; i++) {
+            int index = (int) (keys[i] & (maxPackets - 1));
+            renderers[index].execute(packets[index]);
+        }
+
+        // don't keep the renderers alive until the next frame
+        Arrays.fill(renderers, 0, size, null);
+    }
+}
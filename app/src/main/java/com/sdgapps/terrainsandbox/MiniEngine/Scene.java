@@ -5,6 +5,7 @@ import java.util.ArrayList;
 public class Scene {
     ArrayList<GameObject> entities = new ArrayList<>();
     public EngineManagers engineManagers;
+    private final RenderQueue renderQueue = new RenderQueue();
 
     void setEngineManagers(EngineManagers engineManagers) {
         this.engineManagers = engineManagers;
@@ -16,10 +17,15 @@ public class Scene {
         }
     }
 
+    /**
+     * Collect the draw packets of every object, then sort and draw them
+     */
     public void draw() {
+        renderQueue.begin(engineManagers.mainCamera);
         for (int i = 0; i < entities.size(); i++) {
-            entities.get(i).draw();
+            entities.get(i).submit(renderQueue);
         }
+        renderQueue.execute();
     }
 
     public void add(GameObject e) {
@@ -16,6 +16,15 @@ public class TimeSystem {
     public static final float defaultframetimeInverted = 1f / defaultframetime;
     public int drawcalls = 0;
 
+    /**
+     * Time between the last two frames, and time the last frame spent on the cpu (update and
+     * draw calls, not waiting for vsync or the gpu), in nanoseconds
+     */
+    public long frameNanos;
+    public long workNanos;
+    private long lastTickNanos = System.nanoTime();
+    private long workStartNanos;
+
     private MainViewMvp.MainViewMvpListener presenter;
 
     public void tickStart() {
@@ -26,6 +35,18 @@ public class TimeSystem {
         long currentEndTime = SystemClock.uptimeMillis();
         deltaTime = currentEndTime - this.frameStartTime;
         frameStartTime = SystemClock.uptimeMillis();
+
+        long now = System.nanoTime();
+        frameNanos = now - lastTickNanos;
+        lastTickNanos = now;
+    }
+
+    public void workStart() {
+        workStartNanos = System.nanoTime();
+    }
+
+    public void workEnd() {
+        workNanos = System.nanoTime() - workStartNanos;
     }
 
     public long getCurrentDeltaTime() {
@@ -5,7 +5,10 @@ import android.opengl.Matrix;
 
 import com.sdgapps.terrainsandbox.MiniEngine.MatrixManager;
 import com.sdgapps.terrainsandbox.MiniEngine.RenderPackage;
+import com.sdgapps.terrainsandbox.MiniEngine.RenderQueue;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.FrameBufferInterface;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
 
@@ -14,6 +17,13 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 public class CircleBillboard extends Renderer {
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int mvMatrixId = GLSLProgram.uniformId("u_MVMatrix");
+    private static final int projectionMatrixId = GLSLProgram.uniformId("u_Projectionmatrix");
+
     private FloatBuffer mLineVerts;
     private boolean renderable=false;
     private int scale = 1;
@@ -28,6 +38,14 @@ public class CircleBillboard extends Renderer {
         scale=_scale;
     }
 
+    /**
+     * Drawn over the skybox, at the far plane (see sun_vertex.glsl)
+     */
+    @Override
+    public void submit(RenderQueue queue) {
+        queue.add(queue.opaqueKey(RenderQueue.LAYER_SKY, material.shader.sortId, material.sortId, 0), this, 0);
+    }
+
     @Override
     public void draw() {
         if (!renderable)
@@ -39,6 +57,10 @@ public class CircleBillboard extends Renderer {
             pass.targetProgram.useProgram();
 
             material.bindShader();
+
+            //client side vertex array, only allowed without a VAO
+            GLState.bindVertexArray(0);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
             int positionHandle=material.shader.getAttributeGLid("a_Position");
             GLES30.glVertexAttribPointer(positionHandle, 3, GLES30.GL_FLOAT, false, 0, mLineVerts);
             GLES30.glEnableVertexAttribArray(positionHandle);
@@ -57,8 +79,8 @@ public class CircleBillboard extends Renderer {
         Matrix.multiplyMM(MatrixManager.modelViewMatrix, 0, MatrixManager.viewMatrix, 0,
                 transform.modelMatrix, 0);
 
-        ShaderUniformMatrix4fv MVMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_MVMatrix");
-        ShaderUniformMatrix4fv ProjectionMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_Projectionmatrix");
+        ShaderUniformMatrix4fv MVMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(mvMatrixId);
+        ShaderUniformMatrix4fv ProjectionMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(projectionMatrixId);
 
         MVMatrix.array=MatrixManager.modelViewMatrix;
         ProjectionMatrix.array=MatrixManager.projectionMatrix;
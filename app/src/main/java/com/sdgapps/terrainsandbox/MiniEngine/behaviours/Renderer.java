@@ -2,6 +2,7 @@ package com.sdgapps.terrainsandbox.MiniEngine.behaviours;
 
 import com.sdgapps.terrainsandbox.MiniEngine.Behaviour;
 import com.sdgapps.terrainsandbox.MiniEngine.RenderPackage;
+import com.sdgapps.terrainsandbox.MiniEngine.RenderQueue;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 
 import java.util.ArrayList;
@@ -19,6 +20,23 @@ public class Renderer extends Behaviour {
 
     }
 
+    /**
+     * Add this frame's draw packets to the queue. By default a single opaque packet that
+     * calls draw.
+     */
+    public void submit(RenderQueue queue) {
+        int program = material != null && material.shader != null ? material.shader.sortId : 0;
+        int mat = material != null ? material.sortId : 0;
+        queue.add(queue.opaqueKey(RenderQueue.LAYER_OPAQUE, program, mat, queue.distance(transform.position)), this, 0);
+    }
+
+    /**
+     * Draw a packet added in submit
+     */
+    public void execute(int packet) {
+        draw();
+    }
+
     public void invalidateGLData()
     {
 
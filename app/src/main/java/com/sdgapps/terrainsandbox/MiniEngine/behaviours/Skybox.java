@@ -3,8 +3,11 @@ package com.sdgapps.terrainsandbox.MiniEngine.behaviours;
 import android.opengl.GLES30;
 
 import com.sdgapps.terrainsandbox.MiniEngine.MatrixManager;
+import com.sdgapps.terrainsandbox.MiniEngine.RenderQueue;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Transform;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec2f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.VertexArrays;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
@@ -18,12 +21,22 @@ import java.nio.ShortBuffer;
 /**
  * Skybox: Send a clipping space quad filling the viewport. The shader unprojects it to generate
  * the cubemap uvs.
+ *
+ * The quad is on the far plane and drawn after the opaque objects, so only the pixels they
+ * don't cover run its fragment shader.
  */
 public class Skybox extends Renderer {
     public boolean uploadedVBO = false;
 
     private static final int FloatBytes = Float.SIZE / 8;
     private static final int ShortBytes = Short.SIZE / 8;
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int viewMatrixId = GLSLProgram.uniformId("u_Viewatrix");
+    private static final int projectionMatrixId = GLSLProgram.uniformId("u_Projectionmatrix");
+
     private int indexArraySize;
 
     private float verts[];
@@ -103,16 +116,19 @@ public class Skybox extends Renderer {
             //submit to opengl
             GLES30.glGenBuffers(2, buffers, 0);
 
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+            //the element array buffer binding would go to the bound VAO
+            GLState.bindVertexArray(0);
+
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
             GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER,
                     indexBuffer.capacity() * GridMesh.ShortBytes, indexBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
 
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
             GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, posBuffer.capacity() * GridMesh.FloatBytes, posBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
 
 
             uploadedVBO = true;
@@ -121,15 +137,23 @@ public class Skybox extends Renderer {
     }
 
 
-    private void bindAttribs(GLSLProgram shader) {
-        int positionHandle=shader.getAttributeGLid("a_Position");
-
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
-        GLES30.glVertexAttribPointer(positionHandle, 2, GLES30.GL_FLOAT, false, 0, 0);
-        GLES30.glEnableVertexAttribArray(positionHandle);
+    private final VertexArrays vertexArrays = new VertexArrays(new VertexArrays.Layout() {
+        @Override
+        public void record(GLSLProgram program) {
+            int positionHandle=program.getAttributeGLid("a_Position");
 
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+            GLES30.glVertexAttribPointer(positionHandle, 2, GLES30.GL_FLOAT, false, 0, 0);
+            GLES30.glEnableVertexAttribArray(positionHandle);
 
+            //index buffer
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        }
+    });
 
+    @Override
+    public void submit(RenderQueue queue) {
+        queue.add(queue.opaqueKey(RenderQueue.LAYER_SKYBOX, material.shader.sortId, material.sortId, 0), this, 0);
     }
 
     @Override
@@ -137,22 +161,19 @@ public class Skybox extends Renderer {
         material.bindShader();
         material.bindTextures();
         sendMatrices();
-        bindAttribs(material.shader);
-
-        //bind index buffer
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        if (!uploadedVBO)
+            GenBuffersAndSubmitToGL();
+        vertexArrays.bind(material.shader);
 
-        GLES30.glDepthMask(false);
+        GLState.depthMask(false);
             GLES30.glDrawElements(GLES30.GL_TRIANGLES, indexArraySize, GLES30.GL_UNSIGNED_SHORT, 0);
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
-        GLES30.glDepthMask(true);
+        GLState.depthMask(true);
     }
 
     private void sendMatrices() {
 
-        ShaderUniformMatrix4fv ViewMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_Viewatrix");
-        ShaderUniformMatrix4fv ProjectionMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_Projectionmatrix");
+        ShaderUniformMatrix4fv ViewMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(viewMatrixId);
+        ShaderUniformMatrix4fv ProjectionMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(projectionMatrixId);
 
         ViewMatrix.array=MatrixManager.viewMatrix;
         ProjectionMatrix.array=MatrixManager.projectionMatrix;
@@ -163,5 +184,11 @@ public class Skybox extends Renderer {
 
     public void invalidateVBO() {
         uploadedVBO = false;
+        vertexArrays.invalidate();
+    }
+
+    @Override
+    public void invalidateGLData() {
+        invalidateVBO();
     }
 }
@@ -4,9 +4,11 @@ import android.opengl.GLES30;
 import android.opengl.Matrix;
 
 import com.sdgapps.terrainsandbox.MiniEngine.MatrixManager;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.MiniMath;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Transform;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.VertexArrays;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
@@ -24,6 +26,13 @@ public class Sphere extends Renderer {
 
     private static final int FloatBytes = Float.SIZE / 8;
     private static final int ShortBytes = Short.SIZE / 8;
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int modelMatrixId = GLSLProgram.uniformId("u_Modelmatrix");
+    private static final int mvpMatrixId = GLSLProgram.uniformId("u_MVPMatrix");
+
     private int indexArraySize;
     private float verts[];
     private short[] tris;
@@ -129,18 +138,21 @@ public class Sphere extends Renderer {
             //submit to opengl
             GLES30.glGenBuffers(2, buffers, 0);
 
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+            //the element array buffer binding would go to the bound VAO
+            GLState.bindVertexArray(0);
+
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
             GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER,
                     indexBuffer.capacity() * GridMesh.ShortBytes, indexBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
             indexBuffer.clear();
             indexBuffer = null;
 
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
             GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, posBuffer.capacity() * GridMesh.FloatBytes, posBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
 
             posBuffer = null;
             indexBuffer = null;
@@ -150,14 +162,24 @@ public class Sphere extends Renderer {
     }
 
 
-    private void bindAttribs(GLSLProgram shader) {
+    private final VertexArrays vertexArrays = new VertexArrays(new VertexArrays.Layout() {
+        @Override
+        public void record(GLSLProgram program) {
+            recordLayout(program);
+        }
+    });
+
+    /**
+     * Vertex layout, recorded in the VAO of every program the sphere is drawn with
+     */
+    private void recordLayout(GLSLProgram shader) {
         //glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride, int offset)
 
         int positionHandle=shader.getAttributeGLid("a_Position");
         int normalHandle=shader.getAttributeGLid("a_Normal");
         int texcoordHandle=shader.getAttributeGLid("a_TexCoordinate");
 
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
 
         GLES30.glVertexAttribPointer(positionHandle, 3, GLES30.GL_FLOAT, false, FloatBytes * 8, 0);
         GLES30.glEnableVertexAttribArray(positionHandle);
@@ -169,7 +191,7 @@ public class Sphere extends Renderer {
         GLES30.glEnableVertexAttribArray(texcoordHandle);
 
         //index buffer
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
     }
 
     @Override
@@ -177,11 +199,11 @@ public class Sphere extends Renderer {
         transform.updateModelMatrix();
         material.bindTextures();
         sendMatrices();
-        bindAttribs(material.shader);
+        if (!uploadedVBO)
+            GenBuffersAndSubmitToGL();
+        vertexArrays.bind(material.shader);
 
         GLES30.glDrawElements(GLES30.GL_TRIANGLES, indexArraySize, GLES30.GL_UNSIGNED_SHORT, 0);
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
     private void sendMatrices() {
@@ -191,8 +213,8 @@ public class Sphere extends Renderer {
         Matrix.multiplyMM(MatrixManager.MVPMatrix, 0, MatrixManager.projectionMatrix, 0,
                 MatrixManager.modelViewMatrix, 0);
 
-        ShaderUniformMatrix4fv ModelMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_Modelmatrix");
-        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_MVPMatrix");
+        ShaderUniformMatrix4fv ModelMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(modelMatrixId);
+        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(mvpMatrixId);
 
         ModelMatrix.array=transform.modelMatrix;
         MVPMatrix.array=MatrixManager.MVPMatrix;
@@ -203,5 +225,11 @@ public class Sphere extends Renderer {
 
     public void invalidateVBO() {
         uploadedVBO = false;
+        vertexArrays.invalidate();
+    }
+
+    @Override
+    public void invalidateGLData() {
+        invalidateVBO();
     }
 }
@@ -1,7 +1,6 @@
 
 package com.sdgapps.terrainsandbox.MiniEngine.graphics;
 
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.SimpleVec3fPool;
 
 /**
@@ -326,20 +325,4 @@ public class BoundingBox {
     public String toString() {
         return "bMin: " + bMin.toString() + " bMax: " + bMax.toString();
     }
-
-    /**
-     * Box rendering
-     * @param geometry an instance of a line cube
-     * @param shader
-     */
-    public void draw(GLSLProgram shader, LineCube geometry) {
-
-
-        Vec3f center=this.getCenter();
-        Vec3f size=SimpleVec3fPool.create(bMax);
-        size.sub(center);
-        size.abs();
-
-        geometry.draw(shader,center,size);
-    }
 }
@@ -29,9 +29,16 @@ public class Frustum {
     public static final int OUTSIDE = -1;
     public static final int INSIDE = 2;
 
+    /**
+     * Plane masks of testBox: bit i set means plane i still has to be tested
+     */
+    public static final int ALL_PLANES = 0x3f;
+    public static final int CULLED = -1;
+
     //near plane
     private Vec3f nearCenter = new Vec3f();
     private Vec3f nearNormal = new Vec3f();
+    private Vec3f nearOffset = new Vec3f();
 
     //far plane
     private Vec3f farNormal = new Vec3f();
@@ -56,6 +63,28 @@ public class Frustum {
     private Plane pright = new Plane();
     private Plane[] frustumPlanes = new Plane[6];
 
+    /*
+     * Planes of the box culling kernel, updated with the planes. Normals are split by sign
+     * (pos = max(n, 0), neg = min(n, 0)), so the p vertex distance of a box is
+     * d + pos·max + neg·min and the n vertex distance d + pos·min + neg·max, with no per box branch
+     * to pick the corners.
+     */
+    private final float[] posX = new float[6];
+    private final float[] posY = new float[6];
+    private final float[] posZ = new float[6];
+    private final float[] negX = new float[6];
+    private final float[] negY = new float[6];
+    private final float[] negZ = new float[6];
+    private final float[] planeD = new float[6];
+
+    /**
+     * Camera position and axes the clipping planes were last computed from
+     */
+    public final Vec3f origin = new Vec3f();
+    public final Vec3f viewAxis = new Vec3f();
+    public final Vec3f upAxis = new Vec3f();
+    public final Vec3f rightAxis = new Vec3f();
+
     public Frustum() {
         frustumPlanes[0] = pnear;
         frustumPlanes[1] = pfar;
@@ -78,6 +107,11 @@ public class Frustum {
         up.normalize();
         right.normalize();
 
+        origin.set(cameraPosition);
+        viewAxis.set(viewVec);
+        upAxis.set(up);
+        rightAxis.set(right);
+
         //far plane
         farCenter.set(viewVec);
         farCenter.scalarMul(zfar);
@@ -91,11 +125,15 @@ public class Frustum {
         nearCenter.add(cameraPosition);
         nearNormal.set(viewVec);
 
+        // near plane center relative to the camera, computed directly: subtracting the camera
+        // position from nearCenter loses most of the precision at planet scale coordinates
+        nearOffset.set(viewVec);
+        nearOffset.scalarMul(znear);
+
         //right plane
         Vec3f a = SimpleVec3fPool.create(right);
         a.scalarMul(Wnear);
-        a.add(nearCenter);
-        a.sub(cameraPosition);
+        a.add(nearOffset);
         a.normalize();
         rightNormal.set(a.calcCross(up));
         rightNormal.normalize();
@@ -104,8 +142,7 @@ public class Frustum {
         a.set(right);
         a.invert();//left
         a.scalarMul(Wnear);
-        a.add(nearCenter);
-        a.sub(cameraPosition);
+        a.add(nearOffset);
         a.normalize();
         leftNormal.set(up.calcCross(a));
         leftNormal.normalize();
@@ -113,8 +150,7 @@ public class Frustum {
         //top plane
         a.set(up);
         a.scalarMul(Hnear);
-        a.add(nearCenter);
-        a.sub(cameraPosition);
+        a.add(nearOffset);
         a.normalize();
         topNormal.set(right.calcCross(a));
         topNormal.normalize();
@@ -123,8 +159,7 @@ public class Frustum {
         a.set(up);
         a.invert();
         a.scalarMul(Hnear);
-        a.add(nearCenter);
-        a.sub(cameraPosition);
+        a.add(nearOffset);
         a.normalize();
         botNormal.set(a.calcCross(right));
         botNormal.normalize();
@@ -135,6 +170,82 @@ public class Frustum {
         pfar.set(farNormal,     farCenter);
         pleft.set(leftNormal,   cameraPosition);
         pright.set(rightNormal, cameraPosition);
+
+        updateBoxPlanes();
+    }
+
+    /**
+     * Clipping planes and projection matrix of an orthographic projection (i.e. the shadow map of
+     * a directional light): the box of 2*halfWidth x 2*halfHeight from near to far along viewVec
+     */
+    public void calcOrthoClippingPlanes(Vec3f cameraPosition, Vec3f viewVec, Vec3f up, Vec3f right,
+                                        float halfWidth, float halfHeight, float near, float far) {
+        viewVec.normalize();
+        up.normalize();
+        right.normalize();
+
+        origin.set(cameraPosition);
+        viewAxis.set(viewVec);
+        upAxis.set(up);
+        rightAxis.set(right);
+        znear = near;
+        zfar = far;
+
+        Vec3f p = SimpleVec3fPool.create(viewVec);
+        p.scalarMul(near);
+        p.add(cameraPosition);
+        nearNormal.set(viewVec);
+        pnear.set(nearNormal, p);
+
+        p.set(viewVec);
+        p.scalarMul(far);
+        p.add(cameraPosition);
+        farNormal.set(viewVec);
+        farNormal.invert();
+        pfar.set(farNormal, p);
+
+        //side planes, normals pointing inside the box
+        p.set(right);
+        p.scalarMul(-halfWidth);
+        p.add(cameraPosition);
+        leftNormal.set(right);
+        pleft.set(leftNormal, p);
+
+        p.set(right);
+        p.scalarMul(halfWidth);
+        p.add(cameraPosition);
+        rightNormal.set(right);
+        rightNormal.invert();
+        pright.set(rightNormal, p);
+
+        p.set(up);
+        p.scalarMul(halfHeight);
+        p.add(cameraPosition);
+        topNormal.set(up);
+        topNormal.invert();
+        ptop.set(topNormal, p);
+
+        p.set(up);
+        p.scalarMul(-halfHeight);
+        p.add(cameraPosition);
+        botNormal.set(up);
+        pbottom.set(botNormal, p);
+
+        updateBoxPlanes();
+        Matrix.orthoM(projectionMatrix, 0, -halfWidth, halfWidth, -halfHeight, halfHeight, near, far);
+    }
+
+    private void updateBoxPlanes() {
+        for (int i = 0; i < frustumPlanes.length; i++) {
+            Vec3f n = frustumPlanes[i].normal;
+            posX[i] = Math.max(n.x, 0);
+            posY[i] = Math.max(n.y, 0);
+            posZ[i] = Math.max(n.z, 0);
+            negX[i] = Math.min(n.x, 0);
+            negY[i] = Math.min(n.y, 0);
+            negZ[i] = Math.min(n.z, 0);
+            planeD[i] = frustumPlanes[i].distance(0, 0, 0);
+        }
     }
 
     public boolean testPoint(Vec3f inpoint) {
@@ -163,18 +274,97 @@ public class Frustum {
     }
 
     public int testBoundingBox(BoundingBox inbb) {
+        return testBoundingBox(inbb.bMin.x, inbb.bMin.y, inbb.bMin.z, inbb.bMax.x, inbb.bMax.y, inbb.bMax.z);
+    }
+
+    /**
+     * Same as testBoundingBox(BoundingBox), for boxes stored as plain values. The p and n
+     * vertices are picked inline, no pooled vectors are used.
+     */
+    public int testBoundingBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
         int result = INSIDE;
 
-        for (Plane p:frustumPlanes) {
-            if (p.distance(inbb.getP(p.normal)) < 0)
+        for (Plane p : frustumPlanes) {
+            Vec3f n = p.normal;
+
+            if (p.distance(n.x > 0 ? maxX : minX, n.y > 0 ? maxY : minY, n.z > 0 ? maxZ : minZ) < 0)
                 return OUTSIDE;
-            else if (p.distance(inbb.getN(p.normal)) < 0)
+            else if (p.distance(n.x < 0 ? maxX : minX, n.y < 0 ? maxY : minY, n.z < 0 ? maxZ : minZ) < 0)
                 result = INTERSECT;
         }
 
         return result;
     }
 
+    /**
+     * Culling kernel for boxes stored in arrays (structure of arrays), box i is
+     * [minX[i], maxX[i]] x [minY[i], maxY[i]] x [minZ[i], maxZ[i]]
+     * <p>
+     * Only the planes in planeMask are tested: pass ALL_PLANES for a root box, and the returned
+     * mask for the boxes contained in this one, the planes this box is completely inside of don't
+     * have to be tested again. The plane that rejected each box is kept in lastPlane and tried
+     * first next time, a box that was outside last frame usually is outside of the same plane.
+     *
+     * @param lastPlane in/out: index of the last plane that rejected each box
+     * @param distances out, can be null: [0] min distance of the p vertices of the tested planes
+     *                  (the distance to the rejecting plane if the box is culled), [1] min distance
+     *                  of the n vertices of the planes the box is completely inside of,
+     *                  Float.MAX_VALUE if none
+     * @return CULLED, or the planes that intersect the box (0 if it's completely inside)
+     */
+    public int testBox(float[] minX, float[] minY, float[] minZ, float[] maxX, float[] maxY, float[] maxZ,
+                       int i, int planeMask, byte[] lastPlane, float[] distances) {
+        final float x0 = minX[i], y0 = minY[i], z0 = minZ[i];
+        final float x1 = maxX[i], y1 = maxY[i], z1 = maxZ[i];
+
+        // plane coherency: try last frame's rejecting plane first
+        final int last = lastPlane[i];
+        if ((planeMask & (1 << last)) != 0) {
+            float p = planeD[last] + posX[last] * x1 + negX[last] * x0 + posY[last] * y1 + negY[last] * y0
+                    + posZ[last] * z1 + negZ[last] * z0;
+            if (p < 0) {
+                if (distances != null)
+                    distances[0] = p;
+                return CULLED;
+            }
+        }
+
+        float minP = Float.MAX_VALUE;
+        float minN = Float.MAX_VALUE;
+        int mask = planeMask;
+
+        for (int k = 0; k < 6; k++) {
+            if ((planeMask & (1 << k)) == 0)
+                continue;
+
+            float p = planeD[k] + posX[k] * x1 + negX[k] * x0 + posY[k] * y1 + negY[k] * y0
+                    + posZ[k] * z1 + negZ[k] * z0;
+
+            if (p < 0) {
+                lastPlane[i] = (byte) k;
+                if (distances != null)
+                    distances[0] = p;
+                return CULLED;
+            }
+
+            float n = planeD[k] + posX[k] * x0 + negX[k] * x1 + posY[k] * y0 + negY[k] * y1
+                    + posZ[k] * z0 + negZ[k] * z1;
+
+            if (n >= 0) {
+                // completely inside this plane
+                mask &= ~(1 << k);
+                minN = Math.min(minN, n);
+            }
+            minP = Math.min(minP, p);
+        }
+
+        if (distances != null) {
+            distances[0] = minP;
+            distances[1] = minN;
+        }
+        return mask;
+    }
+
     public void change_fov(float _fov) {
 
         horizontalFov_H = _fov;
@@ -0,0 +1,300 @@
+package com.sdgapps.terrainsandbox.MiniEngine.graphics;
+
+import android.opengl.GLES30;
+
+import java.util.Arrays;
+
+/**
+ * Cache of the GL state the engine changes: bound program, buffers, vertex array, textures and
+ * frame buffer, enabled capabilities, cull face, blend function, depth and color masks and the viewport
+ * <p>
+ * The engine sets this state through here instead of calling GLES30 directly, and the calls
+ * that wouldn't change anything aren't issued. Every call is counted as issued or skipped,
+ * see endFrame.
+ * <p>
+ * The cache must be invalidated when the EGL context is created (and lost), the new context's
+ * state is unknown. Code that changes this state calling GLES30 directly makes the cache
+ * wrong.
+ */
+public final class GLState {
+
+    private static final int UNKNOWN = -1;
+
+    private static final int MAX_TEXTURE_UNITS = 32;
+
+    /**
+     * Texture targets, index of their bindings in boundTextures
+     */
+    private static final int[] textureTargets = {GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_2D_ARRAY,
+            GLES30.GL_TEXTURE_CUBE_MAP};
+
+    /**
+     * Capabilities, index of their state in capabilities
+     */
+    private static final int[] capabilityIds = {GLES30.GL_BLEND, GLES30.GL_CULL_FACE,
+            GLES30.GL_DEPTH_TEST, GLES30.GL_POLYGON_OFFSET_FILL};
+
+    private static int program;
+    private static int arrayBuffer;
+    private static int elementBuffer;
+    private static int vertexArray;
+    private static int framebuffer;
+    private static int activeUnit;
+    private static final int[][] boundTextures = new int[textureTargets.length][MAX_TEXTURE_UNITS];
+    private static final int[] capabilities = new int[capabilityIds.length];
+    private static int cullFace;
+    private static int blendSrc, blendDst;
+    private static int depthMask;
+    private static int colorMask;
+    private static int viewportX, viewportY, viewportWidth, viewportHeight;
+
+    private static int issued, skipped;
+    private static int lastFrameIssued, lastFrameSkipped;
+
+    static {
+        invalidate();
+    }
+
+    private GLState() {
+    }
+
+    /**
+     * Forget the cached state, the next call of every kind is issued
+     */
+    public static void invalidate() {
+        program = UNKNOWN;
+        arrayBuffer = UNKNOWN;
+        elementBuffer = UNKNOWN;
+        vertexArray = UNKNOWN;
+        framebuffer = UNKNOWN;
+        activeUnit = UNKNOWN;
+        for (int[] unitTextures : boundTextures)
+            Arrays.fill(unitTextures, UNKNOWN);
+        Arrays.fill(capabilities, UNKNOWN);
+        cullFace = UNKNOWN;
+        blendSrc = UNKNOWN;
+        blendDst = UNKNOWN;
+        depthMask = UNKNOWN;
+        colorMask = UNKNOWN;
+        viewportWidth = UNKNOWN;
+    }
+
+    /**
+     * Close the frame's counters, see getIssuedCalls and getSkippedCalls
+     */
+    public static void endFrame() {
+        lastFrameIssued = issued;
+        lastFrameSkipped = skipped;
+        issued = 0;
+        skipped = 0;
+    }
+
+    /**
+     * @return state calls sent to GL during the last frame
+     */
+    public static int getIssuedCalls() {
+        return lastFrameIssued;
+    }
+
+    /**
+     * @return redundant state calls dropped during the last frame
+     */
+    public static int getSkippedCalls() {
+        return lastFrameSkipped;
+    }
+
+    public static void useProgram(int glHandle) {
+        if (program == glHandle) {
+            skipped++;
+            return;
+        }
+        program = glHandle;
+        issued++;
+        GLES30.glUseProgram(glHandle);
+    }
+
+    /**
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+     */
+    public static void bindBuffer(int target, int buffer) {
+        if (target == GLES30.GL_ARRAY_BUFFER) {
+            if (arrayBuffer == buffer) {
+                skipped++;
+                return;
+            }
+            arrayBuffer = buffer;
+        } else {
+            if (elementBuffer == buffer) {
+                skipped++;
+                return;
+            }
+            elementBuffer = buffer;
+        }
+        issued++;
+        GLES30.glBindBuffer(target, buffer);
+    }
+
+    /**
+     * The element array buffer binding belongs to the bound vertex array object, call this
+     * after binding one without bindVertexArray
+     */
+    public static void invalidateElementBuffer() {
+        elementBuffer = UNKNOWN;
+    }
+
+    /**
+     * Bind a vertex array object, 0 for none. The element array buffer bound is the VAO's
+     * from then on, see VertexArrays.
+     */
+    public static void bindVertexArray(int vao) {
+        if (vertexArray == vao) {
+            skipped++;
+            return;
+        }
+        vertexArray = vao;
+        invalidateElementBuffer();
+        issued++;
+        GLES30.glBindVertexArray(vao);
+    }
+
+    public static void bindFramebuffer(int fb) {
+        if (framebuffer == fb) {
+            skipped++;
+            return;
+        }
+        framebuffer = fb;
+        issued++;
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, fb);
+    }
+
+    /**
+     * Bind a texture to a texture unit, for sampling
+     *
+     * @param unit [0,MAX_TEXTURE_UNITS), GL_TEXTURE0 + unit
+     */
+    public static void bindTexture(int unit, int target, int texture) {
+        int t = targetIndex(target);
+        if (boundTextures[t][unit] == texture) {
+            skipped++;
+            return;
+        }
+        activeTexture(unit);
+        boundTextures[t][unit] = texture;
+        issued++;
+        GLES30.glBindTexture(target, texture);
+    }
+
+    /**
+     * Bind a texture to the active texture unit, i.e. to upload it
+     */
+    public static void bindTexture(int target, int texture) {
+        if (activeUnit == UNKNOWN)
+            activeTexture(0);
+        bindTexture(activeUnit, target, texture);
+    }
+
+    private static void activeTexture(int unit) {
+        if (activeUnit == unit) {
+            skipped++;
+            return;
+        }
+        activeUnit = unit;
+        issued++;
+        GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + unit);
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, 1);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, 0);
+    }
+
+    private static void setCapability(int capability, int enabled) {
+        int c = capabilityIndex(capability);
+        if (capabilities[c] == enabled) {
+            skipped++;
+            return;
+        }
+        capabilities[c] = enabled;
+        issued++;
+        if (enabled == 1)
+            GLES30.glEnable(capability);
+        else
+            GLES30.glDisable(capability);
+    }
+
+    public static void cullFace(int mode) {
+        if (cullFace == mode) {
+            skipped++;
+            return;
+        }
+        cullFace = mode;
+        issued++;
+        GLES30.glCullFace(mode);
+    }
+
+    public static void blendFunc(int src, int dst) {
+        if (blendSrc == src && blendDst == dst) {
+            skipped++;
+            return;
+        }
+        blendSrc = src;
+        blendDst = dst;
+        issued++;
+        GLES30.glBlendFunc(src, dst);
+    }
+
+    public static void depthMask(boolean write) {
+        int mask = write ? 1 : 0;
+        if (depthMask == mask) {
+            skipped++;
+            return;
+        }
+        depthMask = mask;
+        issued++;
+        GLES30.glDepthMask(write);
+    }
+
+    /**
+     * Write to all the color channels or to none of them
+     */
+    public static void colorMask(boolean write) {
+        int mask = write ? 1 : 0;
+        if (colorMask == mask) {
+            skipped++;
+            return;
+        }
+        colorMask = mask;
+        issued++;
+        GLES30.glColorMask(write, write, write, write);
+    }
+
+    public static void viewport(int x, int y, int width, int height) {
+        if (viewportX == x && viewportY == y && viewportWidth == width && viewportHeight == height) {
+            skipped++;
+            return;
+        }
+        viewportX = x;
+        viewportY = y;
+        viewportWidth = width;
+        viewportHeight = height;
+        issued++;
+        GLES30.glViewport(x, y, width, height);
+    }
+
+    private static int targetIndex(int target) {
+        for (int i = 0; i < textureTargets.length; i++)
+            if (textureTargets[i] == target)
+                return i;
+        throw new IllegalArgumentException("GLState: untracked texture target " + target);
+    }
+
+    private static int capabilityIndex(int capability) {
+        for (int i = 0; i < capabilityIds.length; i++)
+            if (capabilityIds[i] == capability)
+                return i;
+        throw new IllegalArgumentException("GLState: untracked capability " + capability);
+    }
+}
@@ -12,56 +12,141 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 
+/**
+ * Batch of line boxes, drawn in a single instanced call
+ * <p>
+ * The cube from -1 to 1 is the only mesh, every box is an instance of it: its center, half
+ * size and colour (see InstanceFloats). The boxes are added between begin and draw, in world
+ * space, and uploaded to a stream buffer when they are drawn.
+ */
 public class LineCube {
 
     public static final int FloatBytes = Float.SIZE / 8;
     public static final int IntBytes = Integer.SIZE / 8;
     public static final int ShortBytes = Short.SIZE / 8;
 
+    /**
+     * Floats per box instance: a_boxCenter (x, y, z), a_boxScale (half size x, y, z) and
+     * a_boxColor (r, g, b)
+     */
+    private static final int InstanceFloats = 9;
+    private static final int InstanceStride = InstanceFloats * FloatBytes;
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int mvpMatrixId = GLSLProgram.uniformId("u_MVPMatrix");
+
     boolean uploadedVBO =false;
+
+    /**
+     * 0 - index buf
+     * 1 - position buf
+     * 2 - box instances buf
+     */
     private int buffers[];
 
     private int indexArraySize=0;
 
-    public void bindAttributes(GLSLProgram shader) {
+    private FloatBuffer instanceData = allocateInstances(256);
+    private int boxCount = 0;
+
+    private final VertexArrays vertexArrays = new VertexArrays(new VertexArrays.Layout() {
+        @Override
+        public void record(GLSLProgram program) {
+            int positionHandle=program.getAttributeGLid("a_Position");
+
+            //position buffer
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+            GLES30.glVertexAttribPointer(positionHandle, 3, GLES30.GL_FLOAT, false, 0, 0);
+            GLES30.glEnableVertexAttribArray(positionHandle);
+
+            //box instances, the buffer is orphaned by every upload but keeps its name
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
+            String[] attributes = {"a_boxCenter", "a_boxScale", "a_boxColor"};
+            for (int i = 0; i < attributes.length; i++) {
+                int handle = program.getAttributeGLid(attributes[i]);
+                GLES30.glVertexAttribPointer(handle, 3, GLES30.GL_FLOAT, false, InstanceStride, 3 * i * FloatBytes);
+                GLES30.glVertexAttribDivisor(handle, 1);
+                GLES30.glEnableVertexAttribArray(handle);
+            }
+
+            //index buffer
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        }
+    });
 
-        int positionHandle=shader.getAttributeGLid("a_Position");
+    /**
+     * Start a new batch, the boxes of the last one are dropped
+     */
+    public void begin() {
+        boxCount = 0;
+    }
 
-        //position buffer
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
-        GLES30.glVertexAttribPointer(positionHandle, 3, GLES30.GL_FLOAT, false, 0, 0);
-        GLES30.glEnableVertexAttribArray(positionHandle);
+    /**
+     * Add a world space box to the batch
+     */
+    public void add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+                    float r, float g, float b) {
+        if (instanceData.capacity() < (boxCount + 1) * InstanceFloats) {
+            FloatBuffer grown = allocateInstances(boxCount * 2);
+            instanceData.position(0);
+            instanceData.limit(boxCount * InstanceFloats);
+            grown.put(instanceData);
+            instanceData = grown;
+        }
 
-        //index buffer
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        int i = boxCount * InstanceFloats;
+        instanceData.put(i, (minX + maxX) * 0.5f);
+        instanceData.put(i + 1, (minY + maxY) * 0.5f);
+        instanceData.put(i + 2, (minZ + maxZ) * 0.5f);
+        instanceData.put(i + 3, (maxX - minX) * 0.5f);
+        instanceData.put(i + 4, (maxY - minY) * 0.5f);
+        instanceData.put(i + 5, (maxZ - minZ) * 0.5f);
+        instanceData.put(i + 6, r);
+        instanceData.put(i + 7, g);
+        instanceData.put(i + 8, b);
+        boxCount++;
+    }
 
-        GLES30.glLineWidth(6);
+    public int size() {
+        return boxCount;
     }
 
-    public void draw(GLSLProgram shader, Vec3f position, Vec3f scale) {
+    private static FloatBuffer allocateInstances(int instances) {
+        return ByteBuffer.allocateDirect(instances * InstanceStride)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
 
-        if (uploadedVBO) {
+    /**
+     * Draw the boxes of the batch with the current view and projection, in one call. The
+     * program is expected to be in use.
+     */
+    public void draw(GLSLProgram shader) {
+        if (boxCount == 0)
+            return;
 
-            sendMatrix(shader,position,scale);
-            GLES30.glDrawElements(GLES30.GL_LINES, indexArraySize, GLES30.GL_UNSIGNED_INT, 0);
-        }
-    }
+        if (!uploadedVBO)
+            initializeVisuals();
 
-    private void sendMatrix(GLSLProgram shader, Vec3f position, Vec3f scale)
-    {
-        Matrix.setIdentityM(MatrixManager.modelMatrix, 0);
-        Matrix.translateM(MatrixManager.modelMatrix,0,position.x,position.y,position.z);
-        Matrix.scaleM(MatrixManager.modelMatrix,0, scale.x,scale.y,scale.z);
+        vertexArrays.bind(shader);
+        GLES30.glLineWidth(6);
 
-        Matrix.multiplyMM(MatrixManager.modelViewMatrix, 0, MatrixManager.viewMatrix, 0,
-                MatrixManager.modelMatrix, 0);
+        // the old storage is orphaned, draws still using it don't stall
+        instanceData.position(0);
+        instanceData.limit(instanceData.capacity());
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, boxCount * InstanceStride, instanceData,
+                GLES30.GL_STREAM_DRAW);
 
         Matrix.multiplyMM(MatrixManager.MVPMatrix, 0, MatrixManager.projectionMatrix, 0,
-                MatrixManager.modelViewMatrix, 0);
+                MatrixManager.viewMatrix, 0);
 
-        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) shader.getUniform("u_MVPMatrix");
+        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) shader.getUniform(mvpMatrixId);
         MVPMatrix.array=MatrixManager.MVPMatrix;
         MVPMatrix.bind();
+
+        GLES30.glDrawElementsInstanced(GLES30.GL_LINES, indexArraySize, GLES30.GL_UNSIGNED_INT, 0, boxCount);
     }
 
     public void initializeVisuals() {
@@ -108,20 +193,31 @@ public class LineCube {
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
         mLineVertices.put(lineVertData).position(0);
 
-        buffers = new int[2];
-        GLES30.glGenBuffers(2, buffers, 0);
+        buffers = new int[3];
+        GLES30.glGenBuffers(3, buffers, 0);
+
+        //the element array buffer binding would go to the bound VAO
+        GLState.bindVertexArray(0);
 
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
         GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER,
                 indexBuffer.capacity() * IntBytes, indexBuffer,
                 GLES30.GL_STATIC_DRAW);
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
 
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
         GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER,  mLineVertices.capacity() * FloatBytes, mLineVertices,
                 GLES30.GL_STATIC_DRAW);
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
 
         uploadedVBO =true;
     }
+
+    /**
+     * The GL context was lost, the buffers and the VAOs are created again by the next bind
+     */
+    public void invalidateVBO() {
+        uploadedVBO = false;
+        vertexArrays.invalidate();
+    }
 }
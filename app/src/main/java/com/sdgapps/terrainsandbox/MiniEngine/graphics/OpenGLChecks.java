@@ -18,7 +18,8 @@ public class OpenGLChecks {
     public static boolean vertex_shader_texture_fetch_enabled = true;
 
     /**
-     * Required for UNSIGNED_INT index arrays on glDrawElements calls
+     * Required for UNSIGNED_INT index arrays on glDrawElements calls. The terrain grid only uses
+     * them over 256x256 vertices, see GridMesh.
      */
     public static boolean GL_UINT_INDEX = false;
     private static int MAX_VERTEX_UNIFORM_VECTORS;
@@ -79,7 +80,7 @@ public class OpenGLChecks {
     }
 
     public static void log() {
-        Logger.log("OpenGL Checks: GL_OES_ELEMENT_INDEX_UINT " + GL_UINT_INDEX); //required
+        Logger.log("OpenGL Checks: GL_OES_ELEMENT_INDEX_UINT " + GL_UINT_INDEX); //optional
         Logger.log("OpenGL Checks: GL_OES_DEPTH_TEXTURE extension -> " + oes_depth_texture); //required
         Logger.log("OpenGL Checks: GL_OES_standard_derivatives " + standard_derivatives); //optional
         Logger.log("OpenGL Checks: GL_MAX_TEXTURE_SIZE " + GL_MAX_TEXTURE_SIZE);
@@ -37,4 +37,8 @@ public class Plane {
     float distance(Vec3f p) {
         return (d + normal.calcDot(p));
     }
+
+    float distance(float x, float y, float z) {
+        return d + normal.x * x + normal.y * y + normal.z * z;
+    }
 }
@@ -5,81 +5,133 @@ import android.util.Log;
 
 import com.sdgapps.terrainsandbox.utils.Logger;
 
+/**
+ * Depth only frame buffer of the cascaded shadow maps
+ * <p>
+ * Every cascade is a layer of a depth texture array, sampled with depth comparison
+ * (sampler2DArrayShadow). A layer is only cleared when it's bound (see bindLayer), so the
+ * layers that aren't redrawn in a frame keep their content.
+ */
 public class ShadowMapFrameBuffer implements FrameBufferInterface {
-    int[] shadowmap_fb, shadowmap_depthRb, shadowmap_renderTex; // the framebuffer, the renderbuffer and the texture to render
-    private int mShadowMapWidth;
-    private int mShadowMapHeight;
-    private final int shadowmapSize = 8192;
 
-    int glID=0;
-    @Override
-    public void bind() {
-        GLES30.glColorMask(false, false, false, false);
-        GLES30.glEnable(GLES30.GL_CULL_FACE);
-        GLES30.glCullFace(GLES30.GL_FRONT);
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-        //Singleton.systems.mainCamera.updateShadowMapCamera();
-
-        // bindTextures the previously generated framebuffer
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, shadowmap_fb[0]);
-        GLES30.glViewport(0, 0, mShadowMapWidth, mShadowMapHeight);
+    /**
+     * Layers of the depth texture array, one per shadow cascade
+     */
+    public static final int LAYERS = 4;
 
-        // Clear color and buffers
-        GLES30.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        glID = shadowmap_renderTex[0];
-    }
+    /**
+     * Side of every layer. 4 layers of 1024^2 24 bit depth take 16MB, a single 8192^2 map
+     * takes 256MB.
+     */
+    private static final int layerSize = 1024;
 
-    @Override
-    public void setup() {
+    private int[] shadowmap_fb, shadowmap_renderTex; // the framebuffer and the depth texture array to render
+    private int mShadowMapSize;
+    private boolean ready = false;
 
-        boolean mHasDepthTextureExtension = OpenGLChecks.oes_depth_texture;
-        if (!mHasDepthTextureExtension) {
+    public int glID = 0;
 
-        } else {
-            mShadowMapWidth = Math.min(shadowmapSize, OpenGLChecks.GL_MAX_TEXTURE_SIZE / 2);
-            mShadowMapHeight = Math.min(shadowmapSize, OpenGLChecks.GL_MAX_TEXTURE_SIZE / 2);
+    @Override
+    public void bind() {
+        GLState.colorMask(false);
 
-            shadowmap_fb = new int[1];
-            shadowmap_depthRb = new int[1];
-            shadowmap_renderTex = new int[1];
+        // the terrain is a height field, its back faces don't close it: both sides cast shadows
+        GLState.disable(GLES30.GL_CULL_FACE);
+        GLState.enable(GLES30.GL_POLYGON_OFFSET_FILL);
+        GLES30.glPolygonOffset(2f, 4f);
+        GLState.enable(GLES30.GL_DEPTH_TEST);
 
-            // create a framebuffer object
-            GLES30.glGenFramebuffers(1, shadowmap_fb, 0);
+        // bindTextures the previously generated framebuffer
+        GLState.bindFramebuffer(shadowmap_fb[0]);
+        GLState.viewport(0, 0, mShadowMapSize, mShadowMapSize);
+    }
 
-            // create render buffer and bindTextures 16-bit depth buffer
-            GLES30.glGenRenderbuffers(1, shadowmap_depthRb, 0);
-            GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, shadowmap_depthRb[0]);
-            GLES30.glRenderbufferStorage(GLES30.GL_RENDERBUFFER, GLES30.GL_DEPTH_COMPONENT16, mShadowMapWidth, mShadowMapHeight);
+    /**
+     * Render to a layer (cascade) of the depth texture array, clears it
+     */
+    public void bindLayer(int layer) {
+        GLES30.glFramebufferTextureLayer(GLES30.GL_FRAMEBUFFER, GLES30.GL_DEPTH_ATTACHMENT,
+                shadowmap_renderTex[0], 0, layer);
+        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
+    }
 
-            // Try to use a texture depth component
-            GLES30.glGenTextures(1, shadowmap_renderTex, 0);
-            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, shadowmap_renderTex[0]);
+    /**
+     * Restore the render state changed by bind
+     */
+    public void unbind() {
+        GLState.disable(GLES30.GL_POLYGON_OFFSET_FILL);
+        GLState.enable(GLES30.GL_CULL_FACE);
+        GLState.colorMask(true);
+        GLState.bindFramebuffer(0);
+    }
 
-            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
-            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+    /**
+     * @return false until setup runs, and after the GL context is lost
+     */
+    public boolean isReady() {
+        return ready;
+    }
 
-            // Remove artifact on the edges of the shadowmap
-            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
-            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+    /**
+     * The GL context was lost, the frame buffer and the texture have to be created again
+     */
+    public void invalidate() {
+        ready = false;
+    }
 
-            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, shadowmap_fb[0]);
+    /**
+     * Side of the layers, known before setup
+     */
+    public int getSize() {
+        return Math.min(layerSize, OpenGLChecks.GL_MAX_TEXTURE_SIZE / 2);
+    }
 
-            Logger.log("Depth texture extension oes " + mHasDepthTextureExtension);
-            // Use a depth texture, uses the oes_depth_texture extension, so no shadows if the extension is not available
-            GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_DEPTH_COMPONENT, mShadowMapWidth, mShadowMapHeight, 0, GLES30.GL_DEPTH_COMPONENT, GLES30.GL_UNSIGNED_INT, null);
-            // Attach the depth texture to FBO depth attachment point
-            GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_DEPTH_ATTACHMENT, GLES30.GL_TEXTURE_2D, shadowmap_renderTex[0], 0);
+    @Override
+    public void setup() {
+        mShadowMapSize = getSize();
+
+        shadowmap_fb = new int[1];
+        shadowmap_renderTex = new int[1];
+
+        // create a framebuffer object
+        GLES30.glGenFramebuffers(1, shadowmap_fb, 0);
+
+        // depth texture array, depth textures are core in GLES 3.0
+        GLES30.glGenTextures(1, shadowmap_renderTex, 0);
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D_ARRAY, shadowmap_renderTex[0]);
+        GLES30.glTexStorage3D(GLES30.GL_TEXTURE_2D_ARRAY, 1, GLES30.GL_DEPTH_COMPONENT24,
+                mShadowMapSize, mShadowMapSize, LAYERS);
+
+        // linear filtering with depth comparison: 2x2 pcf on most hardware
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_COMPARE_MODE, GLES30.GL_COMPARE_REF_TO_TEXTURE);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_COMPARE_FUNC, GLES30.GL_LEQUAL);
+
+        // Remove artifact on the edges of the shadowmap
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+
+        GLState.bindFramebuffer(shadowmap_fb[0]);
+        GLES30.glFramebufferTextureLayer(GLES30.GL_FRAMEBUFFER, GLES30.GL_DEPTH_ATTACHMENT,
+                shadowmap_renderTex[0], 0, 0);
+
+        // depth only
+        GLES30.glDrawBuffers(1, new int[]{GLES30.GL_NONE}, 0);
+        GLES30.glReadBuffer(GLES30.GL_NONE);
+
+        // check FBO status
+        int FBOstatus = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+        if (FBOstatus != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e("Shadowmap_fbuffer", "GL_FRAMEBUFFER_COMPLETE failed, CANNOT use FBO");
+            throw new RuntimeException("GL_FRAMEBUFFER_COMPLETE failed, CANNOT use FBO");
+        }
 
-            // check FBO status
-            int FBOstatus = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
-            if (FBOstatus != GLES30.GL_FRAMEBUFFER_COMPLETE) {
-                Log.e("Shadowmap_fbuffer", "GL_FRAMEBUFFER_COMPLETE failed, CANNOT use FBO");
-                throw new RuntimeException("GL_FRAMEBUFFER_COMPLETE failed, CANNOT use FBO");
-            }
+        Logger.log("Shadow map: " + LAYERS + " cascades of " + mShadowMapSize + "x" + mShadowMapSize);
 
-            glID = shadowmap_renderTex[0];
-            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
-        }
+        glID = shadowmap_renderTex[0];
+        ready = true;
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D_ARRAY, 0);
+        GLState.bindFramebuffer(0);
     }
 }
@@ -0,0 +1,92 @@
+package com.sdgapps.terrainsandbox.MiniEngine.graphics;
+
+import android.opengl.GLES30;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
+
+import java.util.Arrays;
+
+/**
+ * Vertex array objects of a mesh, one per program it's drawn with
+ * <p>
+ * The attribute locations are queried from every program (see GLSLProgram.linkAttribute), so
+ * each program gets its own VAO. The first bind with a program records the mesh's layout into
+ * a new VAO (see Layout), the following ones are a single glBindVertexArray, skipped by GLState
+ * if it's already bound.
+ * <p>
+ * A VAO stays bound after its draws, and the element array buffer binding is part of it: code
+ * that binds an element array buffer outside of Layout.record (i.e. to upload it) binds vertex
+ * array 0 first. Draws from client side arrays need vertex array 0 too.
+ * <p>
+ * The VAOs die with the GL context, invalidate forgets them without deleting them. release
+ * deletes them, i.e. when the mesh's buffers are rebuilt in the same context.
+ */
+public class VertexArrays {
+
+    /**
+     * Vertex layout of a mesh
+     */
+    public interface Layout {
+        /**
+         * Bind the mesh's buffers and set up its attributes for a program. Runs with the new VAO
+         * bound, every call is recorded into it.
+         */
+        void record(GLSLProgram program);
+    }
+
+    private final Layout layout;
+    private GLSLProgram[] programs = new GLSLProgram[2];
+    private int[] vaos = new int[2];
+    private int count = 0;
+
+    private final int[] name = new int[1];
+
+    public VertexArrays(Layout _layout) {
+        layout = _layout;
+    }
+
+    /**
+     * Bind the VAO of a program, recorded the first time
+     */
+    public void bind(GLSLProgram program) {
+        for (int i = 0; i < count; i++) {
+            if (programs[i] == program) {
+                GLState.bindVertexArray(vaos[i]);
+                return;
+            }
+        }
+
+        if (count == programs.length) {
+            programs = Arrays.copyOf(programs, count * 2);
+            vaos = Arrays.copyOf(vaos, count * 2);
+        }
+
+        GLES30.glGenVertexArrays(1, name, 0);
+        GLState.bindVertexArray(name[0]);
+        layout.record(program);
+
+        programs[count] = program;
+        vaos[count] = name[0];
+        count++;
+    }
+
+    /**
+     * Forget the VAOs, the GL context that owned them is gone
+     */
+    public void invalidate() {
+        Arrays.fill(programs, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Delete the VAOs, the next binds record them again
+     */
+    public void release() {
+        if (count == 0)
+            return;
+
+        GLState.bindVertexArray(0);
+        GLES30.glDeleteVertexArrays(count, vaos, 0);
+        invalidate();
+    }
+}
@@ -3,8 +3,11 @@ package com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl;
 import android.content.res.AssetManager;
 import android.opengl.GLES30;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.utils.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,10 +19,28 @@ import java.util.Map;
  *
  * ShaderUniform subclasses are used to pass uniform data to the actual shaders.
  *
+ * Uniforms are found by name when setting up, and by uniform id (see uniformId) in the render
+ * code: every program keeps a table of its uniforms indexed by id, so the per draw lookups
+ * are an array access instead of hashing the name.
  */
 public class GLSLProgram {
 
+    /**
+     * Engine wide uniform ids, the same name has the same id in every program
+     */
+    private static final HashMap<String, Integer> uniformIds = new HashMap<>();
+
     private HashMap<String, ShaderUniform> uniforms = new HashMap<>();
+
+    /**
+     * Uniforms of this program indexed by uniform id, null for the ids it doesn't have
+     */
+    private ShaderUniform[] uniformTable = new ShaderUniform[0];
+
+    /**
+     * Uniforms in the order they were added
+     */
+    private final ArrayList<ShaderUniform> uniformList = new ArrayList<>();
     private HashMap<String, Integer> attributes=new HashMap<>();
 
     /**
@@ -38,12 +59,25 @@ public class GLSLProgram {
     /**Shader identifier in the engine*/
     String shaderID;
 
+    private static int programCount = 0;
+
+    /** Small sequential id of the program, to sort draws by program (see RenderQueue) */
+    public final int sortId = programCount++;
+
 
     public GLSLProgram(String id, String vertexPath, String fragmentPath, ShaderSystem shaderSys,boolean optimize) {
+        this(id, vertexPath, fragmentPath, shaderSys, optimize, null);
+    }
+
+    /**
+     * @param defines preprocessor lines added to both shaders, to build variants of the same
+     *                source files (null for none)
+     */
+    public GLSLProgram(String id, String vertexPath, String fragmentPath, ShaderSystem shaderSys,boolean optimize, String defines) {
         AssetManager am =shaderSys.getAssetMngr();
         this.shaderID = id;
-        vertex = new GLSLShader(vertexPath, am, false,id,optimize);
-        fragment = new GLSLShader(fragmentPath, am, true,id,optimize);
+        vertex = new GLSLShader(vertexPath, am, false,id,optimize,defines);
+        fragment = new GLSLShader(fragmentPath, am, true,id,optimize,defines);
 
         glHandle = createAndLinkProgram(vertex.glHandle,
                 fragment.glHandle, new String[]{
@@ -73,7 +107,7 @@ public class GLSLProgram {
     private void rebuildUserVariables() {
         this.buildVariables();
 
-        for (ShaderUniform sv : uniforms.values()) {
+        for (ShaderUniform sv : uniformList) {
             sv.glHandle = GLES30.glGetUniformLocation(glHandle, sv.name);
         }
     }
@@ -108,7 +142,7 @@ public class GLSLProgram {
     }
 
     public void useProgram() {
-        GLES30.glUseProgram(glHandle);
+        GLState.useProgram(glHandle);
     }
 
 
@@ -122,6 +156,12 @@ public class GLSLProgram {
 
         sv.glHandle = GLES30.glGetUniformLocation(glHandle, sv.name);
         uniforms.put(sv.name, sv);
+        uniformList.add(sv);
+
+        int id = uniformId(sv.name);
+        if (id >= uniformTable.length)
+            uniformTable = Arrays.copyOf(uniformTable, id + 1);
+        uniformTable[id] = sv;
     }
 
     public ShaderUniform getUniform(String uname) {
@@ -129,6 +169,29 @@ public class GLSLProgram {
         return res;
     }
 
+    /**
+     * @param id see uniformId
+     * @return the uniform, null if the program doesn't have it
+     */
+    public ShaderUniform getUniform(int id) {
+        return id < uniformTable.length ? uniformTable[id] : null;
+    }
+
+    /**
+     * Id of a uniform name, to look it up in any program with getUniform(int). Get it once
+     * (i.e. in a static final field), not in the render code.
+     */
+    public static int uniformId(String name) {
+        synchronized (uniformIds) {
+            Integer id = uniformIds.get(name);
+            if (id == null) {
+                id = uniformIds.size();
+                uniformIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
     /**
      * Compiles and links a Shader Program
      *
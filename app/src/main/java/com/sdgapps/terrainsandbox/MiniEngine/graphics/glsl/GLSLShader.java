@@ -15,6 +15,11 @@ public class GLSLShader {
     private String path;
     private String programID;
 
+    /**
+     * Preprocessor lines added to the source, null for none
+     */
+    private String defines;
+
     /**
      * A native method that is implemented by the 'jni-optimizer' native library,
      * which is packaged with this application.
@@ -23,8 +28,16 @@ public class GLSLShader {
 
 
     GLSLShader(String _path, AssetManager assetMngr, boolean isFragment, String _programID, boolean optimize) {
+        this(_path, assetMngr, isFragment, _programID, optimize, null);
+    }
+
+    /**
+     * @param _defines preprocessor lines (i.e. "#define SHADOWS\n") to compile a variant of the source
+     */
+    GLSLShader(String _path, AssetManager assetMngr, boolean isFragment, String _programID, boolean optimize, String _defines) {
         programID=_programID;
         path=_path;
+        defines=_defines;
         this.isFragment = isFragment;
 
         String code= getCode(assetMngr);
@@ -52,7 +65,7 @@ public class GLSLShader {
 
     private String getCode(AssetManager am) {
         try {
-            return StringFileReader.readTextFromInputStream(am.open(path));
+            return addDefines(StringFileReader.readTextFromInputStream(am.open(path)));
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -60,6 +73,17 @@ public class GLSLShader {
         return null;
     }
 
+    /**
+     * The defines go right after the #version directive, which has to stay the first line
+     */
+    private String addDefines(String code) {
+        if (defines == null || code == null)
+            return code;
+
+        int firstLine = code.indexOf('\n') + 1;
+        return code.substring(0, firstLine) + defines + code.substring(firstLine);
+    }
+
     /**
      * Compiles a shader.
      *
@@ -2,28 +2,60 @@ package com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl;
 
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class Material {
+    private static int materialCount = 0;
+
     public String name;
 
+    /**
+     * Small sequential id of the material, to sort draws by material (see RenderQueue)
+     */
+    public final int sortId = materialCount++;
+
     public GLSLProgram shader;
 
-    private HashMap<String,Texture> textures=new HashMap<>();
+    /**
+     * Textures and the uniform ids of their samplers (see GLSLProgram.uniformId)
+     */
+    private Texture[] textures = new Texture[0];
+    private int[] samplerIds = new int[0];
 
     /**
      * @param  nameInShader must be exactly the path of the sampler in the shader files
      */
     public void addTexture(Texture t, String nameInShader)
     {
-        textures.put(nameInShader,t);
+        int id = GLSLProgram.uniformId(nameInShader);
+        for (int i = 0; i < samplerIds.length; i++) {
+            if (samplerIds[i] == id) {
+                textures[i] = t;
+                return;
+            }
+        }
+
+        textures = Arrays.copyOf(textures, textures.length + 1);
+        samplerIds = Arrays.copyOf(samplerIds, samplerIds.length + 1);
+        textures[textures.length - 1] = t;
+        samplerIds[samplerIds.length - 1] = id;
     }
 
 
     public Texture getTexture(String uniformName)
     {
-        return textures.get(uniformName);
+        return getTexture(GLSLProgram.uniformId(uniformName));
+    }
+
+    /**
+     * @param id uniform id of the sampler, see GLSLProgram.uniformId
+     */
+    public Texture getTexture(int id)
+    {
+        for (int i = 0; i < samplerIds.length; i++)
+            if (samplerIds[i] == id)
+                return textures[i];
+        return null;
     }
     /**
      * Binds the shader, and the material's textures to the shader
@@ -38,11 +70,10 @@ public class Material {
     public void bindTextures()
     {
 
-        for (Map.Entry<String, Texture> entry  : textures.entrySet())
+        for (int i = 0; i < textures.length; i++)
         {
-            //TODO optimize
-            Sampler sampler=(Sampler)shader.getUniform(entry.getKey());
-            sampler.setTexture(entry.getValue());
+            Sampler sampler=(Sampler)shader.getUniform(samplerIds[i]);
+            sampler.setTexture(textures[i]);
             sampler.bind();
         }
     }
@@ -2,6 +2,8 @@ package com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl;
 
 import android.opengl.GLES30;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
+
 /**
  * Represents a Sampler2D uniform in a shader
  */
@@ -15,8 +17,7 @@ public class Sampler2DArray extends Sampler {
     public void bind()
     {
         if(mTexture!=null) {
-            GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + activeTarget);
-            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D_ARRAY, mTexture.glID);
+            GLState.bindTexture(activeTarget, GLES30.GL_TEXTURE_2D_ARRAY, mTexture.glID);
             GLES30.glUniform1i(glHandle, activeTarget);
         }
     }
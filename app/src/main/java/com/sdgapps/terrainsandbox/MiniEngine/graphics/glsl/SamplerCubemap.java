@@ -2,6 +2,8 @@ package com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl;
 
 import android.opengl.GLES30;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
+
 public class SamplerCubemap extends Sampler {
     public SamplerCubemap(String name) {
         super(name);
@@ -11,8 +13,7 @@ public class SamplerCubemap extends Sampler {
     public void bind()
     {
         if(mTexture!=null) {
-            GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + activeTarget);
-            GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, mTexture.glID);
+            GLState.bindTexture(activeTarget, GLES30.GL_TEXTURE_CUBE_MAP, mTexture.glID);
             GLES30.glUniform1i(glHandle, activeTarget);
         }
     }
@@ -6,6 +6,7 @@ import android.graphics.BitmapFactory;
 import android.opengl.GLES30;
 import android.opengl.GLUtils;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.MiniMath;
 
 import java.io.IOException;
@@ -20,6 +21,19 @@ public class ArrayTexture extends Texture {
     public String path;
     private String[] pathList;
 
+    /**
+     * Layers given one by one instead of the contents of a folder, see the second constructor
+     */
+    private String[] layerPaths;
+
+    private boolean needsPixels;
+    private boolean preMultiplyAlpha = true;
+
+    /**
+     * CPU copy of every layer, only kept when the texture is loaded with needsPixels
+     */
+    private Texture2D[] layerImages;
+
     /**
      * @param path assetmanager path to the folder that contains the textures for the array
      *
@@ -37,9 +51,40 @@ public class ArrayTexture extends Texture {
             mipmaplevels=1;
     }
 
+    /**
+     * @param layerPaths assetmanager paths of every layer, in layer order. Either:
+     *             A - Non ETC2 texture files (e.g png files)
+     *             B - ETC2 (pkm) texture files, without mipmaps
+     *             C - Folders, each one containing all the mipmap levels of an ETC2 texture
+     * @param _needsPixels keep a copy of the layers' pixels (non ETC2 only), see getLayerImage
+     */
+    ArrayTexture(String[] layerPaths, boolean mipmap, boolean alpha, boolean _interpolation, boolean _wrapMode,
+                 boolean _needsPixels, boolean _premultiplyAlpha) {
+        this(layerPaths[0], mipmap, alpha, _interpolation, _wrapMode);
+        this.layerPaths = layerPaths;
+        needsPixels = _needsPixels;
+        preMultiplyAlpha = _premultiplyAlpha;
+    }
+
+    /**
+     * @return the pixels of a layer, null unless the texture was loaded with needsPixels
+     */
+    public Texture2D getLayerImage(int layer) {
+        return layerImages != null ? layerImages[layer] : null;
+    }
+
+    public void freepixels() {
+        layerImages = null;
+    }
+
 
     private void fetchTexturePaths(AssetManager am)
     {
+        if(layerPaths!=null) {
+            fetchLayerPaths();
+            return;
+        }
+
         String[] files=null;
         try {
             files=am.list(path);
@@ -74,6 +119,30 @@ public class ArrayTexture extends Texture {
         }
     }
 
+    private void fetchLayerPaths()
+    {
+        layerCount=layerPaths.length;
+        pathList=layerPaths;
+
+        String[] separate=layerPaths[0].split("[/]+");
+        String last=separate[separate.length-1];
+
+        if(!last.contains(".")) {
+            //the folders provide the mipmaps
+            mipmapping=true;
+            compressionType = compression_ETC2;
+        }
+        else if(last.endsWith(".pkm")) {
+            //compressed textures can't have their mipmaps autogenerated
+            mipmapping=false;
+            mipmaplevels=1;
+            compressionType = compression_ETC2;
+        }
+        else {
+            compressionType = compression_NONE;
+        }
+    }
+
     @Override
     public int loadTexture(AssetManager am) {
         fetchTexturePaths(am);
@@ -186,7 +255,7 @@ public class ArrayTexture extends Texture {
         int result;
 
         this.glID = newTextureID();
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D_ARRAY, glID);
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D_ARRAY, glID);
 
         if(mipmapping)
            result= loadInternalETC2Mipmapping(am);
@@ -205,7 +274,9 @@ public class ArrayTexture extends Texture {
         /*Disable android's drawable auto-scaling*/
         BitmapFactory.Options opts = new BitmapFactory.Options();
         opts.inScaled = false;
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D_ARRAY, glID);
+        if(!preMultiplyAlpha)
+            opts.inPremultiplied = false;
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D_ARRAY, glID);
 
         Bitmap temp=null;
         try {
@@ -226,6 +297,9 @@ public class ArrayTexture extends Texture {
         //Allocate storage space for the textures
         GLES30.glTexStorage3D(GLES30.GL_TEXTURE_2D_ARRAY, mipmaplevels, GLES30.GL_RGBA8, width, height, layerCount);
 
+        if(needsPixels)
+            layerImages=new Texture2D[layerCount];
+
         for(int i=0;i<pathList.length;i++) {
             if(i>0) {
                 try {
@@ -235,9 +309,18 @@ public class ArrayTexture extends Texture {
                 }
             }
 
+            if(!preMultiplyAlpha)
+                temp.setPremultiplied(false);
+
             height = temp.getHeight();
             width = temp.getWidth();
 
+            if(needsPixels) {
+                int[] pixels = new int[width * height];
+                temp.getPixels(pixels, 0, width, 0, 0, width, height);
+                layerImages[i] = new Texture2D(pathList[i], pixels, width, height);
+            }
+
             //get the pixel buffer
             ByteBuffer pixelbuf= ByteBuffer.allocateDirect(width * height *IntBytes);
             pixelbuf.order(ByteOrder.nativeOrder());
@@ -259,7 +342,7 @@ public class ArrayTexture extends Texture {
 
         //autogen mipmaps if they were requested but not provided
         if(mipmapping)
-            GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_2D);
+            GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_2D_ARRAY);
         return glID;
     }
 
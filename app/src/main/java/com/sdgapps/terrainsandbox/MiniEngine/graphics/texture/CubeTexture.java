@@ -8,6 +8,8 @@ import android.opengl.GLUtils;
 
 import java.io.IOException;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
+
 public class CubeTexture extends Texture {
 
     private String[] files;
@@ -145,7 +147,7 @@ public class CubeTexture extends Texture {
     private int loadTextureInternalETC2(AssetManager am)
     {
         this.glID = newTextureID();
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, glID);
+        GLState.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP, glID);
         int result;
         if(mipmapping)
             result = loadInternalETC2Mipmapping(am);
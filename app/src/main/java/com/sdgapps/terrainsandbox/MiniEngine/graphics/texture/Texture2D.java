@@ -7,6 +7,7 @@ import android.graphics.Color;
 import android.opengl.GLES30;
 import android.opengl.GLUtils;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec2f;
 import com.sdgapps.terrainsandbox.utils.Logger;
 
@@ -36,6 +37,18 @@ public class Texture2D extends Texture{
         preMultiplyAlpha=_premultiplyAlpha;
     }
 
+    /**
+     * Image that is only kept in memory, it isn't uploaded to GL (i.e. a layer of an
+     * ArrayTexture loaded with its pixels)
+     */
+    Texture2D(String path, int[] _pixels, int _width, int _height) {
+        this.path = path;
+        pixels = _pixels;
+        width = _width;
+        height = _height;
+        needsPixels = true;
+    }
+
     private void fetchMipMapPaths(AssetManager am)
     {
         String[] files=null;
@@ -133,7 +146,7 @@ public class Texture2D extends Texture{
         this.glID = newTextureID();
 
 
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, glID);
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D, glID);
 
         setFiltering(GLES30.GL_TEXTURE_2D);
         setWrapMode(GLES30.GL_TEXTURE_2D);
@@ -160,7 +173,7 @@ public class Texture2D extends Texture{
     private int loadInternal(AssetManager am) {
 
         this.glID = newTextureID();
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, glID);
+        GLState.bindTexture(GLES30.GL_TEXTURE_2D, glID);
 
         setFiltering(GLES30.GL_TEXTURE_2D);
         setWrapMode(GLES30.GL_TEXTURE_2D);
@@ -243,6 +256,26 @@ public class Texture2D extends Texture{
         return new Vec2f(maxVal, minVal);
     }
 
+    public boolean hasPixels() {
+        return pixels != null;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the pixels (the 4 bytes of every ARGB pixel, lowest first),
+     * identifies the content of the image (i.e. for caches built from it). The pixels must be
+     * loaded, check hasPixels first.
+     */
+    public long pixelHash() {
+        long hash = 0xcbf29ce484222325L;
+        for (int p : pixels) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                hash ^= (p >>> shift) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
     public void freepixels() {
         pixels = null;
     }
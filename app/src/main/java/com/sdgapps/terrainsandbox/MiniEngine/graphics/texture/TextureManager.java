@@ -4,6 +4,7 @@ import android.content.res.AssetManager;
 
 import com.sdgapps.terrainsandbox.utils.Logger;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 
@@ -47,6 +48,35 @@ public class TextureManager {
         return t;
     }
 
+    /**
+     * Array texture whose layers are given one by one (i.e. one layer per face of the planet),
+     * see ArrayTexture
+     *
+     * @param needsPixels keep a copy of the layers' pixels, see ArrayTexture.getLayerImage
+     */
+    public Texture addArrayTexture(String[] layerPaths, boolean mipmapping, boolean alpha, boolean interpolation, boolean wrapMode,
+                                   boolean needsPixels, boolean premultiplyAlpha)
+    {
+        String[] paths=new String[layerPaths.length];
+        for(int i=0;i<paths.length;i++) {
+            String path=layerPaths[i].trim();
+            while(path.endsWith("/") ||path.endsWith("\\"))
+                path=path.substring(0,path.length()-1);
+            paths[i]=path.trim();
+        }
+
+        String key=Arrays.toString(paths);
+        if (texMap.containsKey(key)) {
+            Logger.log("Texture2D Manager: Warning: texture: " + key + " already in texMap, no action taken");
+            return texMap.get(key);
+        }
+
+        ArrayTexture t=new ArrayTexture(paths, mipmapping, alpha, interpolation, wrapMode, needsPixels, premultiplyAlpha);
+        t.loadTexture(assetMngr);
+        texMap.put(key, t);
+        return t;
+    }
+
     /** Note: ETC2 texture mipmappping requires mip level images to be included. Generate them using Mali texture compression tool
      * and call add2DTexture for the mip0 file
      *
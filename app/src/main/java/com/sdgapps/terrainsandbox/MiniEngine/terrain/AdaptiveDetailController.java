@@ -0,0 +1,123 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.TimeSystem;
+
+/**
+ * Adjusts the range detail (the value of the range slider) to hold a target frame time
+ * <p>
+ * Two measures of the TimeSystem are smoothed with an exponential moving average: the frame time
+ * (time between frames) and the work time (cpu time of the frame, without waiting for vsync).
+ * With vsync the frame time never goes below the refresh period, so the work time is what tells
+ * there is room for more detail.
+ * <p>
+ * - Frame time over the target by more than the upper margin: detail goes down
+ * - Work time under the lower margin and the frame time on target: detail goes up
+ * - Anything else is the hysteresis band, the detail is kept
+ * <p>
+ * Changes are rate limited, faster going down (recovering from stalls) than going up, and detail
+ * isn't raised again until some time after the last decrease, so the controller doesn't
+ * oscillate around the target. New ranges force a full node selection, so small changes are
+ * accumulated until they are worth applying.
+ */
+public class AdaptiveDetailController {
+
+    private static final float smoothing = 0.1f;
+    private static final float upperMargin = 1.1f;
+    private static final float lowerMargin = 0.7f;
+
+    /**
+     * Max change of the detail per second
+     */
+    private static final float decreaseRate = 2f;
+    private static final float increaseRate = 0.5f;
+
+    /**
+     * Seconds after a decrease before the detail can increase again
+     */
+    private static final float increaseCooldown = 1f;
+
+    /**
+     * Smallest change that gets applied
+     */
+    private static final float minApplyDelta = 0.05f;
+
+    private final float minDetail;
+    private final float maxDetail;
+
+    private float frameMs = -1;
+    private float workMs = -1;
+    private float detail;
+    private float appliedDetail;
+    private float cooldown = 0;
+
+    public AdaptiveDetailController(float _minDetail, float _maxDetail, float initialDetail) {
+        minDetail = _minDetail;
+        maxDetail = _maxDetail;
+        reset(initialDetail);
+    }
+
+    /**
+     * Start again from a detail value (i.e. set by hand with the slider)
+     */
+    public void reset(float _detail) {
+        detail = Math.max(minDetail, Math.min(maxDetail, _detail));
+        appliedDetail = detail;
+        cooldown = increaseCooldown;
+    }
+
+    /**
+     * Feed the last frame's times
+     *
+     * @param targetFrameMs frame time to hold, i.e. 16.6 for 60 fps
+     * @return true if the detail changed enough to be applied (see getDetail)
+     */
+    public boolean update(TimeSystem time, float targetFrameMs) {
+        float lastFrameMs = time.frameNanos / 1e6f;
+        float lastWorkMs = time.workNanos / 1e6f;
+
+        // pauses (app in background, loading) aren't the renderer's fault
+        if (lastFrameMs <= 0 || lastFrameMs > 1000)
+            return false;
+
+        if (frameMs < 0) {
+            frameMs = lastFrameMs;
+            workMs = lastWorkMs;
+        } else {
+            frameMs += (lastFrameMs - frameMs) * smoothing;
+            workMs += (lastWorkMs - workMs) * smoothing;
+        }
+
+        float dt = lastFrameMs / 1000f;
+        cooldown = Math.max(0, cooldown - dt);
+
+        if (frameMs > targetFrameMs * upperMargin) {
+            // proportional to how far over the target we are, capped by the rate
+            float error = frameMs / targetFrameMs - 1f;
+            detail -= Math.min(decreaseRate * dt, error * (maxDetail - minDetail) * dt);
+            cooldown = increaseCooldown;
+        } else if (cooldown == 0 && workMs < targetFrameMs * lowerMargin) {
+            float room = 1f - workMs / targetFrameMs;
+            detail += Math.min(increaseRate * dt, room * (maxDetail - minDetail) * dt);
+        }
+
+        detail = Math.max(minDetail, Math.min(maxDetail, detail));
+
+        if (Math.abs(detail - appliedDetail) >= minApplyDelta
+                || (detail != appliedDetail && (detail == minDetail || detail == maxDetail))) {
+            appliedDetail = detail;
+            return true;
+        }
+        return false;
+    }
+
+    public float getDetail() {
+        return appliedDetail;
+    }
+
+    /**
+     * @return smoothed frame time, in milliseconds
+     */
+    public float getFrameMs() {
+        return frameMs;
+    }
+}
@@ -0,0 +1,689 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Transform;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+import java.util.Arrays;
+
+/**
+ * Packed (structure of arrays) storage for the nodes of a CDLOD quad tree.
+ * <p>
+ * The root is node 0. Nodes are built on demand: the four children of a node are allocated
+ * together, as a block of 4 consecutive slots starting at firstChild[node], the first time the
+ * selection descends into it. They are stored in the same order as the quarters of the GridMesh
+ * index array: [bottomLeft|bottomRight|topLeft|topRight].
+ * <p>
+ * Bounds don't depend on the children, they are computed analytically from the node's area and
+ * the height range of the displacement map. Subtrees that haven't been used for a while are
+ * evicted, their blocks go to a free list and are reused by the next allocations.
+ * <p>
+ * The node selection only reads primitive arrays, instead of chasing
+ * node -> children[] -> BoundingBox -> Vec3f references for every visited node.
+ */
+class CDLODNodeArrays {
+
+    /**
+     * firstChild of leaf nodes and of the nodes whose children haven't been built (or were evicted)
+     */
+    static final int NO_CHILDREN = -1;
+
+    /**
+     * Selection bits stored in SelectionResults: [0,3] -> part of the node that covers children i's area. [4] -> Whole node
+     */
+    static final byte SELECTED_WHOLE = 1 << 4;
+    static final byte SELECTED_QUARTERS = 0xF;
+
+    private static final int initialCapacity = 1 + 4 * 64;
+
+    /**
+     * Used slots: the root plus 4 per allocated block, including the blocks in the free list
+     */
+    int nodeCount;
+
+    /*
+     * Node bounding boxes (world space)
+     */
+    float[] minX;
+    float[] minY;
+    float[] minZ;
+    float[] maxX;
+    float[] maxY;
+    float[] maxZ;
+
+    /**
+     * LOD level of each node, 0 is the most detailed level (leaf nodes)
+     */
+    short[] lod;
+
+    /**
+     * Position of the node's grid origin inside the terrain plane
+     */
+    float[] xOffset;
+    float[] zOffset;
+
+    /**
+     * Index of the first of the 4 children of each node, NO_CHILDREN if they aren't built
+     */
+    int[] firstChild;
+    int[] parent;
+
+    /**
+     * Last frame the selection visited each node, subtrees that go unvisited are evicted
+     */
+    int[] lastUsed;
+
+    /**
+     * Horizon occlusion point of each node, relative to the sphere center and in units of the
+     * sphere radius (see calcHorizonPoint), and its squared length. horizonLength2 is negative for
+     * the nodes that can't be occluded by the sphere (they are too big).
+     */
+    float[] horizonX;
+    float[] horizonY;
+    float[] horizonZ;
+    float[] horizonLength2;
+
+    /**
+     * Sphere center in world space
+     */
+    float centerX, centerY, centerZ;
+
+    /**
+     * Frustum plane that rejected each node the last time it was culled, see Frustum.testBox
+     */
+    byte[] lastPlane;
+
+    /*
+     * Incremental selection state (see CDLODQuadTree.traverse)
+     *
+     * slack: how much the camera can still move before any decision taken inside the node's
+     * subtree could change. selStart/selEnd: range of the subtree's entries in the selection of
+     * the frame stored in visitFrame.
+     */
+    float[] slack;
+    int[] selStart;
+    int[] selEnd;
+    int[] visitFrame;
+
+    /**
+     * Quad size of the grid mesh at each LOD level
+     */
+    float[] lodQuadScale;
+
+    /**
+     * Side of the nodes of each LOD level, and the quads per side of the grid they are drawn
+     * with (see GridMeshSet)
+     */
+    private float[] lodSide;
+    private int[] lodGrid;
+
+    /**
+     * Upper bound of the geometric error of the nodes of each LOD level: the error of a quad
+     * of its grid (see quadError), plus the sphere curvature the flat quads miss
+     */
+    float[] lodError;
+
+    private float slope;
+    private short nLods;
+    private float terrainWidth;
+    private MinMaxHeightPyramid heights;
+    private float heightScale;
+
+    /**
+     * First slot of the evicted blocks, ready to be reused
+     */
+    private int[] freeBlocks = new int[16];
+    private int freeCount = 0;
+    private int liveNodes = 0;
+
+    /**
+     * Terrain plane to world space: rotation (rows) and translation, see setWorldTransform
+     */
+    private float m00 = 1, m01, m02, m10, m11 = 1, m12, m20, m21, m22 = 1;
+    private float tx, ty, tz;
+
+    //scratch data
+    private float[] heightRange = new float[2];
+    private float[] sampleX = new float[3];
+    private float[] sampleZ = new float[3];
+    private float[] point = new float[3];
+    private int[] evictStack;
+    private int[] freeStack;
+
+    /**
+     * @param heights     height range lookup of the displacement map, null if the pixels of the
+     *                    heightmap weren't available (the whole [0,heightScale] range is used)
+     * @param heightScale displacement of a heightmap value of 1 (yscale)
+     */
+    CDLODNodeArrays(short _nLods, int _gridSize, float rootQuadScale, float _terrainWidth,
+                    MinMaxHeightPyramid _heights, float _heightScale) {
+        nLods = _nLods;
+        terrainWidth = _terrainWidth;
+        heights = _heights;
+        heightScale = _heightScale;
+
+        lodSide = new float[nLods];
+        lodGrid = new int[nLods];
+        for (int l = nLods - 1; l >= 0; l--) {
+            lodSide[l] = _gridSize * rootQuadScale / (float) Math.pow(2, nLods - 1 - l);
+            lodGrid[l] = _gridSize;
+        }
+
+        slope = heights != null
+                ? heights.maxCellRelief() * heightScale / (heights.baseCellSize() * terrainWidth / heights.getWidth())
+                : heightScale / lodSide[0];
+
+        lodQuadScale = new float[nLods];
+        lodError = new float[nLods];
+        updateLodErrors();
+
+        // depth first, at most 3 pending siblings per level
+        evictStack = new int[3 * nLods + 1];
+        freeStack = new int[3 * nLods + 1];
+
+        resize(initialCapacity);
+        reset();
+    }
+
+    /**
+     * Draw every LOD level with a grid of the given quads per node side. The nodes are dropped,
+     * their bounds depend on the errors.
+     */
+    void setLodGrids(int[] grids) {
+        System.arraycopy(grids, 0, lodGrid, 0, nLods);
+        updateLodErrors();
+        reset();
+    }
+
+    private void updateLodErrors() {
+        for (int l = 0; l < nLods; l++) {
+            lodQuadScale[l] = lodSide[l] / lodGrid[l];
+            lodError[l] = quadError(l, lodGrid[l]) + sagitta(l);
+        }
+    }
+
+    /**
+     * Estimate of how far a flat quad of a LOD level's nodes drawn with a grid of gridSize quads
+     * per side can be from the terrain: the terrain slope times the quad size, or the biggest
+     * height difference of the height pyramid cells twice as big as the quad (a quad overlaps
+     * them), whatever is smaller. Sphere curvature not included.
+     */
+    float quadError(int lod, int gridSize) {
+        float quad = lodSide[lod] / gridSize;
+        float error = Math.min(heightScale, slope * quad);
+
+        if (heights != null)
+            error = Math.min(error, heights.maxRelief(2 * quad * heights.getWidth() / terrainWidth) * heightScale);
+
+        return error;
+    }
+
+    /**
+     * @return heightmap texels along the side of a LOD level's nodes, 0 if the heightmap size is
+     * unknown
+     */
+    float lodTexels(int lod) {
+        return heights != null ? lodSide[lod] * heights.getWidth() / terrainWidth : 0;
+    }
+
+    private void resize(int capacity) {
+        minX = resize(minX, capacity);
+        minY = resize(minY, capacity);
+        minZ = resize(minZ, capacity);
+        maxX = resize(maxX, capacity);
+        maxY = resize(maxY, capacity);
+        maxZ = resize(maxZ, capacity);
+        lod = lod == null ? new short[capacity] : Arrays.copyOf(lod, capacity);
+        xOffset = resize(xOffset, capacity);
+        zOffset = resize(zOffset, capacity);
+        firstChild = resize(firstChild, capacity);
+        parent = resize(parent, capacity);
+        lastUsed = resize(lastUsed, capacity);
+        horizonX = resize(horizonX, capacity);
+        horizonY = resize(horizonY, capacity);
+        horizonZ = resize(horizonZ, capacity);
+        horizonLength2 = resize(horizonLength2, capacity);
+        lastPlane = lastPlane == null ? new byte[capacity] : Arrays.copyOf(lastPlane, capacity);
+        slack = resize(slack, capacity);
+        selStart = resize(selStart, capacity);
+        selEnd = resize(selEnd, capacity);
+        visitFrame = resize(visitFrame, capacity);
+    }
+
+    private static float[] resize(float[] a, int capacity) {
+        return a == null ? new float[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    private static int[] resize(int[] a, int capacity) {
+        return a == null ? new int[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    /**
+     * @return size of the node arrays, node indices are always below it
+     */
+    int capacity() {
+        return lod.length;
+    }
+
+    /**
+     * @return nodes currently in the tree (not counting the free list)
+     */
+    int liveNodes() {
+        return liveNodes;
+    }
+
+    /**
+     * Distance from the middle of a quad of the LOD level to the sphere
+     */
+    private float sagitta(int lod) {
+        float quad = lodQuadScale[lod];
+        return quad * quad / (4f * terrainWidth);
+    }
+
+    float nodeSide(int node) {
+        return lodSide[lod[node]];
+    }
+
+    float lodSide(int lod) {
+        return lodSide[lod];
+    }
+
+    int lodGrid(int lod) {
+        return lodGrid[lod];
+    }
+
+    /**
+     * Drop every node but the root and rebuild the root's bounds
+     */
+    void reset() {
+        nodeCount = 1;
+        freeCount = 0;
+        liveNodes = 1;
+
+        lod[0] = (short) (nLods - 1);
+        parent[0] = -1;
+        xOffset[0] = 0;
+        zOffset[0] = 0;
+        initNode(0, 0);
+    }
+
+    /**
+     * Set the terrain plane to world space transform and rebuild the tree.
+     * <p>
+     * Same transform as BoundingBox.updateBoxValues (rotation around the face pivot, face
+     * translation, rotation around the planet pivot), folded into a single rotation and
+     * translation. The rotation is built from the quaternions alone, deriving it from transformed
+     * points would lose most of its precision next to the planet scale translation.
+     */
+    void setWorldTransform(Transform t, Transform planetTransform) {
+        Vec3f x = rotate(new Vec3f(1, 0, 0), t, planetTransform);
+        Vec3f y = rotate(new Vec3f(0, 1, 0), t, planetTransform);
+        Vec3f z = rotate(new Vec3f(0, 0, 1), t, planetTransform);
+
+        m00 = x.x; m01 = y.x; m02 = z.x;
+        m10 = x.y; m11 = y.y; m12 = z.y;
+        m20 = x.z; m21 = y.z; m22 = z.z;
+
+        // image of the terrain plane origin
+        Vec3f o = new Vec3f();
+        o.sub(t.objectPivotPosition);
+        t.rotation.multLocal(o);
+        o.add(t.objectPivotPosition);
+        o.add(t.position);
+        o.sub(planetTransform.objectPivotPosition);
+        planetTransform.rotation.multLocal(o);
+        o.add(planetTransform.objectPivotPosition);
+
+        tx = o.x;
+        ty = o.y;
+        tz = o.z;
+
+        float r = terrainWidth * 0.5f;
+        centerX = m00 * r - m01 * r + m02 * r + tx;
+        centerY = m10 * r - m11 * r + m12 * r + ty;
+        centerZ = m20 * r - m21 * r + m22 * r + tz;
+
+        reset();
+    }
+
+    private static Vec3f rotate(Vec3f v, Transform t, Transform planetTransform) {
+        t.rotation.multLocal(v);
+        planetTransform.rotation.multLocal(v);
+        return v;
+    }
+
+    /**
+     * @return index of the node's first child, the 4 children are built if they don't exist.
+     * Not valid for leaf nodes (lod 0)
+     */
+    int children(int node, int frame) {
+        int first = firstChild[node];
+        if (first != NO_CHILDREN)
+            return first;
+
+        first = allocateBlock();
+        firstChild[node] = first;
+        float halfSide = nodeSide(node) / 2f;
+
+        for (int i = 0; i < 4; i++) {
+            int child = first + i;
+            lod[child] = (short) (lod[node] - 1);
+            parent[child] = node;
+            xOffset[child] = xOffset[node] + (i & 1) * halfSide;
+            zOffset[child] = zOffset[node] + (i >> 1) * halfSide;
+            initNode(child, frame);
+        }
+
+        liveNodes += 4;
+        return first;
+    }
+
+    private void initNode(int node, int frame) {
+        firstChild[node] = NO_CHILDREN;
+        lastUsed[node] = frame;
+        lastPlane[node] = 0;
+        visitFrame[node] = -1;
+        calcBounds(node);
+    }
+
+    private int allocateBlock() {
+        if (freeCount > 0)
+            return freeBlocks[--freeCount];
+
+        if (nodeCount + 4 > capacity())
+            resize(1 + 2 * (capacity() - 1));
+
+        int first = nodeCount;
+        nodeCount += 4;
+        return first;
+    }
+
+    /**
+     * Free the children of every node whose 4 children weren't visited in the last maxAge frames.
+     * <p>
+     * The incremental selection state of that node and all its ancestors is invalidated: the
+     * selection ranges they stored may hold the freed nodes.
+     *
+     * @return number of freed nodes
+     */
+    int evict(int frame, int maxAge) {
+        int freed = 0;
+        int limit = frame - maxAge;
+        int top = 0;
+        evictStack[top++] = 0;
+
+        while (top > 0) {
+            int node = evictStack[--top];
+            int first = firstChild[node];
+
+            if (first == NO_CHILDREN)
+                continue;
+
+            if (lastUsed[first] < limit && lastUsed[first + 1] < limit
+                    && lastUsed[first + 2] < limit && lastUsed[first + 3] < limit) {
+                freed += freeSubtree(node);
+
+                for (int a = node; a != -1; a = parent[a])
+                    visitFrame[a] = -1;
+            } else {
+                for (int i = 3; i >= 0; i--)
+                    evictStack[top++] = first + i;
+            }
+        }
+
+        liveNodes -= freed;
+        return freed;
+    }
+
+    /**
+     * Return every descendant of the node to the free list
+     */
+    private int freeSubtree(int node) {
+        int freed = 0;
+        int top = 0;
+        freeStack[top++] = node;
+
+        while (top > 0) {
+            int n = freeStack[--top];
+            int first = firstChild[n];
+
+            if (first == NO_CHILDREN)
+                continue;
+
+            firstChild[n] = NO_CHILDREN;
+            for (int i = 0; i < 4; i++)
+                freeStack[top++] = first + i;
+
+            if (freeCount == freeBlocks.length)
+                freeBlocks = Arrays.copyOf(freeBlocks, freeCount * 2);
+            freeBlocks[freeCount++] = first;
+            freed += 4;
+        }
+
+        return freed;
+    }
+
+    /**
+     * Analytic bounds of the spherized and displaced node area
+     * <p>
+     * Same spherization as the vertex shader: a point of the terrain plane is pushed along the
+     * direction from the sphere center (r,-r,r) to the point, to the radius r + height. Over the
+     * node's area each spherized coordinate only has extremes at the corners, at the edge points
+     * closest to the face center or at the point closest to it, so the box is built from those 9
+     * points, each displaced by the min and max heights of the area. The direction is normalized
+     * with a real square root, the fast inverse square root approximation is off by a few
+     * kilometers at planet scale.
+     */
+    private void calcBounds(int node) {
+        float x = xOffset[node];
+        float z = zOffset[node];
+        float side = nodeSide(node);
+        float sphereRadius = terrainWidth * 0.5f;
+
+        sampleX[0] = x;
+        sampleX[1] = x + side;
+        sampleX[2] = Math.max(x, Math.min(x + side, sphereRadius));
+        sampleZ[0] = z;
+        sampleZ[1] = z + side;
+        sampleZ[2] = Math.max(z, Math.min(z + side, sphereRadius));
+
+        float hmin = 0;
+        float hmax = heightScale;
+
+        if (heights != null) {
+            heights.query(x / terrainWidth, z / terrainWidth, (x + side) / terrainWidth, (z + side) / terrainWidth, heightRange);
+            hmin = heightRange[0] * heightScale;
+            hmax = heightRange[1] * heightScale;
+        }
+
+        float bMinX = Float.MAX_VALUE, bMinY = Float.MAX_VALUE, bMinZ = Float.MAX_VALUE;
+        float bMaxX = -Float.MAX_VALUE, bMaxY = -Float.MAX_VALUE, bMaxZ = -Float.MAX_VALUE;
+
+        for (float sx : sampleX)
+            for (float sz : sampleZ) {
+                double dx = sx - sphereRadius;
+                double dy = sphereRadius;
+                double dz = sz - sphereRadius;
+                double invLength = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+                dx *= invLength;
+                dy *= invLength;
+                dz *= invLength;
+
+                for (int i = 0; i < 2; i++) {
+                    toWorld(dx, dy, dz, sphereRadius + (i == 0 ? hmin : hmax), point, 0);
+                    float wx = point[0];
+                    float wy = point[1];
+                    float wz = point[2];
+
+                    bMinX = Math.min(bMinX, wx);
+                    bMinY = Math.min(bMinY, wy);
+                    bMinZ = Math.min(bMinZ, wz);
+                    bMaxX = Math.max(bMaxX, wx);
+                    bMaxY = Math.max(bMaxY, wy);
+                    bMaxZ = Math.max(bMaxZ, wz);
+                }
+            }
+
+        minX[node] = bMinX;
+        minY[node] = bMinY;
+        minZ[node] = bMinZ;
+        maxX[node] = bMaxX;
+        maxY[node] = bMaxY;
+        maxZ[node] = bMaxZ;
+
+        calcHorizonPoint(node);
+    }
+
+    /**
+     * Spherize and transform a point: the world space position at the given radius from the
+     * sphere center, along the (unit) direction d of the terrain plane space
+     */
+    private void toWorld(double dx, double dy, double dz, double radius, float[] out, int offset) {
+        double px = terrainWidth * 0.5 + dx * radius;
+        double py = -terrainWidth * 0.5 + dy * radius;
+        double pz = terrainWidth * 0.5 + dz * radius;
+
+        out[offset] = (float) (m00 * px + m01 * py + m02 * pz + tx);
+        out[offset + 1] = (float) (m10 * px + m11 * py + m12 * pz + ty);
+        out[offset + 2] = (float) (m20 * px + m21 * py + m22 * pz + tz);
+    }
+
+    /**
+     * Occluder geometry of a node, for the OcclusionBuffer: the node's area split in
+     * subdivision^2 quads, each one spherized at the min height of its area
+     * <p>
+     * The terrain is solid from the min height up to the surface, so a ray that goes through one
+     * of these quads already went through the terrain: they hide as much as the terrain at most.
+     * Their corners are on the min height sphere and their insides below it, the quads are only
+     * lowered by the chord error of the grid mesh (it can go below the sphere between vertices),
+     * for this LOD and the coarser one it morphs to.
+     *
+     * @param out receives 4 corners (x,y,z) per quad, at least 12 * subdivision^2 floats
+     */
+    void occluder(int node, int subdivision, float[] out) {
+        float side = nodeSide(node) / subdivision;
+        float sphereRadius = terrainWidth * 0.5f;
+        int l = Math.min(lod[node] + 1, nLods - 1);
+        float lowering = sagitta(l);
+        int o = 0;
+
+        for (int j = 0; j < subdivision; j++)
+            for (int i = 0; i < subdivision; i++) {
+                float x = xOffset[node] + i * side;
+                float z = zOffset[node] + j * side;
+                float hmin = 0;
+
+                if (heights != null) {
+                    heights.query(x / terrainWidth, z / terrainWidth, (x + side) / terrainWidth, (z + side) / terrainWidth, heightRange);
+                    hmin = heightRange[0] * heightScale;
+                }
+
+                double radius = sphereRadius + hmin - lowering;
+
+                // around the quad: (x,z) (x+side,z) (x+side,z+side) (x,z+side)
+                for (int c = 0; c < 4; c++) {
+                    double dx = x + ((c == 1 || c == 2) ? side : 0) - sphereRadius;
+                    double dy = sphereRadius;
+                    double dz = z + (c >= 2 ? side : 0) - sphereRadius;
+                    double invLength = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                    toWorld(dx * invLength, dy * invLength, dz * invLength, radius, out, o);
+                    o += 3;
+                }
+            }
+    }
+
+    /**
+     * Horizon occlusion point of the node's box (https://cesium.com/blog/2013/05/09/computing-the-horizon-occlusion-point/)
+     * <p>
+     * In a space where the sphere has radius 1, every point Q outside of it is hidden by the
+     * sphere for the viewers inside the cone tangent to the sphere with its apex at Q. The
+     * occlusion point is the point along the direction to the box center whose cone is contained
+     * in the cones of all the box corners: when it's hidden, the whole box is. For each corner,
+     * at angle a from the direction and with its cone's half angle b (cos b = 1/|Q|), the apex
+     * distance is 1/cos(a + b), the point takes the biggest one.
+     */
+    private void calcHorizonPoint(int node) {
+        double invRadius = 2.0 / terrainWidth;
+
+        // direction of the box center
+        double dx = ((minX[node] + (double) maxX[node]) * 0.5 - centerX) * invRadius;
+        double dy = ((minY[node] + (double) maxY[node]) * 0.5 - centerY) * invRadius;
+        double dz = ((minZ[node] + (double) maxZ[node]) * 0.5 - centerZ) * invRadius;
+        double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        dx /= length;
+        dy /= length;
+        dz /= length;
+
+        double maxMagnitude = 0;
+
+        for (int i = 0; i < 8; i++) {
+            double qx = (((i & 1) == 0 ? minX[node] : maxX[node]) - (double) centerX) * invRadius;
+            double qy = (((i & 2) == 0 ? minY[node] : maxY[node]) - (double) centerY) * invRadius;
+            double qz = (((i & 4) == 0 ? minZ[node] : maxZ[node]) - (double) centerZ) * invRadius;
+
+            double magnitude = Math.max(1, Math.sqrt(qx * qx + qy * qy + qz * qz));
+            double cosA = Math.min(1, (qx * dx + qy * dy + qz * dz) / magnitude);
+            double sinA = Math.sqrt(1 - cosA * cosA);
+            double cosB = 1 / magnitude;
+            double sinB = Math.sqrt(1 - cosB * cosB);
+
+            double cosAB = cosA * cosB - sinA * sinB;
+            if (cosAB <= 1e-6) {
+                // a + b >= 90 degrees: no point along the direction occludes this corner
+                horizonLength2[node] = -1;
+                return;
+            }
+
+            maxMagnitude = Math.max(maxMagnitude, 1 / cosAB);
+        }
+
+        horizonX[node] = (float) (dx * maxMagnitude);
+        horizonY[node] = (float) (dy * maxMagnitude);
+        horizonZ[node] = (float) (dz * maxMagnitude);
+        horizonLength2[node] = (float) (maxMagnitude * maxMagnitude);
+    }
+
+    /**
+     * Box / sphere intersection (Quick Rejection Intersection)
+     */
+    boolean inSphereQRI(int node, float radius, float cx, float cy, float cz) {
+        float d = 0;
+
+        //X
+        float e = Math.max(minX[node] - cx, 0) + Math.max(cx - maxX[node], 0);
+        if (e >= radius) return false;
+        d += e * e;
+
+        //Y
+        e = Math.max(minY[node] - cy, 0) + Math.max(cy - maxY[node], 0);
+        if (e >= radius) return false;
+        d += e * e;
+
+        //Z
+        e = Math.max(minZ[node] - cz, 0) + Math.max(cz - maxZ[node], 0);
+        if (e >= radius) return false;
+        d += e * e;
+
+        return d <= radius * radius;
+    }
+
+    /**
+     * Distance from a point to the node's bounding box, 0 when the point is inside
+     */
+    float boxDistance(int node, float cx, float cy, float cz) {
+        float ex = Math.max(minX[node] - cx, 0) + Math.max(cx - maxX[node], 0);
+        float ey = Math.max(minY[node] - cy, 0) + Math.max(cy - maxY[node], 0);
+        float ez = Math.max(minZ[node] - cz, 0) + Math.max(cz - maxZ[node], 0);
+        return (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+    }
+
+    /**
+     * Distance from a point to the furthest corner of the node's bounding box
+     */
+    float farCornerDistance(int node, float cx, float cy, float cz) {
+        float ex = Math.max(Math.abs(minX[node] - cx), Math.abs(maxX[node] - cx));
+        float ey = Math.max(Math.abs(minY[node] - cy), Math.abs(maxY[node] - cy));
+        float ez = Math.max(Math.abs(minZ[node] - cz), Math.abs(maxZ[node] - cz));
+        return (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+    }
+}
@@ -5,13 +5,19 @@ import android.opengl.Matrix;
 import com.sdgapps.terrainsandbox.MiniEngine.MatrixManager;
 import com.sdgapps.terrainsandbox.MiniEngine.RenderPackage;
 import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Frustum;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.LineCube;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Transform;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.ArrayTexture;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture2D;
+import com.sdgapps.terrainsandbox.utils.Logger;
+
+import java.util.Arrays;
 
 public class CDLODQuadTree {
 
@@ -36,6 +42,9 @@ public class CDLODQuadTree {
      * <p>
      * Detail ranges, resolution and number of lods are the more important parameters to
      * tweak and balance performance and quality.
+     * <p>
+     * The node sides are measured in gridSize quads of their LOD, the grid a LOD level is drawn
+     * with may have more or fewer quads, see setLodGrids.
      */
     private int gridSize;
 
@@ -56,14 +65,143 @@ public class CDLODQuadTree {
     public Vec3f middlePoint;
 
     /**
-     * Root node of the quad tree
+     * Nodes of the quad tree built so far, the root is node 0
+     */
+    private CDLODNodeArrays nodes;
+
+    /**
+     * Explicit stack used by the iterative node selection: node index, frustum planes that still
+     * intersect the node's parent (see Frustum.testBox) and the smallest distance to the planes
+     * the parent is completely inside of
+     */
+    private int[] stackNodes;
+    private int[] stackPlanes;
+    private float[] stackMargin;
+
+    /**
+     * Incremental selection: reuse last frame's results for the subtrees the camera movement
+     * can't have changed. A full traversal still runs every FULL_SELECTION_INTERVAL frames.
+     */
+    boolean incrementalSelection = true;
+    private static final int FULL_SELECTION_INTERVAL = 60;
+    private static final float SLACK_EPSILON = 1e-5f;
+
+    /**
+     * Subtrees that haven't been visited in EVICTION_AGE frames are freed, the check runs every
+     * EVICTION_INTERVAL frames. The age is longer than the full selection interval, so subtrees
+     * that are only reused by the incremental selection stay alive.
+     */
+    private static final int EVICTION_AGE = 300;
+    private static final int EVICTION_INTERVAL = 60;
+
+    /**
+     * Index of this tree among the planet's faces, selects its entry in SelectionView.selections
+     */
+    int face;
+
+    /**
+     * Layer of the planet's texture arrays that holds the maps of this face
+     */
+    final int layer;
+
+    /**
+     * Views a single traversal can select for: the main camera plus the secondary views
      */
-    private CDLODNode root;
+    static final int MAX_VIEWS = 8;
+
+    /*
+     * Multi view traversal state, see traverseViews. Slot 0 is the main camera.
+     */
+    private int[] stackViews;
+    private int[] stackViewPlanes;
+    private final SelectionResults[] viewOutput = new SelectionResults[MAX_VIEWS];
+    private final Frustum[] viewFrustum = new Frustum[MAX_VIEWS];
+    private final float[][] viewRanges = new float[MAX_VIEWS][];
+    private final float[] viewX = new float[MAX_VIEWS];
+    private final float[] viewY = new float[MAX_VIEWS];
+    private final float[] viewZ = new float[MAX_VIEWS];
+    private final boolean[] viewHorizon = new boolean[MAX_VIEWS];
+    private final float[] viewHorizonX = new float[MAX_VIEWS];
+    private final float[] viewHorizonY = new float[MAX_VIEWS];
+    private final float[] viewHorizonZ = new float[MAX_VIEWS];
+    private final float[] viewHorizon2 = new float[MAX_VIEWS];
+    private final byte[][] viewLastPlane = new byte[MAX_VIEWS][];
+    private final int[] childViews = new int[4];
+    private final int[] viewChildPlanes = new int[4 * MAX_VIEWS];
+
+    /**
+     * Occlusion culling against the terrain itself, null when disabled. Set by the planet, the
+     * occluders are drawn before the selection (see rasterizeOccluders).
+     */
+    OcclusionBuffer occlusion;
+
+    /**
+     * Tests that can cull a node, see recordCulled
+     */
+    static final byte CULLED_FRUSTUM = 0;
+    static final byte CULLED_HORIZON = 1;
+    static final byte CULLED_OCCLUSION = 2;
+
+    /**
+     * Colour of the debug bounds of the selected nodes, and of the culled ones per test
+     */
+    private static final float[] selectedBoundsColor = {0, 1, 0};
+    private static final float[][] culledBoundsColors = {{1, 0, 0}, {0, 0.4f, 1}, {1, 1, 0}};
+
+    /**
+     * Keep the nodes the main camera's selection culls, and the test that culled them, for the
+     * debug bounds (see addBounds). Set by the planet. The incremental selection doesn't visit the
+     * subtrees it reuses, it's disabled while recording.
+     */
+    boolean recordCulled;
+    private int[] culledNodes = new int[64];
+    private byte[] culledTests = new byte[64];
+    private int culledCount = 0;
+
+    /**
+     * Occluders: the nearest nodes of the last selection up to this LOD, split in
+     * OCCLUDER_SUBDIVISION^2 quads each
+     */
+    private static final int OCCLUDER_MAX_LOD = 1;
+    private static final int MAX_OCCLUDERS = 16;
+    private static final int OCCLUDER_SUBDIVISION = 4;
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int M_MATRIX_ID = GLSLProgram.uniformId("u_MMatrix");
+    private static final int MVP_MATRIX_ID = GLSLProgram.uniformId("u_MVPMatrix");
+    private static final int MV_MATRIX_ID = GLSLProgram.uniformId("u_MVMatrix");
+
+    private int[] occluderNodes = new int[MAX_OCCLUDERS];
+    private float[] occluderDistances = new float[MAX_OCCLUDERS];
+    private float[] occluderQuads = new float[12 * OCCLUDER_SUBDIVISION * OCCLUDER_SUBDIVISION];
+
+    private SelectionResults previousSelection = new SelectionResults();
+    private int frame = 0;
+    private int framesSinceFullPass = 0;
+    private boolean forceFullPass = true;
+    private int[] visited;
+    private int visitedCount;
+    private float moveDistance;
+    private float moveAngle;
+    private float[] frustumDistances = new float[2];
+    private float horizonCamX, horizonCamY, horizonCamZ, horizonCam2, horizonScale;
+    private float[] lastRanges;
+    private float[] lastProjection = new float[16];
+    private Vec3f lastCameraPos = new Vec3f();
+    private Vec3f lastOrigin = new Vec3f();
+    private Vec3f lastView = new Vec3f();
+    private Vec3f lastUp = new Vec3f();
+    private Vec3f lastRight = new Vec3f();
     //private float[] shadowMapMVPMatrix = new float[16];
     private boolean initialized;
     private SelectionResults selection = new SelectionResults();
 
-    private Material boundingBoxMaterial;
+    /**
+     * Counters of the last selection and of the draws since then
+     */
+    SelectionStats stats;
 
     private float[] rangeDistance;
     private float[] morphconstz;
@@ -72,8 +210,12 @@ public class CDLODQuadTree {
     public Material material;
     public Transform transform;
 
-    CDLODQuadTree(Material mat, int _gridSize, float _rootQuadScale, short _nLods, float _yscale,
-                  float[] _ranges, float[] _morphconstz, float[] _rangeDistance, Material _boundingBoxMaterial) {
+    /**
+     * @param mat    the planet's material, shared by all the faces
+     * @param _layer see layer
+     */
+    CDLODQuadTree(Material mat, int _layer, int _gridSize, float _rootQuadScale, short _nLods, float _yscale,
+                  float[] _ranges, float[] _morphconstz, float[] _rangeDistance, HeightPyramidCache pyramidCache) {
         super();
         gridSize = _gridSize;
         rootQuadScale = _rootQuadScale;
@@ -89,29 +231,788 @@ public class CDLODQuadTree {
         transform.objectPivotPosition.set(terrainXZ / 2f, 0, terrainXZ / 2f);
 
         material = mat;
-        root = new CDLODNode((short)(nLods - 1), rootQuadScale, 0, 0, gridSize, gridSize * rootQuadScale, (Texture2D)material.getTexture(Planet.heightmapUniformName));
-        boundingBoxMaterial = _boundingBoxMaterial;
+        layer = _layer;
+        nodes = new CDLODNodeArrays(nLods, gridSize, rootQuadScale, terrainXZ, buildHeightPyramid(pyramidCache), yscale);
+
+        // depth first traversal: at most 3 pending siblings per level plus the node being expanded
+        stackNodes = new int[3 * nLods + 1];
+        stackPlanes = new int[3 * nLods + 1];
+        stackMargin = new float[3 * nLods + 1];
+        stackViews = new int[3 * nLods + 1];
+        stackViewPlanes = new int[(3 * nLods + 1) * MAX_VIEWS];
+        visited = new int[nodes.capacity()];
+        lastRanges = new float[ranges.length];
+        stats = new SelectionStats(nLods);
         initialized = true;
     }
 
+    /**
+     * Min/max pyramid of the displacement map. Its base cells are half the size of a leaf node,
+     * so leaf queries stay close to the real height range of the node.
+     *
+     * @param cache null to always build the pyramid
+     * @return null if the heightmap pixels aren't available
+     */
+    private MinMaxHeightPyramid buildHeightPyramid(HeightPyramidCache cache) {
+        Texture texture = material.getTexture(Planet.heightmapUniformId);
+        Texture2D heightmap = null;
+        if (texture instanceof ArrayTexture)
+            heightmap = ((ArrayTexture) texture).getLayerImage(layer);
+
+        if (heightmap == null || !heightmap.hasPixels()) {
+            Logger.err("CDLOD: heightmap pixels not available, node bounds use the full height range");
+            return null;
+        }
+
+        int leafTexels = heightmap.getWidth() >> (nLods - 1);
+        if (cache != null)
+            return cache.get(heightmap, nLods, leafTexels / 2);
+        return new MinMaxHeightPyramid(heightmap, leafTexels / 2);
+    }
+
+    /**
+     * Id used to sort the selected nodes by material (see SelectionResults.ORDER_MATERIAL)
+     */
+    void setMaterialId(int id) {
+        selection.materialId = id;
+        previousSelection.materialId = id;
+    }
+
     /**
      * CDLOD node selection
      * @param mainCamera
      */
     int LodSelect(Camera mainCamera) {
-        selection.clear();
+        int lowestLod = selectNodes(mainCamera);
+        transform.updateModelMatrix();
+        return lowestLod;
+    }
+
+    /**
+     * Node selection only, safe to run on a worker thread: it only writes to this tree's
+     * selection and stack, and doesn't use the (static) vector pools.
+     *
+     * @return lowest lod reached
+     */
+    int selectNodes(Camera mainCamera) {
+        return selectNodes(mainCamera, null, 0);
+    }
 
+    /**
+     * Node selection for the main camera and a set of secondary views, in a single traversal
+     * (see traverseViews). Same threading rules as selectNodes(Camera).
+     *
+     * @param views     the first viewCount are selected, can be null if viewCount is 0
+     * @return lowest lod reached by the main camera's selection
+     */
+    int selectNodes(Camera mainCamera, SelectionView[] views, int viewCount) {
+        long start = System.nanoTime();
+        beginSelection();
 
         if (initialized) {
-            root.LODSelect(mainCamera, selection, false,ranges,morphconstz,terrainXZ * 0.5f);
+            if (viewCount == 0)
+                traverse(mainCamera);
+            else
+                traverseViews(mainCamera, views, viewCount);
         }
 
-        transform.updateModelMatrix();
+        endSelection(start);
+        return selection.getLowestLodReached();
+    }
+
+    /**
+     * Selection of the secondary views only, when the main camera's selection is done by
+     * another method (screen space error)
+     */
+    void selectViews(SelectionView[] views, int viewCount) {
+        if (initialized && viewCount > 0)
+            traverseViews(null, views, viewCount);
+    }
+
+    private void beginSelection() {
+        SelectionResults last = previousSelection;
+        previousSelection = selection;
+        selection = last;
+        selection.clear();
+        stats.clear();
+        culledCount = 0;
+
+        if (frame % EVICTION_INTERVAL == 0)
+            nodes.evict(frame, EVICTION_AGE);
+    }
+
+    /**
+     * @param start System.nanoTime() when the selection started
+     * @return lowest lod reached
+     */
+    int endSelection(long start) {
+        stats.countSelection(selection);
+        stats.selectionNanos = System.nanoTime() - start;
         return selection.getLowestLodReached();
     }
 
-    void draw(RenderPackage pass, GridMesh gridMesh, Transform planetTransform) {
-        if (selection.getSelectionList().size() > 0) {
+    /*
+     * Screen space error selection: the order nodes are refined in is decided by
+     * ScreenErrorSelection, across the faces of the planet. These only do the per node work.
+     */
+
+    /**
+     * Start a screen space error selection. It doesn't keep the incremental selection state,
+     * so the next depth first selection runs a full pass.
+     */
+    void beginScreenErrorSelection() {
+        beginSelection();
+        frame++;
+        forceFullPass = true;
+    }
+
+    /**
+     * @return true if the root node is in range and not culled
+     */
+    boolean rootVisible(Camera camera) {
+        Vec3f cameraPos = camera.gameObject.transform.position;
+
+        if (!initialized || !nodes.inSphereQRI(0, ranges[nodes.lod[0]], cameraPos.x, cameraPos.y, cameraPos.z)) {
+            stats.culledByRange++;
+            return false;
+        }
+
+        setHorizonCamera(cameraPos);
+        return !culled(0, camera);
+    }
+
+    /**
+     * Horizon and frustum culling of a single node
+     */
+    private boolean culled(int node, Camera camera) {
+        final CDLODNodeArrays n = nodes;
+
+        n.lastUsed[node] = frame;
+        stats.nodesVisited++;
+
+        if (horizonDistance(node) > 0) {
+            stats.culledByHorizon++;
+            addCulled(node, CULLED_HORIZON);
+            return true;
+        }
+
+        if (camera.frustum.testBox(n.minX, n.minY, n.minZ, n.maxX, n.maxY, n.maxZ,
+                node, Frustum.ALL_PLANES, n.lastPlane, null) == Frustum.CULLED) {
+            stats.culledByFrustum++;
+            addCulled(node, CULLED_FRUSTUM);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param pixelsPerUnit pixels covered by a unit length seen from a unit distance:
+     *                      viewport height / (2 * tan(vertical fov / 2))
+     * @return the error bound of the node's LOD level (the one its range is built from, see
+     * lodError) projected on the screen from the node's nearest point, in pixels
+     */
+    float projectedError(int node, Vec3f cameraPos, float pixelsPerUnit) {
+        float distance = nodes.boxDistance(node, cameraPos.x, cameraPos.y, cameraPos.z);
+        return distance > 0 ? nodes.lodError[nodes.lod[node]] * pixelsPerUnit / distance : Float.MAX_VALUE;
+    }
+
+    /**
+     * Split a node in its children. Children out of their LOD range are left to the node, the
+     * same way the depth first selection does. The children are only built (and counted in the
+     * stats) if some of them can be in range.
+     *
+     * @param visibleChildren receives child i's index in slot i, -1 if it was culled or is out of range
+     * @return the quarters the node has to draw itself
+     */
+    int refine(int node, Camera camera, int[] visibleChildren) {
+        Vec3f cameraPos = camera.gameObject.transform.position;
+        float childRange = ranges[nodes.lod[node] - 1];
+
+        if (!nodes.inSphereQRI(node, childRange, cameraPos.x, cameraPos.y, cameraPos.z)) {
+            // no child can be in range, don't build them
+            Arrays.fill(visibleChildren, -1);
+            return CDLODNodeArrays.SELECTED_QUARTERS;
+        }
+
+        int first = nodes.children(node, frame);
+        int quarters = 0;
+
+        for (int i = 0; i < 4; i++) {
+            int child = first + i;
+            visibleChildren[i] = -1;
+
+            if (!nodes.inSphereQRI(child, childRange, cameraPos.x, cameraPos.y, cameraPos.z)) {
+                quarters |= 1 << i;
+                stats.culledByRange++;
+            } else if (!culled(child, camera)) {
+                visibleChildren[i] = child;
+            }
+        }
+
+        return quarters;
+    }
+
+    void select(int node, byte selectionBits) {
+        selection.add(node, nodes.lod[node], selectionBits);
+    }
+
+    int lod(int node) {
+        return nodes.lod[node];
+    }
+
+    /**
+     * @return geometric error bound of the nodes of a LOD level (see CDLODNodeArrays.lodError)
+     */
+    float lodError(int lod) {
+        return nodes.lodError[lod];
+    }
+
+    /**
+     * @return triangles of a whole node's grid at a LOD level
+     */
+    int nodeTriangles(int lod) {
+        int grid = nodes.lodGrid(lod);
+        return 2 * grid * grid;
+    }
+
+    /**
+     * Draw every LOD level with a grid of the given quads per node side, see GridMeshSet
+     */
+    void setLodGrids(int[] grids) {
+        nodes.setLodGrids(grids);
+    }
+
+    /**
+     * @return error of a quad of a LOD level drawn with a grid of gridSize quads per node side,
+     * see CDLODNodeArrays.quadError
+     */
+    float quadError(int lod, int gridSize) {
+        return nodes.quadError(lod, gridSize);
+    }
+
+    /**
+     * @return heightmap texels along the side of a LOD level's nodes, 0 if unknown
+     */
+    float lodTexels(int lod) {
+        return nodes.lodTexels(lod);
+    }
+
+    /**
+     * @return side of a LOD level's nodes
+     */
+    float lodSide(int lod) {
+        return nodes.lodSide(lod);
+    }
+
+    /**
+     * Non recursive version of the CDLOD node selection.
+     * <p>
+     * A node is only pushed to the stack once its parent has checked that it's inside its LOD
+     * range. The parent selects the quarters whose child nodes are out of range, which is the
+     * area the recursive version handled when a child returned false.
+     * <p>
+     * Incremental mode: while visiting a node we also keep its slack, the smallest margin of
+     * every decision (range, frustum, horizon) taken inside its subtree, measured in how far the
+     * camera would have to move to flip it. Frustum margins also shrink with camera rotation,
+     * by up to angle * distance for the furthest corner of the node. Next frame, a subtree whose
+     * slack is still bigger than the camera movement can't produce a different result, so its
+     * entries are copied from the previous selection instead of traversing it again. Subtree
+     * entries are contiguous because the traversal is depth first.
+     */
+    private void traverse(Camera camera) {
+        final CDLODNodeArrays n = nodes;
+        Vec3f cameraPos = camera.gameObject.transform.position;
+        final float cx = cameraPos.x;
+        final float cy = cameraPos.y;
+        final float cz = cameraPos.z;
+
+        Frustum f = camera.frustum;
+
+        final boolean track = incrementalSelection;
+        /* occlusion has no slack and the culled nodes are only recorded when visited: no reuse
+        while either is enabled, and a full pass once they are disabled */
+        final boolean fullPass = occlusion != null || recordCulled;
+        final boolean reuse = track && measureCameraMovement(cameraPos, f) && !fullPass;
+        if (fullPass)
+            forceFullPass = true;
+        frame++;
+        visitedCount = 0;
+
+        if (!n.inSphereQRI(0, ranges[n.lod[0]], cx, cy, cz)) {
+            // no node was selected (out of range)
+            stats.culledByRange++;
+            return;
+        }
+
+        setHorizonCamera(cameraPos);
+
+        int top = 0;
+        stackNodes[top] = 0;
+        stackPlanes[top] = Frustum.ALL_PLANES;
+        stackMargin[top] = Float.MAX_VALUE;
+        top++;
+
+        while (top > 0) {
+            top--;
+            final int node = stackNodes[top];
+            int planes = stackPlanes[top];
+            float insideMargin = stackMargin[top];
+            n.lastUsed[node] = frame;
+            stats.nodesVisited++;
+
+            if (reuse && n.visitFrame[node] == frame - 1) {
+                float far = n.farCornerDistance(node, cx, cy, cz);
+                float budget = moveDistance + moveAngle * far;
+
+                if (n.slack[node] - budget > SLACK_EPSILON * far) {
+                    // nothing in this subtree can have changed, copy last frame's entries
+                    int start = selection.size();
+                    selection.addRange(previousSelection, n.selStart[node], n.selEnd[node]);
+                    n.selStart[node] = start;
+                    n.selEnd[node] = selection.size();
+                    n.slack[node] -= budget;
+                    n.visitFrame[node] = frame;
+                    addVisited(node);
+                    stats.subtreesReused++;
+                    continue;
+                }
+            }
+
+            if (track) {
+                n.visitFrame[node] = frame;
+                n.selStart[node] = selection.size();
+                addVisited(node);
+            }
+
+            float horizon = horizonDistance(node);
+            float slack = Math.abs(horizon) * horizonScale;
+
+            if (horizon > 0) {
+                stats.culledByHorizon++;
+                addCulled(node, CULLED_HORIZON);
+                endVisit(node, slack);
+                continue;
+            }
+
+            /* Only the planes that intersect the parent are tested, the child is inside the rest
+            too. Those planes can only flip once the camera moves past the parent's margin. */
+            slack = Math.min(slack, insideMargin);
+
+            if (planes != 0) {
+                planes = f.testBox(n.minX, n.minY, n.minZ, n.maxX, n.maxY, n.maxZ,
+                        node, planes, n.lastPlane, track ? frustumDistances : null);
+
+                if (track) {
+                    slack = Math.min(slack, Math.abs(frustumDistances[0]));
+                    if (planes != Frustum.CULLED)
+                        insideMargin = Math.min(insideMargin, frustumDistances[1]);
+                }
+            }
+
+            if (planes == Frustum.CULLED) {
+                // this node is out of frustum, select nothing
+                stats.culledByFrustum++;
+                addCulled(node, CULLED_FRUSTUM);
+                endVisit(node, slack);
+                continue;
+            }
+
+            if (occlusion != null && occlusion.isOccluded(n.minX[node], n.minY[node], n.minZ[node],
+                    n.maxX[node], n.maxY[node], n.maxZ[node])) {
+                // hidden behind closer terrain
+                stats.culledByOcclusion++;
+                addCulled(node, CULLED_OCCLUSION);
+                endVisit(node, slack);
+                continue;
+            }
+
+            final int lod = n.lod[node];
+
+            if (lod == 0) {
+                // we are in our LOD range at the last LOD level (leaf node)
+                selection.add(node, lod, CDLODNodeArrays.SELECTED_WHOLE);
+                endVisit(node, slack);
+                continue;
+            }
+
+            final float childRange = ranges[lod - 1];
+
+            if (track)
+                slack = Math.min(slack, Math.abs(n.boxDistance(node, cx, cy, cz) - childRange));
+
+            if (!n.inSphereQRI(node, childRange, cx, cy, cz)) {
+                // we cover the required lodLevel range
+                selection.add(node, lod, CDLODNodeArrays.SELECTED_WHOLE);
+                endVisit(node, slack);
+                continue;
+            }
+
+            /* We cover the more detailed lodLevel range: some or all of our four child nodes will
+            have to be selected instead. Children are pushed in reverse so they are popped in order */
+            final int first = n.children(node, frame);
+            byte quarters = 0;
+
+            for (int i = 3; i >= 0; i--) {
+                int child = first + i;
+
+                if (track)
+                    slack = Math.min(slack, Math.abs(n.boxDistance(child, cx, cy, cz) - childRange));
+
+                if (!n.inSphereQRI(child, childRange, cx, cy, cz)) {
+                    // the child node is outside of its LOD range, this node (parent) must handle its area
+                    quarters |= 1 << i;
+                    stats.culledByRange++;
+                } else {
+                    stackNodes[top] = child;
+                    stackPlanes[top] = planes;
+                    stackMargin[top] = insideMargin;
+                    top++;
+                }
+            }
+
+            if (quarters != 0) {
+                selection.add(node, lod, quarters);
+            }
+            endVisit(node, slack);
+        }
+
+        if (track) {
+            // children are visited after their parent: walk backwards to fold subtrees into their parents
+            for (int i = visitedCount - 1; i > 0; i--) {
+                int v = visited[i];
+                int p = n.parent[v];
+                n.slack[p] = Math.min(n.slack[p], n.slack[v]);
+                n.selEnd[p] = Math.max(n.selEnd[p], n.selEnd[v]);
+            }
+        }
+    }
+
+    /**
+     * Depth first selection for several views at once
+     * <p>
+     * Every stack entry carries the set of views the node is still relevant for (the views whose
+     * selection descended into it) and, for each of them, the frustum planes left to test. Each
+     * view takes its own culling and range decisions and writes its own entries, in the same order
+     * its own traversal would, but the nodes are visited (and built) once: a subtree rejected by
+     * every view is skipped once. The main camera (slot 0) also uses the occlusion buffer.
+     * <p>
+     * The incremental selection only tracks a single view, it doesn't run here and the next
+     * main camera only selection is a full pass.
+     *
+     * @param mainCamera null to select the secondary views only
+     */
+    private void traverseViews(Camera mainCamera, SelectionView[] views, int viewCount) {
+        final CDLODNodeArrays n = nodes;
+        final int first = mainCamera != null ? 0 : 1;
+        final int count = viewCount + 1;
+
+        frame++;
+        forceFullPass = true;
+        int rootViews = 0;
+
+        for (int v = first; v < count; v++) {
+            if (v == 0) {
+                viewOutput[v] = selection;
+                viewFrustum[v] = mainCamera.frustum;
+                viewRanges[v] = ranges;
+                viewHorizon[v] = true;
+                setViewPosition(v, mainCamera.gameObject.transform.position);
+            } else {
+                SelectionView view = views[v - 1];
+                viewOutput[v] = view.selections[face];
+                viewOutput[v].clear();
+                viewFrustum[v] = view.frustum;
+                viewRanges[v] = view.ranges;
+                viewHorizon[v] = view.horizonCulling;
+                setViewPosition(v, view.position);
+            }
+
+            if (n.inSphereQRI(0, viewRanges[v][n.lod[0]], viewX[v], viewY[v], viewZ[v]))
+                rootViews |= 1 << v;
+            else
+                stats.culledByRange++;
+
+            stackViewPlanes[v] = Frustum.ALL_PLANES;
+        }
+
+        ensureViewLastPlanes();
+
+        int top = 0;
+        stackNodes[top] = 0;
+        stackViews[top] = rootViews;
+        top += rootViews != 0 ? 1 : 0;
+
+        while (top > 0) {
+            top--;
+            final int node = stackNodes[top];
+            final int activeViews = stackViews[top];
+            final int planesBase = top * MAX_VIEWS;
+            final int lod = n.lod[node];
+            n.lastUsed[node] = frame;
+            stats.nodesVisited++;
+
+            int firstChild = -1;
+            childViews[0] = childViews[1] = childViews[2] = childViews[3] = 0;
+
+            for (int v = first; v < count; v++) {
+                if ((activeViews & (1 << v)) == 0)
+                    continue;
+
+                if (viewHorizon[v] && horizonDistance(node, viewHorizonX[v], viewHorizonY[v],
+                        viewHorizonZ[v], viewHorizon2[v]) > 0) {
+                    stats.culledByHorizon++;
+                    if (v == 0)
+                        addCulled(node, CULLED_HORIZON);
+                    continue;
+                }
+
+                int planes = stackViewPlanes[planesBase + v];
+                if (planes != 0) {
+                    planes = viewFrustum[v].testBox(n.minX, n.minY, n.minZ, n.maxX, n.maxY, n.maxZ,
+                            node, planes, v == 0 ? n.lastPlane : viewLastPlane[v], null);
+
+                    if (planes == Frustum.CULLED) {
+                        stats.culledByFrustum++;
+                        if (v == 0)
+                            addCulled(node, CULLED_FRUSTUM);
+                        continue;
+                    }
+                }
+
+                if (v == 0 && occlusion != null && occlusion.isOccluded(n.minX[node], n.minY[node],
+                        n.minZ[node], n.maxX[node], n.maxY[node], n.maxZ[node])) {
+                    stats.culledByOcclusion++;
+                    addCulled(node, CULLED_OCCLUSION);
+                    continue;
+                }
+
+                final SelectionResults out = viewOutput[v];
+                final float x = viewX[v], y = viewY[v], z = viewZ[v];
+
+                if (lod == 0 || !n.inSphereQRI(node, viewRanges[v][lod - 1], x, y, z)) {
+                    // leaf, or this node covers the view's range
+                    out.add(node, lod, CDLODNodeArrays.SELECTED_WHOLE);
+                    continue;
+                }
+
+                if (firstChild == -1) {
+                    firstChild = n.children(node, frame);
+                    ensureViewLastPlanes();
+                }
+
+                final float childRange = viewRanges[v][lod - 1];
+                byte quarters = 0;
+
+                for (int i = 0; i < 4; i++) {
+                    if (!n.inSphereQRI(firstChild + i, childRange, x, y, z)) {
+                        quarters |= 1 << i;
+                        stats.culledByRange++;
+                    } else {
+                        childViews[i] |= 1 << v;
+                        // the planes of the children are stored once they are pushed
+                        viewChildPlanes[i * MAX_VIEWS + v] = planes;
+                    }
+                }
+
+                if (quarters != 0)
+                    out.add(node, lod, quarters);
+            }
+
+            // children are pushed in reverse so they are popped in order
+            for (int i = 3; i >= 0; i--) {
+                if (childViews[i] == 0)
+                    continue;
+
+                stackNodes[top] = firstChild + i;
+                stackViews[top] = childViews[i];
+                System.arraycopy(viewChildPlanes, i * MAX_VIEWS, stackViewPlanes, top * MAX_VIEWS, MAX_VIEWS);
+                top++;
+            }
+        }
+    }
+
+    private void setViewPosition(int v, Vec3f position) {
+        float invRadius = 2f / terrainXZ;
+        viewX[v] = position.x;
+        viewY[v] = position.y;
+        viewZ[v] = position.z;
+        viewHorizonX[v] = (position.x - nodes.centerX) * invRadius;
+        viewHorizonY[v] = (position.y - nodes.centerY) * invRadius;
+        viewHorizonZ[v] = (position.z - nodes.centerZ) * invRadius;
+        viewHorizon2[v] = viewHorizonX[v] * viewHorizonX[v] + viewHorizonY[v] * viewHorizonY[v]
+                + viewHorizonZ[v] * viewHorizonZ[v];
+    }
+
+    /**
+     * The secondary views keep their own last rejecting planes, grown with the node arrays
+     */
+    private void ensureViewLastPlanes() {
+        for (int v = 1; v < MAX_VIEWS; v++)
+            if (viewLastPlane[v] == null || viewLastPlane[v].length < nodes.capacity())
+                viewLastPlane[v] = viewLastPlane[v] == null ? new byte[nodes.capacity()]
+                        : Arrays.copyOf(viewLastPlane[v], nodes.capacity());
+    }
+
+    private void addVisited(int node) {
+        // the node arrays grow while the selection builds new nodes
+        if (visitedCount == visited.length)
+            visited = Arrays.copyOf(visited, nodes.capacity());
+        visited[visitedCount++] = node;
+    }
+
+    private void endVisit(int node, float slack) {
+        if (incrementalSelection) {
+            nodes.slack[node] = slack;
+            nodes.selEnd[node] = selection.size();
+        }
+    }
+
+    /**
+     * Updates moveDistance and moveAngle with the camera movement since the last selection
+     *
+     * @return false if the previous selection can't be reused at all (first frame, periodic full
+     * pass, ranges or projection changed)
+     */
+    private boolean measureCameraMovement(Vec3f cameraPos, Frustum f) {
+        boolean valid = !forceFullPass && framesSinceFullPass < FULL_SELECTION_INTERVAL
+                && Arrays.equals(ranges, lastRanges) && Arrays.equals(f.projectionMatrix, lastProjection);
+
+        moveDistance = Math.max(cameraPos.distance(lastCameraPos), f.origin.distance(lastOrigin));
+
+        /* Rotation angle between the two camera frames:
+         * sum(|axis_i - lastAxis_i|^2) = |R - I|^2 = 8 * sin^2(angle / 2) */
+        float d = axisDistance2(f.viewAxis, lastView) + axisDistance2(f.upAxis, lastUp)
+                + axisDistance2(f.rightAxis, lastRight);
+        moveAngle = 2f * (float) Math.asin(Math.min(1f, Math.sqrt(d / 8f)));
+
+        lastCameraPos.set(cameraPos);
+        lastOrigin.set(f.origin);
+        lastView.set(f.viewAxis);
+        lastUp.set(f.upAxis);
+        lastRight.set(f.rightAxis);
+
+        if (!valid) {
+            System.arraycopy(ranges, 0, lastRanges, 0, ranges.length);
+            System.arraycopy(f.projectionMatrix, 0, lastProjection, 0, lastProjection.length);
+            forceFullPass = false;
+            framesSinceFullPass = 0;
+        } else {
+            framesSinceFullPass++;
+        }
+
+        return valid;
+    }
+
+    private static float axisDistance2(Vec3f a, Vec3f b) {
+        float x = a.x - b.x;
+        float y = a.y - b.y;
+        float z = a.z - b.z;
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * Draw this face's occluders for the next selection: the lower bounds of the nearest detailed
+     * nodes selected last frame. Any node is a valid occluder whatever the selection is, the
+     * last one only tells which nodes are near the camera.
+     */
+    void rasterizeOccluders(OcclusionBuffer buffer, Vec3f cameraPos) {
+        if (!initialized)
+            return;
+
+        int count = 0;
+
+        for (int i = 0; i < selection.size(); i++) {
+            if (selection.getLod(i) > OCCLUDER_MAX_LOD)
+                continue;
+
+            int node = selection.get(i);
+            float distance = nodes.boxDistance(node, cameraPos.x, cameraPos.y, cameraPos.z);
+
+            // insertion into the sorted list of the nearest ones
+            int slot = Math.min(count, MAX_OCCLUDERS - 1);
+            if (count == MAX_OCCLUDERS && distance >= occluderDistances[slot])
+                continue;
+
+            while (slot > 0 && occluderDistances[slot - 1] > distance) {
+                occluderNodes[slot] = occluderNodes[slot - 1];
+                occluderDistances[slot] = occluderDistances[slot - 1];
+                slot--;
+            }
+
+            occluderNodes[slot] = node;
+            occluderDistances[slot] = distance;
+            count = Math.min(count + 1, MAX_OCCLUDERS);
+        }
+
+        for (int i = 0; i < count; i++) {
+            nodes.occluder(occluderNodes[i], OCCLUDER_SUBDIVISION, occluderQuads);
+
+            for (int q = 0; q < occluderQuads.length; q += 12)
+                buffer.addQuad(occluderQuads, q);
+        }
+    }
+
+    /**
+     * Per frame horizon culling constants: camera position relative to the sphere center, in
+     * units of the sphere radius (the space of the horizon occlusion points), its squared length,
+     * and the scale that turns horizonDistance values into world distances
+     */
+    private void setHorizonCamera(Vec3f cameraPos) {
+        final CDLODNodeArrays n = nodes;
+        float invRadius = 2f / terrainXZ;
+        horizonCamX = (cameraPos.x - n.centerX) * invRadius;
+        horizonCamY = (cameraPos.y - n.centerY) * invRadius;
+        horizonCamZ = (cameraPos.z - n.centerZ) * invRadius;
+        horizonCam2 = horizonCamX * horizonCamX + horizonCamY * horizonCamY + horizonCamZ * horizonCamZ;
+
+        /* |1 - d| >= |1 - d^2| / (1 + |V|), d being the distance from the center to the segment
+        and |V| the upper bound of d. d changes at most 1/r per unit of camera movement */
+        horizonScale = terrainXZ * 0.5f / (1f + (float) Math.sqrt(horizonCam2));
+    }
+
+    /**
+     * Horizon culling: the node is occluded by the planet itself when positive
+     * <p>
+     * The node's horizon occlusion point P (see CDLODNodeArrays.calcHorizonPoint) is hidden when
+     * the segment from the camera V to P goes through the sphere. With the center at the origin
+     * and radius 1, the closest point of the segment to the center is at
+     * t = (V·V - P·V) / |P - V|^2, so a single dot product per node is needed. Returns 1 - d^2,
+     * d being the distance from the center to the segment.
+     */
+    private float horizonDistance(int node) {
+        return horizonDistance(node, horizonCamX, horizonCamY, horizonCamZ, horizonCam2);
+    }
+
+    /**
+     * @param vx camera position in the horizon space (see setHorizonCamera), vv its squared length
+     */
+    private float horizonDistance(int node, float vx, float vy, float vz, float vv) {
+        final CDLODNodeArrays n = nodes;
+        final float pp = n.horizonLength2[node];
+
+        if (pp < 0)
+            return -Float.MAX_VALUE;
+
+        final float pv = n.horizonX[node] * vx + n.horizonY[node] * vy + n.horizonZ[node] * vz;
+        final float along = vv - pv;
+        final float segment2 = pp - 2f * pv + vv;
+
+        if (along <= 0)
+            return 1f - vv; // closest to the camera
+        if (along >= segment2)
+            return 1f - pp; // closest to P
+
+        return 1f - (vv - along * along / segment2);
+    }
+
+    /**
+     * The planet's textures are bound by the planet, once for all the faces
+     *
+     * @param shadows shadow cascades to receive, null to draw without shadows
+     */
+    void draw(RenderPackage pass, GridMeshSet gridMeshes, Transform planetTransform, ShadowCascades shadows) {
+        if (selection.size() > 0) {
             if (initialized) {
 
                 GLSLProgram targetShader = pass.targetProgram;
@@ -119,15 +1020,53 @@ public class CDLODQuadTree {
                 Matrix.multiplyMM(MatrixManager.modelMatrix, 0, planetTransform.modelMatrix, 0, transform.modelMatrix, 0);
 
                // pass.setupForRendering(MatrixManager.modelMatrix, shadowMapMVPMatrix, material, targetShader);
-                material.bindTextures();
                 sendMatrices();
-                //selection.renderSelectionInstanced(gridMesh,targetShader);
-                selection.renderSelection(gridMesh,targetShader,rangeDistance,morphconstz);
+                if (shadows != null)
+                    shadows.bindShadowMatrices(targetShader, MatrixManager.modelMatrix);
+                selection.renderSelection(gridMeshes,nodes,rangeDistance,morphconstz,layer,stats);
                 Matrix.setIdentityM(MatrixManager.modelMatrix, 0);
             }
         }
     }
 
+    /**
+     * Draw the selection of a secondary view, i.e. into a shadow map cascade
+     *
+     * @param viewProjection world to clip space of the view
+     */
+    void drawView(GLSLProgram shader, GridMeshSet gridMeshes, Transform planetTransform, SelectionView view,
+                  float[] viewProjection) {
+        SelectionResults viewSelection = view.selections[face];
+        if (viewSelection.size() == 0 || !initialized)
+            return;
+
+        Matrix.multiplyMM(MatrixManager.modelMatrix, 0, planetTransform.modelMatrix, 0, transform.modelMatrix, 0);
+
+        ShaderUniformMatrix4fv MMatrix = (ShaderUniformMatrix4fv) shader.getUniform(M_MATRIX_ID);
+        ShaderUniformMatrix4fv MVPMatrix = (ShaderUniformMatrix4fv) shader.getUniform(MVP_MATRIX_ID);
+        Matrix.multiplyMM(MatrixManager.MVPMatrix, 0, viewProjection, 0, MatrixManager.modelMatrix, 0);
+        MMatrix.array = MatrixManager.modelMatrix;
+        MVPMatrix.array = MatrixManager.MVPMatrix;
+        MMatrix.bind();
+        MVPMatrix.bind();
+
+        viewSelection.renderSelection(gridMeshes, nodes, view.rangeDistance, view.morphconstz, layer, stats);
+        Matrix.setIdentityM(MatrixManager.modelMatrix, 0);
+    }
+
+    /**
+     * Keep the nodes of a view's selection, and their ancestors, from being evicted while the
+     * view keeps its selection (see SelectionView.keepSelection)
+     */
+    void keepSelection(SelectionView view) {
+        final CDLODNodeArrays n = nodes;
+        final SelectionResults kept = view.selections[face];
+
+        for (int i = 0; i < kept.size(); i++)
+            for (int a = kept.get(i); a != -1 && n.lastUsed[a] != frame; a = n.parent[a])
+                n.lastUsed[a] = frame;
+    }
+
     private void sendMatrices() {
 
         Matrix.multiplyMM(MatrixManager.modelViewMatrix, 0, MatrixManager.viewMatrix, 0,
@@ -136,8 +1075,8 @@ public class CDLODQuadTree {
         Matrix.multiplyMM(MatrixManager.MVPMatrix, 0, MatrixManager.projectionMatrix, 0,
                 MatrixManager.modelViewMatrix, 0);
 
-        ShaderUniformMatrix4fv MVMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_MVMatrix");
-        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform("u_MVPMatrix");
+        ShaderUniformMatrix4fv MVMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(MV_MATRIX_ID);
+        ShaderUniformMatrix4fv MVPMatrix= (ShaderUniformMatrix4fv) material.shader.getUniform(MVP_MATRIX_ID);
 
         MVMatrix.array=MatrixManager.modelViewMatrix;
         MVPMatrix.array=MatrixManager.MVPMatrix;
@@ -146,17 +1085,44 @@ public class CDLODQuadTree {
         MVPMatrix.bind();
     }
 
-    void drawAABB(LineCube geometry) {
-        boundingBoxMaterial.shader.useProgram();
-        geometry.bindAttributes(boundingBoxMaterial.shader);
+    private void addCulled(int node, byte test) {
+        if (!recordCulled)
+            return;
 
-        for (SelectableNode snode : selection.getSelectionList()) {
-            ((CDLODNode) snode).renderBox(this.boundingBoxMaterial,geometry);
+        if (culledCount == culledNodes.length) {
+            culledNodes = Arrays.copyOf(culledNodes, culledCount * 2);
+            culledTests = Arrays.copyOf(culledTests, culledCount * 2);
         }
 
+        culledNodes[culledCount] = node;
+        culledTests[culledCount] = test;
+        culledCount++;
     }
 
+    /**
+     * Add the bounding boxes of the last selection to a batch: the selected nodes, and the
+     * culled ones if they were recorded (see recordCulled), coloured by the test that culled them
+     */
+    void addBounds(LineCube boxes) {
+        for (int i = 0; i < selection.size(); i++)
+            addBounds(boxes, selection.get(i), selectedBoundsColor);
+
+        for (int i = 0; i < culledCount; i++)
+            addBounds(boxes, culledNodes[i], culledBoundsColors[culledTests[i]]);
+    }
+
+    private void addBounds(LineCube boxes, int node, float[] color) {
+        final CDLODNodeArrays n = nodes;
+        boxes.add(n.minX[node], n.minY[node], n.minZ[node], n.maxX[node], n.maxY[node], n.maxZ[node],
+                color[0], color[1], color[2]);
+    }
+
+    /**
+     * Move the tree to world space. The nodes are rebuilt on demand with the new transform.
+     */
     void transformBoundingBoxes(Transform planetTransform) {
-        root.transformBoundingBoxRecursive(transform, planetTransform);
+        nodes.setWorldTransform(transform, planetTransform);
+        selection.clear();
+        forceFullPass = true;
     }
 }
@@ -7,5 +7,13 @@ public class CDLODSettings {
     public boolean texture = true;
     public boolean debug = false;
     public boolean shadowmap = false; //user setting
+    public boolean parallelSelection = true; //select the cube faces on worker threads
+    public boolean incrementalSelection = true; //reuse the previous selection for the areas the camera movement can't change
+    public boolean screenSpaceError = false; //LOD ranges and node refinement from the projected geometric error instead of the range slider
+    public float maxPixelError = 2f; //screen space error threshold, in pixels
+    public int triangleBudget = 0; //screen space error mode: max terrain triangles per frame (0: no limit)
+    public boolean adaptiveDetail = false; //adjust the range detail to hold targetFrameMs
+    public float targetFrameMs = 16.6f;
+    public boolean occlusionCulling = false; //cull the nodes hidden behind closer terrain (cpu depth buffer)
 
 }
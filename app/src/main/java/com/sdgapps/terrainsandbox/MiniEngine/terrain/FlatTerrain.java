@@ -52,4 +52,9 @@ public class FlatTerrain implements TerrainInterface {
     public int getRangeSteps() {
         return 0;
     }
+
+    @Override
+    public SelectionStatsHistory getSelectionStats() {
+        return null;
+    }
 }
@@ -3,19 +3,27 @@ package com.sdgapps.terrainsandbox.MiniEngine.terrain;
 import android.opengl.GLES30;
 
 import com.sdgapps.terrainsandbox.MiniEngine.TimeSystem;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.VertexArrays;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 /**
  * NxN vertex grid
  * Object space position of vertex (i,j) is (i,0,j) where i,j are positive int values
  *
  * Rendered using IBO in GL_TRIANGLES mode
+ *
+ * Compact formats: grid positions are unsigned shorts, barycentric coordinates unsigned bytes
+ * (padded to 4 bytes per vertex) and indices are 16 bit when the grid has up to 65536 vertices
+ * (256x256), 32 bit otherwise.
+ *
+ * The layout is recorded once per program in a VAO, see VertexArrays.
  */
 public class GridMesh {
 
@@ -23,6 +31,25 @@ public class GridMesh {
     public static final int IntBytes = Integer.SIZE / 8;
     public static final int ShortBytes = Short.SIZE / 8;
 
+    /**
+     * Bytes per vertex of the barycentric coordinates buffer, 3 used
+     */
+    private static final int BarycentricStride = 4;
+
+    /**
+     * Quads per row of the vertical strips the quarters are drawn in, see putQuarter. Two rows
+     * of a strip (14 vertices) fit in the smallest post transform vertex caches (16 entries).
+     */
+    private static final int cacheStripQuads = 6;
+
+    /**
+     * Floats per node instance: a_nodeInstance (offset x, offset z, quad scale, lod),
+     * a_nodeMorph (morph constants of the lod and its morph step, see GridMeshSet.morphStep)
+     * and a_nodeLayer (texture array layer of the node's face)
+     */
+    static final int InstanceFloats = 8;
+    private static final int InstanceStride = InstanceFloats * FloatBytes;
+
     //grid size in vertices
     private int vdim = 0;
 
@@ -30,18 +57,55 @@ public class GridMesh {
     int gridDim = 0;
 
     private int[] index_array;
-    private float[] gridPositions_array;
+    private short[] gridPositions_array; //unsigned
+
+    /**
+     * GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, and its size
+     */
+    private int indexType;
+    private int indexBytes;
 
     /*
     *  Buffer ids
     *  0 - index buf
     *  1 - gridpositions buf
     *  2 - barycentric coord buf
+    *  3 - node instances buf
     */
     private int buffers[];
 
-    private short[] baryCoordsArray;
-    private int[] offsets = new int[4];
+    /**
+     * Node instances of the next draws, rewritten for every selection that is drawn
+     */
+    private FloatBuffer instanceData = allocateInstances(256);
+
+    /**
+     * Attribute locations of the node instances in the program of the last bindAttributes
+     */
+    private int instanceHandle = -1;
+    private int morphHandle = -1;
+    private int layerHandle = -1;
+
+    private byte[] baryCoordsArray;
+
+    private final VertexArrays vertexArrays = new VertexArrays(new VertexArrays.Layout() {
+        @Override
+        public void record(GLSLProgram program) {
+            recordLayout(program);
+        }
+    });
+
+    /**
+     * Quarters of the index array in order, see GenIndexArray
+     */
+    private static final int[] quarterSequence = buildQuarterSequence();
+
+    /**
+     * Byte offset and size (in indices) of every combination of quarters in the index array,
+     * indexed by the combination's bits (bit q set for quarter q, 15 is the whole mesh)
+     */
+    private int[] combinationOffsets = new int[16];
+    private int[] combinationSizes = new int[16];
 
     private int indexArraySize;
     private int partialArraySize;
@@ -52,6 +116,15 @@ public class GridMesh {
     GridMesh(int vertexWidth) {
         vdim = vertexWidth;
         gridDim = vdim - 1;
+
+        if (vdim * vdim <= 1 << 16) {
+            indexType = GLES30.GL_UNSIGNED_SHORT;
+            indexBytes = ShortBytes;
+        } else {
+            indexType = GLES30.GL_UNSIGNED_INT;
+            indexBytes = IntBytes;
+        }
+
         GenVertexArray();
         GenIndexArray();
         GenBarycentricCoords();
@@ -60,150 +133,181 @@ public class GridMesh {
 
     private void GenVertexArray() {
         int nverts = vdim * vdim;
-        gridPositions_array = new float[nverts * 2];  //xy
+        gridPositions_array = new short[nverts * 2];  //xy
 
         for (int i = 0; i < nverts * 2; i += 2) {
             int nvert = i / 2;
             int X = nvert % vdim;
             int Z = nvert / vdim;
 
-            gridPositions_array[i] = X;
-            gridPositions_array[i + 1] = Z;
+            gridPositions_array[i] = (short) X;
+            gridPositions_array[i + 1] = (short) Z;
         }
     }
 
     /**
      * Index arrangement:
      * <p>
-     * Divide the mesh in 4 square areas
+     * Divide the mesh in 4 square areas (quarters)
      * <p>
-     * The index array contains the triangles of each area in the following order:
+     * The index array starts with the triangles of each area in the following order:
      * <p>
      * [bottomLeft|bottomRight|topLeft|topRight]
      * <p>
-     * This arrangement allows for rendering of the whole mesh in one go
-     * or each quarter separately adjusting offset and size values (in the glDrawElements call) without using
-     * extra memory on separate index arrays for each quarter.
+     * and goes on with copies of the areas in the order that leaves each of the 15 non-empty
+     * combinations of quarters in consecutive areas (see buildQuarterSequence):
+     * <p>
+     * [0|1|2|3|0|2|1|3|0]
+     * <p>
+     * This arrangement allows for rendering of the whole mesh, or of any combination of quarters,
+     * in one go adjusting offset and size values (in the glDrawElements call). The copies take
+     * 5 quarters of memory instead of separate index arrays for each combination.
+     * <p>
+     * Inside each quarter the triangles go in vertical strips, see putQuarter.
      */
     private void GenIndexArray() {
 
         indexArraySize = 6 * (gridDim * gridDim);
-        index_array = new int[indexArraySize];
-        int start;
+        partialArraySize = indexArraySize / 4;
+        index_array = new int[quarterSequence.length * partialArraySize];
+
         int k = 0;
+        for (int quarter : quarterSequence)
+            k = putQuarter(quarter, k);
+
+        for (int quarters = 1; quarters < 16; quarters++) {
+            /*Offset in glDrawElements is measured in bytes*/
+            combinationOffsets[quarters] = findRun(quarterSequence, quarterSequence.length, quarters) * partialArraySize * indexBytes;
+            combinationSizes[quarters] = Integer.bitCount(quarters) * partialArraySize;
+        }
+    }
 
+    /**
+     * Write the triangles of a quarter at k
+     * <p>
+     * The quarter is split in vertical strips cacheStripQuads wide, and each strip is written
+     * row by row: a row only adds cacheStripQuads + 1 vertices, and the ones it shares with the
+     * previous row are still in the post transform vertex cache. Rows as wide as the quarter
+     * would have evicted them.
+     *
+     * @return the index after them
+     */
+    private int putQuarter(int quarter, int k) {
         int halfd = vdim / 2;
         int fulld = gridDim;
+        int start;
 
-        int sq=0;
-        partialArraySize = indexArraySize / 4;
-        for (int i = 0; i < halfd; i++) { //row
-            for (int j = 0; j < halfd; j++) { //column
-
-                start = (((fulld + 1) * i) + j);
-                /*
-                 * triangle 1
-                 *                v2
-                 *                  *-------o
-                 *                  |       |
-                 *                  |       |
-                 *             v1   *-------* v3
-                 */
-
-                index_array[k++] = start; //v1
-                index_array[k++] = start + (fulld + 1);//v2
-                index_array[k++] = start + 1;//v3
-
-
-                /*
-                 * triangle 2
-                 *                  v4       v5
-                 *                  *-------*
-                 *                  |       |
-                 *                  |       |
-                 *                  o-------* v6
-                 */
-
-                index_array[k++] = start + (fulld + 1); //v4
-                index_array[k++] = start + (fulld + 2); //v5
-                index_array[k++] = start + 1; //v6
+        int row0 = (quarter & 2) == 0 ? 0 : halfd;
+        int column0 = (quarter & 1) == 0 ? 0 : halfd;
+
+        for (int strip = column0; strip < column0 + halfd; strip += cacheStripQuads) {
+            for (int i = row0; i < row0 + halfd; i++) { //row
+                for (int j = strip; j < Math.min(strip + cacheStripQuads, column0 + halfd); j++) { //column
+
+                    start = (((fulld + 1) * i) + j);
+                    /*
+                     * triangle 1
+                     *                v2
+                     *                  *-------o
+                     *                  |       |
+                     *                  |       |
+                     *             v1   *-------* v3
+                     */
+
+                    index_array[k++] = start; //v1
+                    index_array[k++] = start + (fulld + 1);//v2
+                    index_array[k++] = start + 1;//v3
+
+
+                    /*
+                     * triangle 2
+                     *                  v4       v5
+                     *                  *-------*
+                     *                  |       |
+                     *                  |       |
+                     *                  o-------* v6
+                     */
+
+                    index_array[k++] = start + (fulld + 1); //v4
+                    index_array[k++] = start + (fulld + 2); //v5
+                    index_array[k++] = start + 1; //v6
+                }
             }
         }
+        return k;
+    }
 
-        offsets[0] = 0;
-        offsets[1] = k * IntBytes;
-
-        for (int i = 0; i < halfd; i++) { //row
-            for (int j = halfd; j < fulld; j++) { //column
-
-                start = (((fulld + 1) * i) + j);
-
-                index_array[k++] = start; //v1
-                index_array[k++] = start + (fulld + 1);//v2
-                index_array[k++] = start + 1;//v3
-
-                index_array[k++] = start + (fulld + 1); //v4
-                index_array[k++] = start + (fulld + 2); //v5
-                index_array[k++] = start + 1; //v6
+    /**
+     * Order of the quarters in the index array: the 4 quarters of the whole mesh, then for
+     * every combination that isn't a run of consecutive quarters yet, the quarters it's missing
+     * after the longest run at the end that belongs to it
+     */
+    static int[] buildQuarterSequence() {
+        int[] sequence = new int[4 * 16];
+        int n = 0;
+
+        for (int quarter = 0; quarter < 4; quarter++)
+            sequence[n++] = quarter;
+
+        for (int quarters = 1; quarters < 16; quarters++) {
+            if (findRun(sequence, n, quarters) != -1)
+                continue;
+
+            // quarters of the run at the end
+            int tail = 0;
+            for (int i = n - 1; i >= 0; i--) {
+                int bit = 1 << sequence[i];
+                if ((quarters & bit) == 0 || (tail & bit) != 0)
+                    break;
+                tail |= bit;
             }
-        }
-        offsets[2] = k * IntBytes;
-        for (int i = halfd; i < fulld; i++) { //row
-            for (int j = 0; j < halfd; j++) { //column
-
-                start = (((fulld + 1) * i) + j);
 
-                index_array[k++] = start; //v1
-                index_array[k++] = start + (fulld + 1);//v2
-                index_array[k++] = start + 1;//v3
-
-                index_array[k++] = start + (fulld + 1); //v4
-                index_array[k++] = start + (fulld + 2); //v5
-                index_array[k++] = start + 1; //v6
-            }
+            for (int quarter = 0; quarter < 4; quarter++)
+                if ((quarters & ~tail & (1 << quarter)) != 0)
+                    sequence[n++] = quarter;
         }
+        return Arrays.copyOf(sequence, n);
+    }
 
-        /*Offset in glDrawElements is measured in bytes*/
-        offsets[3] = k * IntBytes;
-        for (int i = halfd; i < fulld; i++) { //row
-            for (int j = halfd; j < fulld; j++) { //column
-
-                start = (((fulld + 1) * i) + j);
-
-                index_array[k++] = start; //v1
-                index_array[k++] = start + (fulld + 1);//v2
-                index_array[k++] = start + 1;//v3
-
-                index_array[k++] = start + (fulld + 1); //v4
-                index_array[k++] = start + (fulld + 2); //v5
-                index_array[k++] = start + 1; //v6
-            }
+    /**
+     * @return first position of a run of consecutive quarters that is exactly the combination,
+     * -1 if there's none
+     */
+    static int findRun(int[] sequence, int n, int quarters) {
+        int length = Integer.bitCount(quarters);
+        for (int first = 0; first + length <= n; first++) {
+            int run = 0;
+            for (int i = first; i < first + length; i++)
+                run |= 1 << sequence[i];
+            if (run == quarters)
+                return first;
         }
+        return -1;
     }
 
     private void GenBarycentricCoords() {
         short nextvalue = 0;
         short rowStartValue = 0;
 
-        baryCoordsArray = new short[vdim * vdim * 3];
+        baryCoordsArray = new byte[vdim * vdim * BarycentricStride];
 
         for (int j = 0; j < vdim; j++) {
             for (int i = 0; i < vdim; i++) {
                 if (nextvalue == 0)//0 1 0
                 {
-                    baryCoordsArray[3 * i + 3 * vdim * j] = 0;
-                    baryCoordsArray[3 * i + 1 + 3 * vdim * j] = 1;
-                    baryCoordsArray[3 * i + 2 + 3 * vdim * j] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j)] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 1] = 1;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 2] = 0;
                 } else if (nextvalue == 1) //1,0 0
                 {
-                    baryCoordsArray[3 * i + 3 * vdim * j] = 1;
-                    baryCoordsArray[3 * i + 1 + 3 * vdim * j] = 0;
-                    baryCoordsArray[3 * i + 2 + 3 * vdim * j] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j)] = 1;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 1] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 2] = 0;
                 } else //0,0,1
                 {
-                    baryCoordsArray[3 * i + 3 * vdim * j] = 0;
-                    baryCoordsArray[3 * i + 1 + 3 * vdim * j] = 0;
-                    baryCoordsArray[3 * i + 2 + 3 * vdim * j] = 1;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j)] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 1] = 0;
+                    baryCoordsArray[BarycentricStride * (i + vdim * j) + 2] = 1;
                 }
 
                 nextvalue = (short) ((nextvalue + 1) % 3);
@@ -217,135 +321,170 @@ public class GridMesh {
 
         if (!uploadedVBO) {
             //gen buffers
-            ByteBuffer fBufW = ByteBuffer.allocateDirect(index_array.length * IntBytes);
-            fBufW.order(ByteOrder.nativeOrder());
-            IntBuffer indexBuffer = fBufW.asIntBuffer();
-            indexBuffer.put(index_array);
+            ByteBuffer indexBuffer = ByteBuffer.allocateDirect(index_array.length * indexBytes);
+            indexBuffer.order(ByteOrder.nativeOrder());
+            if (indexType == GLES30.GL_UNSIGNED_SHORT) {
+                for (int index : index_array)
+                    indexBuffer.putShort((short) index);
+            } else {
+                indexBuffer.asIntBuffer().put(index_array);
+            }
             indexBuffer.position(0);
 
-            ByteBuffer aBuf = ByteBuffer.allocateDirect(gridPositions_array.length * FloatBytes);
+            ByteBuffer aBuf = ByteBuffer.allocateDirect(gridPositions_array.length * ShortBytes);
             aBuf.order(ByteOrder.nativeOrder());
-            FloatBuffer gridPositionsBuffer = aBuf.asFloatBuffer();
+            ShortBuffer gridPositionsBuffer = aBuf.asShortBuffer();
             gridPositionsBuffer.put(gridPositions_array);
             gridPositionsBuffer.position(0);
             //gridPositions_array = null;
 
-            aBuf = ByteBuffer.allocateDirect(baryCoordsArray.length * ShortBytes);
-            aBuf.order(ByteOrder.nativeOrder());
-            ShortBuffer barycentricBuffer = aBuf.asShortBuffer();
+            ByteBuffer barycentricBuffer = ByteBuffer.allocateDirect(baryCoordsArray.length);
             barycentricBuffer.put(baryCoordsArray);
             barycentricBuffer.position(0);
             // baryCoordsArray = null;
 
-            buffers = new int[3];
+            buffers = new int[4];
 
             //submit to opengl
-            GLES30.glGenBuffers(3, buffers, 0);
+            GLES30.glGenBuffers(4, buffers, 0);
+
+            //the element array buffer binding would go to the bound VAO
+            GLState.bindVertexArray(0);
 
             //0 - index buf
             //1 - gridpositions buf
             //2 - barycentric coord buf
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
             GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER,
-                    indexBuffer.capacity() * IntBytes, indexBuffer,
+                    indexBuffer.capacity(), indexBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
             indexBuffer.clear();
 
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
-            GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, gridPositionsBuffer.capacity() * FloatBytes, gridPositionsBuffer,
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+            GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, gridPositionsBuffer.capacity() * ShortBytes, gridPositionsBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
 
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
-            GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, barycentricBuffer.capacity() * ShortBytes, barycentricBuffer,
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
+            GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, barycentricBuffer.capacity(), barycentricBuffer,
                     GLES30.GL_STATIC_DRAW);
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
 
-            indexArraySize = index_array.length;
             uploadedVBO = true;
         }
     }
 
-    void bindAttributes(GLSLProgram Shader, boolean shadowmapRender) {
-        int gridPositionHandle=Shader.getAttributeGLid("a_gridPosition");
-        int barycentricHandle=Shader.getAttributeGLid("a_barycentric");
+    /**
+     * Bind the mesh's VAO for a program, see recordLayout
+     */
+    void bindAttributes(GLSLProgram shader) {
+        vertexArrays.bind(shader);
+
+        instanceHandle = shader.getAttributeGLid("a_nodeInstance");
+        morphHandle = shader.getAttributeGLid("a_nodeMorph");
+        layerHandle = shader.getAttributeGLid("a_nodeLayer");
+    }
+
+    /**
+     * Vertex layout of the mesh, recorded into the VAO of every program. The programs without
+     * a_barycentric (the shadow pass) don't get the barycentric coordinates. The node instance
+     * attributes advance once per instance, their pointers are set by bindInstances.
+     */
+    private void recordLayout(GLSLProgram shader) {
+        int gridPositionHandle = shader.getAttributeGLid("a_gridPosition");
+        int barycentricHandle = shader.getAttributeGLid("a_barycentric");
 
         //grid position buffer
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
-        GLES30.glVertexAttribPointer(gridPositionHandle, 2, GLES30.GL_FLOAT, false, 0, 0);
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[1]);
+        GLES30.glVertexAttribPointer(gridPositionHandle, 2, GLES30.GL_UNSIGNED_SHORT, false, 0, 0);
         GLES30.glEnableVertexAttribArray(gridPositionHandle);
 
         //barycentric coords buffer
-        if (buffers[2] != -1 && !shadowmapRender) {
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
-            GLES30.glVertexAttribPointer(barycentricHandle, 3, GLES30.GL_SHORT, false, 0, 0);
+        if (barycentricHandle != -1) {
+            GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[2]);
+            GLES30.glVertexAttribPointer(barycentricHandle, 3, GLES30.GL_UNSIGNED_BYTE, false, BarycentricStride, 0);
             GLES30.glEnableVertexAttribArray(barycentricHandle);
         }
 
+        //node instances
+        for (String attribute : new String[]{"a_nodeInstance", "a_nodeMorph", "a_nodeLayer"}) {
+            int handle = shader.getAttributeGLid(attribute);
+            GLES30.glVertexAttribDivisor(handle, 1);
+            GLES30.glEnableVertexAttribArray(handle);
+        }
+
         //index buffer
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        GLState.bindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
     }
 
-    void instancedFullmeshDraw(int ninstances)
-    {
-        GLES30.glDrawElementsInstanced(GLES30.GL_TRIANGLES,indexArraySize,GLES30.GL_UNSIGNED_INT,0,ninstances);
-        timeSystem.drawcalls++;
+    /**
+     * @return the instance buffer, cleared, with room for the given instances
+     */
+    FloatBuffer instanceData(int instances) {
+        if (instanceData.capacity() < instances * InstanceFloats)
+            instanceData = allocateInstances(Math.max(instances, instanceData.capacity() / InstanceFloats * 2));
+
+        instanceData.clear();
+        return instanceData;
     }
 
-    void instancedQuarterMeshDraw(int ninstances)
-    {
-        GLES30.glDrawElementsInstanced(GLES30.GL_TRIANGLES,partialArraySize,GLES30.GL_UNSIGNED_INT,0,ninstances);
-        timeSystem.drawcalls++;
+    private static FloatBuffer allocateInstances(int instances) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(instances * InstanceStride);
+        buf.order(ByteOrder.nativeOrder());
+        return buf.asFloatBuffer();
     }
 
     /**
-     * Draw the grid mesh
+     * Send the first instances of the instance buffer to GL, replacing the previous ones
+     * (the old storage is orphaned, draws still using it don't stall)
      */
-    public void draw()
+    void uploadInstances(int instances) {
+        instanceData.position(0);
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[3]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, instances * InstanceStride, instanceData,
+                GLES30.GL_STREAM_DRAW);
+    }
+
+    /**
+     * Point the instance attributes to the uploaded instances from firstInstance on, GLES 3.0
+     * has no base instance in its draw calls
+     */
+    void bindInstances(int firstInstance) {
+        int offset = firstInstance * InstanceStride;
+        GLState.bindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[3]);
+        GLES30.glVertexAttribPointer(instanceHandle, 4, GLES30.GL_FLOAT, false, InstanceStride, offset);
+        GLES30.glVertexAttribPointer(morphHandle, 3, GLES30.GL_FLOAT, false, InstanceStride, offset + 4 * FloatBytes);
+        GLES30.glVertexAttribPointer(layerHandle, 1, GLES30.GL_FLOAT, false, InstanceStride, offset + 7 * FloatBytes);
+    }
+
+    /**
+     * @param quarters combination of quarters to draw, bit q set for quarter q (15 draws the
+     *                 whole mesh), see GenIndexArray
+     * @return number of triangles submitted
+     */
+    int instancedDraw(int quarters, int ninstances)
     {
-        GLES30.glDrawElements(GLES30.GL_TRIANGLES, indexArraySize, GLES30.GL_UNSIGNED_INT, 0);
+        GLES30.glDrawElementsInstanced(GLES30.GL_TRIANGLES,combinationSizes[quarters],indexType,
+                combinationOffsets[quarters],ninstances);
         timeSystem.drawcalls++;
+        return ninstances * combinationSizes[quarters] / 3;
     }
 
     /**
-     *
-     * Draws parts of the mesh depending on the selection[] parameter.
-     *
-     * Selection contains 5 booleans.
-     *          -If selection[4] is set, the whole grid is sent to render and ignores the rest of the array.
-     *          -If not, it uses selection[0-3] to render the quarters of the mesh that correspond
-     *              to the booleans that are set.
+     * Draw the grid mesh
      */
-    public void drawFromSelection(boolean[] selection) {
-        if (selection[4]) {//the whole node got selected
-            GLES30.glDrawElements(GLES30.GL_TRIANGLES, indexArraySize, GLES30.GL_UNSIGNED_INT, 0);
-            timeSystem.drawcalls++;
-
-        } else {//only certain quarters of the grid got selected
-            for (int j = 0; j < 4; j++) {
-                if (selection[j]) {
-                    int offset = offsets[j];
-                    int size = partialArraySize;
-                    int k = j + 1;
-
-                    //consecutive sub-quads will be rendered in one go saving drawcalls
-                    while (selection[k] && k < 4) {
-                        size += partialArraySize;
-                        k++;
-                        j++;
-                    }
-                    GLES30.glDrawElements(GLES30.GL_TRIANGLES, size, GLES30.GL_UNSIGNED_INT, offset);//offset in bytes
-                    timeSystem.drawcalls++;
-                }
-            }
-        }
+    public void draw()
+    {
+        GLES30.glDrawElements(GLES30.GL_TRIANGLES, indexArraySize, indexType, 0);
+        timeSystem.drawcalls++;
     }
 
     /**
-     * Mark the VBO's as invalid
+     * Mark the VBO's and the VAOs as invalid, they are gone with the GL context
      */
     void invalidateVBO() {
         uploadedVBO = false;
+        vertexArrays.invalidate();
     }
 }
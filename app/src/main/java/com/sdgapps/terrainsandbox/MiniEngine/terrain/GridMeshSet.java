@@ -0,0 +1,143 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.TimeSystem;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
+
+/**
+ * Grid meshes of several densities (quads per node side, consecutive powers of 2), and the one
+ * every LOD level is drawn with
+ * <p>
+ * The density of a LOD level is the same for all its nodes, of all the faces, so neighbor nodes
+ * of the same level share their edge vertices. Two consecutive levels may use grids of different
+ * densities, as long as they differ by a factor of 2 at most: the vertices of a node morph to
+ * the grid of its parent, that is 1, 2 or 4 of the node's quads wide (see morphStep).
+ * <p>
+ * The meshes are bound for the program given to bindAttributes as they are used, see use.
+ */
+class GridMeshSet {
+
+    /**
+     * Quads per node side of every mesh, ascending
+     */
+    final int[] gridSizes;
+    private final GridMesh[] meshes;
+
+    /**
+     * Mesh of every LOD level, index in gridSizes
+     */
+    private int[] lodMesh;
+
+    private GLSLProgram boundShader;
+    private int boundMesh = -1;
+
+    final TimeSystem timeSystem;
+
+    /**
+     * @param _gridSizes quads per node side of every mesh, consecutive powers of 2, ascending
+     * @param nLods      every LOD level starts with the first mesh, see setLodGrids
+     */
+    GridMeshSet(int[] _gridSizes, short nLods, TimeSystem _timeSystem) {
+        gridSizes = _gridSizes;
+        timeSystem = _timeSystem;
+        meshes = new GridMesh[gridSizes.length];
+        lodMesh = new int[nLods];
+
+        for (int i = 0; i < gridSizes.length; i++) {
+            if (i > 0 && gridSizes[i] != 2 * gridSizes[i - 1])
+                throw new IllegalArgumentException("GridMeshSet: grid sizes aren't consecutive powers of 2");
+
+            meshes[i] = new GridMesh(gridSizes[i] + 1);
+            meshes[i].timeSystem = timeSystem;
+        }
+    }
+
+    /**
+     * @param lodGrids quads per node side of every LOD level, from gridSizes, consecutive levels
+     *                 can't differ by more than a factor of 2
+     */
+    void setLodGrids(int[] lodGrids) {
+        for (int lod = 0; lod < lodGrids.length; lod++) {
+            if (lod > 0 && (lodGrids[lod] > 2 * lodGrids[lod - 1] || lodGrids[lod - 1] > 2 * lodGrids[lod]))
+                throw new IllegalArgumentException("GridMeshSet: LOD " + lod + " grid can't morph to the next one");
+
+            lodMesh[lod] = meshIndex(lodGrids[lod]);
+        }
+    }
+
+    private int meshIndex(int gridSize) {
+        for (int i = 0; i < gridSizes.length; i++)
+            if (gridSizes[i] == gridSize)
+                return i;
+        throw new IllegalArgumentException("GridMeshSet: no mesh of grid size " + gridSize);
+    }
+
+    int meshCount() {
+        return meshes.length;
+    }
+
+    /**
+     * @return index of the mesh a LOD level is drawn with
+     */
+    int lodMesh(int lod) {
+        return lodMesh[lod];
+    }
+
+    int lodGrid(int lod) {
+        return gridSizes[lodMesh[lod]];
+    }
+
+    /**
+     * Quads of a LOD level's grid its vertices snap to at the end of the morph: the quad size of
+     * the next level's grid over this level's (2 for equal densities). The last level doesn't
+     * morph to anything, it keeps the default.
+     */
+    float morphStep(int lod) {
+        if (lod + 1 >= lodMesh.length)
+            return 2;
+        return 2f * lodGrid(lod) / lodGrid(lod + 1);
+    }
+
+    /**
+     * Start drawing with a program, a mesh's VAO is bound when the mesh is used
+     */
+    void bindAttributes(GLSLProgram shader) {
+        boundShader = shader;
+        boundMesh = -1;
+    }
+
+    /**
+     * @return the mesh, with its VAO for the program given to bindAttributes bound
+     */
+    GridMesh use(int mesh) {
+        if (boundMesh != mesh) {
+            meshes[mesh].bindAttributes(boundShader);
+            boundMesh = mesh;
+        }
+        return meshes[mesh];
+    }
+
+    /**
+     * Done drawing with the program, the VAO stays bound
+     */
+    void unbindAttributes() {
+        boundMesh = -1;
+        boundShader = null;
+    }
+
+    boolean uploaded() {
+        for (GridMesh mesh : meshes)
+            if (!mesh.uploadedVBO)
+                return false;
+        return true;
+    }
+
+    void GenBuffersAndSubmitToGL() {
+        for (GridMesh mesh : meshes)
+            mesh.GenBuffersAndSubmitToGL();
+    }
+
+    void invalidateVBO() {
+        for (GridMesh mesh : meshes)
+            mesh.invalidateVBO();
+    }
+}
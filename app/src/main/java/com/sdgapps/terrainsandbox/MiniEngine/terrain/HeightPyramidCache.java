@@ -0,0 +1,129 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture2D;
+import com.sdgapps.terrainsandbox.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent binary cache of the min/max height pyramids used to build the node bounds
+ * <p>
+ * The pyramid of a heightmap only depends on its pixels and the size of the base cells, so the
+ * files are keyed by a content hash of the heightmap and the tree parameters the cell size comes
+ * from. The first launch builds the pyramids and writes them, later launches memory map the files
+ * and read the heights straight from them.
+ * <p>
+ * Every file starts with a header (magic, format version and key) that is checked before using
+ * it: a file from an older format, or written for other parameters, is rebuilt. Files are written
+ * to a temporary file and renamed, so a crash while writing never leaves a truncated cache.
+ */
+class HeightPyramidCache {
+
+    private static final int MAGIC = 0x43444c50; //"CDLP"
+
+    /**
+     * Bump when the layout of the file or the contents of the pyramid change
+     */
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 * 4 + 4 + 8;
+
+    private final File directory;
+
+    /**
+     * @param _directory where the cache files are kept (i.e. Context.getCacheDir())
+     */
+    HeightPyramidCache(File _directory) {
+        directory = _directory;
+    }
+
+    /**
+     * @param nLods        number of LOD levels of the tree the pyramid is built for
+     * @param baseCellSize see MinMaxHeightPyramid
+     * @return the cached pyramid of the heightmap, built and stored if there's none yet
+     */
+    MinMaxHeightPyramid get(Texture2D heightmap, int nLods, int baseCellSize) {
+        long hash = heightmap.pixelHash();
+        File file = new File(directory, String.format("heightpyramid_%016x_%d_%d.bin", hash, nLods, baseCellSize));
+
+        if (file.exists()) {
+            MinMaxHeightPyramid cached = read(file, hash, nLods, baseCellSize);
+            if (cached != null)
+                return cached;
+
+            Logger.warning("CDLOD: discarding invalid height pyramid cache " + file.getName());
+        }
+
+        MinMaxHeightPyramid pyramid = new MinMaxHeightPyramid(heightmap, baseCellSize);
+        write(file, pyramid, hash, nLods, baseCellSize);
+        return pyramid;
+    }
+
+    /**
+     * @return null if the file can't be read or doesn't belong to this key and version
+     */
+    private static MinMaxHeightPyramid read(File file, long hash, int nLods, int baseCellSize) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+
+            if (channel.size() < HEADER_BYTES)
+                return null;
+
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (data.getInt() != MAGIC || data.getInt() != VERSION || data.getInt() != nLods
+                    || data.getInt() != baseCellSize) {
+                return null;
+            }
+
+            int size = data.getInt();
+            if (data.getLong() != hash || size != channel.size() - HEADER_BYTES)
+                return null;
+
+            return new MinMaxHeightPyramid(data);
+        } catch (IOException | RuntimeException e) {
+            Logger.err("CDLOD: can't read height pyramid cache " + file.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    private static void write(File file, MinMaxHeightPyramid pyramid, long hash, int nLods, int baseCellSize) {
+        int size = pyramid.serializedSize();
+        ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + size).order(ByteOrder.LITTLE_ENDIAN);
+
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putInt(nLods);
+        data.putInt(baseCellSize);
+        data.putInt(size);
+        data.putLong(hash);
+        pyramid.write(data);
+        data.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            while (data.hasRemaining())
+                channel.write(data);
+        } catch (IOException e) {
+            Logger.err("CDLOD: can't write height pyramid cache " + file.getName() + ": " + e);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            Logger.err("CDLOD: can't write height pyramid cache " + file.getName());
+            temp.delete();
+        }
+    }
+}
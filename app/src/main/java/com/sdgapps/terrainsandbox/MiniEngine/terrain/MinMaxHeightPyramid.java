@@ -0,0 +1,280 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture2D;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Min/max mip pyramid of a heightmap, used to build tight node bounding boxes
+ * <p>
+ * The base level stores the min and max height of blocks of baseCellSize^2 texels, every
+ * following level halves the resolution. Any rectangle of the heightmap is covered by at most 2x2
+ * cells of the first level whose cells are as big as the rectangle, so a query reads 4 cells
+ * at most, whatever the size of the area.
+ * <p>
+ * The heightmap pixels are only read while building the pyramid, they can be freed afterwards.
+ * Levels are kept in FloatBuffers so a pyramid can also be read straight from a memory mapped
+ * file (see HeightPyramidCache).
+ */
+class MinMaxHeightPyramid {
+
+    private final int width;
+    private final int height;
+    private final int baseShift;
+
+    private final FloatBuffer[] minLevels;
+    private final FloatBuffer[] maxLevels;
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+
+    /**
+     * Biggest height difference inside a cell of every level, built by the first maxRelief
+     */
+    private float[] levelRelief;
+
+    /**
+     * @param heightmap     texture loaded with its pixels (needsPixels)
+     * @param baseCellSize  side of the base level cells in texels, rounded down to a power of 2
+     */
+    MinMaxHeightPyramid(Texture2D heightmap, int baseCellSize) {
+        width = heightmap.getWidth();
+        height = heightmap.getHeight();
+        baseShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, baseCellSize));
+
+        int baseW = ((width - 1) >> baseShift) + 1;
+        int baseH = ((height - 1) >> baseShift) + 1;
+
+        int levels = 1;
+        while ((baseW - 1) >> (levels - 1) > 0 || (baseH - 1) >> (levels - 1) > 0)
+            levels++;
+
+        minLevels = new FloatBuffer[levels];
+        maxLevels = new FloatBuffer[levels];
+        levelWidth = new int[levels];
+        levelHeight = new int[levels];
+
+        buildBaseLevel(heightmap, baseW, baseH);
+
+        for (int l = 1; l < levels; l++)
+            buildLevel(l);
+    }
+
+    private void buildBaseLevel(Texture2D heightmap, int w, int h) {
+        float[] mins = new float[w * h];
+        float[] maxs = new float[w * h];
+        int cell = 1 << baseShift;
+
+        for (int cy = 0; cy < h; cy++)
+            for (int cx = 0; cx < w; cx++) {
+                float minVal = Float.MAX_VALUE;
+                float maxVal = -Float.MAX_VALUE;
+
+                int x1 = Math.min(width, (cx + 1) * cell);
+                int y1 = Math.min(height, (cy + 1) * cell);
+
+                for (int y = cy * cell; y < y1; y++)
+                    for (int x = cx * cell; x < x1; x++) {
+                        float val = heightmap.getVal(x, y);
+                        minVal = Math.min(minVal, val);
+                        maxVal = Math.max(maxVal, val);
+                    }
+
+                mins[cx + cy * w] = minVal;
+                maxs[cx + cy * w] = maxVal;
+            }
+
+        minLevels[0] = FloatBuffer.wrap(mins);
+        maxLevels[0] = FloatBuffer.wrap(maxs);
+        levelWidth[0] = w;
+        levelHeight[0] = h;
+    }
+
+    private void buildLevel(int l) {
+        int pw = levelWidth[l - 1];
+        int ph = levelHeight[l - 1];
+        int w = (pw + 1) / 2;
+        int h = (ph + 1) / 2;
+
+        FloatBuffer pmins = minLevels[l - 1];
+        FloatBuffer pmaxs = maxLevels[l - 1];
+        float[] mins = new float[w * h];
+        float[] maxs = new float[w * h];
+
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) {
+                float minVal = Float.MAX_VALUE;
+                float maxVal = -Float.MAX_VALUE;
+
+                for (int py = 2 * y; py < Math.min(ph, 2 * y + 2); py++)
+                    for (int px = 2 * x; px < Math.min(pw, 2 * x + 2); px++) {
+                        minVal = Math.min(minVal, pmins.get(px + py * pw));
+                        maxVal = Math.max(maxVal, pmaxs.get(px + py * pw));
+                    }
+
+                mins[x + y * w] = minVal;
+                maxs[x + y * w] = maxVal;
+            }
+
+        minLevels[l] = FloatBuffer.wrap(mins);
+        maxLevels[l] = FloatBuffer.wrap(maxs);
+        levelWidth[l] = w;
+        levelHeight[l] = h;
+    }
+
+    /**
+     * Height range of the area [u0,u1]x[v0,v1] (texture coordinates), including the texels
+     * that bilinear filtering blends in at its borders
+     *
+     * @param out [0] min height, [1] max height, in [0,1]
+     */
+    void query(float u0, float v0, float u1, float v1, float[] out) {
+        int x0 = clamp((int) Math.floor(u0 * width - 0.5f), width);
+        int y0 = clamp((int) Math.floor(v0 * height - 0.5f), height);
+        int x1 = clamp((int) Math.floor(u1 * width - 0.5f) + 1, width);
+        int y1 = clamp((int) Math.floor(v1 * height - 0.5f) + 1, height);
+
+        int cx0 = x0 >> baseShift;
+        int cy0 = y0 >> baseShift;
+        int cx1 = x1 >> baseShift;
+        int cy1 = y1 >> baseShift;
+
+        // first level where the area spans 2x2 cells at most
+        int l = 0;
+        while (l < minLevels.length - 1 && ((cx1 >> l) - (cx0 >> l) > 1 || (cy1 >> l) - (cy0 >> l) > 1))
+            l++;
+
+        FloatBuffer mins = minLevels[l];
+        FloatBuffer maxs = maxLevels[l];
+        int w = levelWidth[l];
+
+        float minVal = Float.MAX_VALUE;
+        float maxVal = -Float.MAX_VALUE;
+
+        for (int y = cy0 >> l; y <= cy1 >> l; y++)
+            for (int x = cx0 >> l; x <= cx1 >> l; x++) {
+                minVal = Math.min(minVal, mins.get(x + y * w));
+                maxVal = Math.max(maxVal, maxs.get(x + y * w));
+            }
+
+        out[0] = minVal;
+        out[1] = maxVal;
+    }
+
+    /**
+     * @return the biggest height difference inside a base level cell, in [0,1]
+     */
+    float maxCellRelief() {
+        return levelRelief(0);
+    }
+
+    /**
+     * @param texels side of an area of the heightmap
+     * @return the biggest height difference inside the cells of the first level whose cells are
+     * at least that big, in [0,1]. Areas smaller than the base cells get the base cells' relief
+     * scaled down to their size.
+     */
+    float maxRelief(float texels) {
+        if (levelRelief == null) {
+            levelRelief = new float[minLevels.length];
+            for (int l = 0; l < minLevels.length; l++)
+                levelRelief[l] = levelRelief(l);
+        }
+
+        float cells = texels / baseCellSize();
+        if (cells <= 1)
+            return levelRelief[0] * Math.max(cells, 0);
+
+        int l = 32 - Integer.numberOfLeadingZeros((int) Math.ceil(cells) - 1);
+        return levelRelief[Math.min(l, levelRelief.length - 1)];
+    }
+
+    private float levelRelief(int l) {
+        FloatBuffer mins = minLevels[l];
+        FloatBuffer maxs = maxLevels[l];
+        float relief = 0;
+
+        for (int i = 0; i < levelWidth[l] * levelHeight[l]; i++)
+            relief = Math.max(relief, maxs.get(i) - mins.get(i));
+
+        return relief;
+    }
+
+    /**
+     * @return side of the base level cells, in texels
+     */
+    int baseCellSize() {
+        return 1 << baseShift;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    /*
+     * Binary layout: width, height, baseShift, level count (ints), then for every level its width,
+     * height (ints), the min values and the max values (floats, row major). The byte order is the
+     * buffer's.
+     */
+
+    /**
+     * Wrap a pyramid written by write(), the levels are views of the buffer (no copy)
+     */
+    MinMaxHeightPyramid(ByteBuffer data) {
+        width = data.getInt();
+        height = data.getInt();
+        baseShift = data.getInt();
+        int levels = data.getInt();
+
+        minLevels = new FloatBuffer[levels];
+        maxLevels = new FloatBuffer[levels];
+        levelWidth = new int[levels];
+        levelHeight = new int[levels];
+
+        for (int l = 0; l < levels; l++) {
+            levelWidth[l] = data.getInt();
+            levelHeight[l] = data.getInt();
+            minLevels[l] = floatView(data, levelWidth[l] * levelHeight[l]);
+            maxLevels[l] = floatView(data, levelWidth[l] * levelHeight[l]);
+        }
+    }
+
+    private static FloatBuffer floatView(ByteBuffer data, int count) {
+        ByteBuffer slice = data.slice().order(data.order());
+        slice.limit(count * 4);
+        data.position(data.position() + count * 4);
+        return slice.asFloatBuffer();
+    }
+
+    /**
+     * @return bytes needed by write()
+     */
+    int serializedSize() {
+        int size = 4 * 4;
+        for (int l = 0; l < minLevels.length; l++)
+            size += 2 * 4 + 2 * 4 * levelWidth[l] * levelHeight[l];
+        return size;
+    }
+
+    void write(ByteBuffer out) {
+        out.putInt(width);
+        out.putInt(height);
+        out.putInt(baseShift);
+        out.putInt(minLevels.length);
+
+        for (int l = 0; l < minLevels.length; l++) {
+            out.putInt(levelWidth[l]);
+            out.putInt(levelHeight[l]);
+
+            int count = levelWidth[l] * levelHeight[l];
+            for (int i = 0; i < count; i++)
+                out.putFloat(minLevels[l].get(i));
+            for (int i = 0; i < count; i++)
+                out.putFloat(maxLevels[l].get(i));
+        }
+    }
+
+    private static int clamp(int texel, int size) {
+        return Math.max(0, Math.min(size - 1, texel));
+    }
+}
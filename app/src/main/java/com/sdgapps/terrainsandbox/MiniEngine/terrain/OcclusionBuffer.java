@@ -0,0 +1,371 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+import java.util.Arrays;
+
+/**
+ * Small software depth buffer used to cull the nodes hidden behind the terrain itself
+ * <p>
+ * Occluder triangles are rasterized on the CPU, then a hierarchical-Z pyramid is built from the
+ * depths (every level keeps the max depth of 2x2 texels of the previous one), and boxes are
+ * tested against it: a box is hidden when its nearest point is further than the furthest
+ * occluder depth over the screen rectangle it covers, which takes at most 2x2 texel reads.
+ * <p>
+ * Both steps are conservative, so nothing visible is ever culled:
+ * - Occluders only write the pixels they cover completely, with their max depth over the pixel
+ * - Boxes that cross the near plane are always visible
+ * <p>
+ * Depths are distances along the view axis. Occluders have to be geometry that really hides what's
+ * behind it, i.e. surfaces under the terrain (see CDLODNodeArrays.occluder).
+ */
+class OcclusionBuffer {
+
+    private final int width;
+    private final int height;
+    private final float halfWidth;
+    private final float halfHeight;
+
+    /**
+     * [0] is the depth buffer, the hierarchical-Z levels follow
+     */
+    private final float[][] levels;
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+
+    /*
+     * View: camera position, axes, projection scale of each axis and near plane
+     */
+    private float ox, oy, oz;
+    private float rx, ry, rz;
+    private float ux, uy, uz;
+    private float vx, vy, vz;
+    private float scaleX, scaleY;
+    private float near;
+
+    /**
+     * Triangles that wrote at least one pixel since begin() (a quad counts as 2)
+     */
+    int rasterizedTriangles;
+
+    //scratch data: projected polygon, its edges and its 1/depth planes
+    private final float[] screenX = new float[4];
+    private final float[] screenY = new float[4];
+    private final float[] inverseDepth = new float[4];
+    private final float[] edgeA = new float[4];
+    private final float[] edgeB = new float[4];
+    private final float[] edgeC = new float[4];
+    private final float[] edgeMargin = new float[4];
+    private final float[] planeA = new float[2];
+    private final float[] planeB = new float[2];
+    private final float[] planeC = new float[2];
+    private final float[] planeMargin = new float[2];
+
+    /**
+     * @param _width  power of 2
+     * @param _height power of 2
+     */
+    OcclusionBuffer(int _width, int _height) {
+        width = _width;
+        height = _height;
+        halfWidth = width * 0.5f;
+        halfHeight = height * 0.5f;
+
+        int count = 1;
+        while ((width >> (count - 1)) > 1 || (height >> (count - 1)) > 1)
+            count++;
+
+        levels = new float[count][];
+        levelWidth = new int[count];
+        levelHeight = new int[count];
+
+        for (int l = 0; l < count; l++) {
+            levelWidth[l] = Math.max(1, width >> l);
+            levelHeight[l] = Math.max(1, height >> l);
+            levels[l] = new float[levelWidth[l] * levelHeight[l]];
+        }
+    }
+
+    /**
+     * Clear the buffer and set the view for the next occluders and tests
+     *
+     * @param right    camera axes, orthonormal
+     * @param scaleX   projection scale of the x axis: ndc x = scaleX * x / depth
+     * @param scaleY   same for the y axis
+     * @param nearDist near plane distance
+     */
+    void begin(Vec3f origin, Vec3f right, Vec3f up, Vec3f view, float _scaleX, float _scaleY, float nearDist) {
+        ox = origin.x;
+        oy = origin.y;
+        oz = origin.z;
+        rx = right.x;
+        ry = right.y;
+        rz = right.z;
+        ux = up.x;
+        uy = up.y;
+        uz = up.z;
+        vx = view.x;
+        vy = view.y;
+        vz = view.z;
+        scaleX = _scaleX;
+        scaleY = _scaleY;
+        near = nearDist;
+
+        for (float[] level : levels)
+            Arrays.fill(level, Float.POSITIVE_INFINITY);
+        rasterizedTriangles = 0;
+    }
+
+    /**
+     * Quad with its corners in order around it, in world space: [x,y,z] x 4 starting at offset
+     * <p>
+     * Drawn as a single polygon when its projection is convex: split in two triangles, the pixels
+     * along the diagonal would be partially covered by both and written by none. Its corners don't
+     * have to be coplanar, the depth of a pixel is the furthest of the planes of both halves.
+     */
+    void addQuad(float[] corners, int offset) {
+        if (!project(corners, offset, 0) || !project(corners, offset + 3, 1)
+                || !project(corners, offset + 6, 2) || !project(corners, offset + 9, 3))
+            return; // crosses the near plane, ignored
+
+        float area = signedArea(4);
+        boolean convex = area != 0;
+
+        for (int k = 0; k < 4 && convex; k++) {
+            int k1 = (k + 1) & 3;
+            int k2 = (k + 2) & 3;
+            float turn = (screenX[k1] - screenX[k]) * (screenY[k2] - screenY[k1])
+                    - (screenY[k1] - screenY[k]) * (screenX[k2] - screenX[k1]);
+            convex = turn * area > 0;
+        }
+
+        if (convex) {
+            rasterize(4, area);
+        } else {
+            addTriangle(corners, offset, offset + 3, offset + 6);
+            addTriangle(corners, offset, offset + 6, offset + 9);
+        }
+    }
+
+    /**
+     * Rasterize a world space triangle, a, b and c are the offsets of its vertices in v
+     */
+    void addTriangle(float[] v, int a, int b, int c) {
+        if (!project(v, a, 0) || !project(v, b, 1) || !project(v, c, 2))
+            return; // crosses the near plane, ignored
+
+        float area = signedArea(3);
+        if (area != 0)
+            rasterize(3, area);
+    }
+
+    /**
+     * Twice the signed area of the projected polygon, positive when counter clockwise
+     */
+    private float signedArea(int count) {
+        float area = 0;
+        for (int k = 0; k < count; k++) {
+            int next = (k + 1) % count;
+            area += screenX[k] * screenY[next] - screenX[next] * screenY[k];
+        }
+        return area;
+    }
+
+    /**
+     * Write the pixels completely covered by the projected convex polygon
+     */
+    private void rasterize(int count, float area) {
+        float sign = Math.signum(area);
+        float minSx = Float.POSITIVE_INFINITY, minSy = Float.POSITIVE_INFINITY;
+        float maxSx = Float.NEGATIVE_INFINITY, maxSy = Float.NEGATIVE_INFINITY;
+
+        for (int k = 0; k < count; k++) {
+            int next = (k + 1) % count;
+
+            // edge function, e(x,y) = a * x + b * y + c, positive inside
+            edgeA[k] = (screenY[k] - screenY[next]) * sign;
+            edgeB[k] = (screenX[next] - screenX[k]) * sign;
+            edgeC[k] = -(edgeA[k] * screenX[k] + edgeB[k] * screenY[k]);
+
+            // a pixel is completely covered when the edge functions are positive at its 4
+            // corners: at its center they must be at least this
+            edgeMargin[k] = 0.5f * (Math.abs(edgeA[k]) + Math.abs(edgeB[k]));
+
+            minSx = Math.min(minSx, screenX[k]);
+            minSy = Math.min(minSy, screenY[k]);
+            maxSx = Math.max(maxSx, screenX[k]);
+            maxSy = Math.max(maxSy, screenY[k]);
+        }
+
+        // 1/depth is linear in screen space over each triangle
+        if (!depthPlane(0, 1, 2, 0))
+            return;
+        if (count == 4 && !depthPlane(0, 2, 3, 1))
+            return;
+        int planes = count == 4 ? 2 : 1;
+
+        int minPx = Math.max(0, (int) Math.floor(minSx));
+        int maxPx = Math.min(width - 1, (int) Math.ceil(maxSx) - 1);
+        int minPy = Math.max(0, (int) Math.floor(minSy));
+        int maxPy = Math.min(height - 1, (int) Math.ceil(maxSy) - 1);
+
+        final float[] depth = levels[0];
+        boolean written = false;
+
+        for (int py = minPy; py <= maxPy; py++) {
+            float cy = py + 0.5f;
+            int row = py * width;
+
+            pixels:
+            for (int px = minPx; px <= maxPx; px++) {
+                float cx = px + 0.5f;
+
+                for (int k = 0; k < count; k++)
+                    if (edgeA[k] * cx + edgeB[k] * cy + edgeC[k] < edgeMargin[k])
+                        continue pixels;
+
+                // smallest 1/depth (furthest point) of the pixel
+                float invZ = Float.POSITIVE_INFINITY;
+                for (int p = 0; p < planes; p++)
+                    invZ = Math.min(invZ, planeA[p] * cx + planeB[p] * cy + planeC[p] - planeMargin[p]);
+
+                if (invZ <= 0)
+                    continue;
+
+                float z = 1f / invZ;
+                if (z < depth[row + px]) {
+                    depth[row + px] = z;
+                    written = true;
+                }
+            }
+        }
+
+        if (written)
+            rasterizedTriangles += count - 2;
+    }
+
+    /**
+     * Plane of 1/depth through 3 projected vertices, stored in slot p
+     *
+     * @return false if the vertices are aligned
+     */
+    private boolean depthPlane(int i0, int i1, int i2, int p) {
+        float dx1 = screenX[i1] - screenX[i0], dy1 = screenY[i1] - screenY[i0];
+        float dx2 = screenX[i2] - screenX[i0], dy2 = screenY[i2] - screenY[i0];
+        float dz1 = inverseDepth[i1] - inverseDepth[i0];
+        float dz2 = inverseDepth[i2] - inverseDepth[i0];
+
+        float d = dx1 * dy2 - dx2 * dy1;
+        if (d == 0)
+            return false;
+
+        planeA[p] = (dz1 * dy2 - dz2 * dy1) / d;
+        planeB[p] = (dz2 * dx1 - dz1 * dx2) / d;
+        planeC[p] = inverseDepth[i0] - planeA[p] * screenX[i0] - planeB[p] * screenY[i0];
+        planeMargin[p] = 0.5f * (Math.abs(planeA[p]) + Math.abs(planeB[p]));
+        return true;
+    }
+
+    /**
+     * Build the hierarchical-Z levels from the depth buffer, call it after the last occluder
+     */
+    void buildHiZ() {
+        for (int l = 1; l < levels.length; l++) {
+            float[] src = levels[l - 1];
+            float[] dst = levels[l];
+            int srcW = levelWidth[l - 1];
+            int srcH = levelHeight[l - 1];
+            int w = levelWidth[l];
+            int h = levelHeight[l];
+
+            for (int y = 0; y < h; y++) {
+                int sy0 = Math.min(2 * y, srcH - 1) * srcW;
+                int sy1 = Math.min(2 * y + 1, srcH - 1) * srcW;
+
+                for (int x = 0; x < w; x++) {
+                    int sx0 = Math.min(2 * x, srcW - 1);
+                    int sx1 = Math.min(2 * x + 1, srcW - 1);
+                    dst[y * w + x] = Math.max(Math.max(src[sy0 + sx0], src[sy0 + sx1]),
+                            Math.max(src[sy1 + sx0], src[sy1 + sx1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the box is completely hidden by the occluders
+     */
+    boolean isOccluded(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        float nearest = Float.POSITIVE_INFINITY;
+        float sMinX = Float.POSITIVE_INFINITY, sMinY = Float.POSITIVE_INFINITY;
+        float sMaxX = Float.NEGATIVE_INFINITY, sMaxY = Float.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < 8; i++) {
+            float dx = ((i & 1) == 0 ? minX : maxX) - ox;
+            float dy = ((i & 2) == 0 ? minY : maxY) - oy;
+            float dz = ((i & 4) == 0 ? minZ : maxZ) - oz;
+
+            float z = dx * vx + dy * vy + dz * vz;
+            if (z < near)
+                return false;
+
+            float sx = (scaleX * (dx * rx + dy * ry + dz * rz) / z + 1f) * halfWidth;
+            float sy = (scaleY * (dx * ux + dy * uy + dz * uz) / z + 1f) * halfHeight;
+
+            nearest = Math.min(nearest, z);
+            sMinX = Math.min(sMinX, sx);
+            sMinY = Math.min(sMinY, sy);
+            sMaxX = Math.max(sMaxX, sx);
+            sMaxY = Math.max(sMaxY, sy);
+        }
+
+        // off screen parts aren't visible, only the pixels of the buffer are tested
+        int x0 = Math.max(0, (int) Math.floor(sMinX));
+        int x1 = Math.min(width - 1, (int) Math.ceil(sMaxX) - 1);
+        int y0 = Math.max(0, (int) Math.floor(sMinY));
+        int y1 = Math.min(height - 1, (int) Math.ceil(sMaxY) - 1);
+
+        if (x0 > x1 || y0 > y1)
+            return false; // off screen, left to the frustum culling
+
+        // first level where the rectangle covers at most 2x2 texels
+        int l = 0;
+        while (l < levels.length - 1 && ((x1 >> l) - (x0 >> l) > 1 || (y1 >> l) - (y0 >> l) > 1))
+            l++;
+
+        float[] level = levels[l];
+        int w = levelWidth[l];
+        float furthest = 0;
+
+        for (int y = y0 >> l; y <= y1 >> l; y++)
+            for (int x = x0 >> l; x <= x1 >> l; x++)
+                furthest = Math.max(furthest, level[y * w + x]);
+
+        return nearest > furthest;
+    }
+
+    /**
+     * @return depth buffer value of a pixel, infinity where no occluder was drawn
+     */
+    float depth(int x, int y) {
+        return levels[0][y * width + x];
+    }
+
+    /**
+     * @return false if the point is closer than the near plane
+     */
+    private boolean project(float[] v, int offset, int i) {
+        float dx = v[offset] - ox;
+        float dy = v[offset + 1] - oy;
+        float dz = v[offset + 2] - oz;
+
+        float z = dx * vx + dy * vy + dz * vz;
+        if (z < near)
+            return false;
+
+        screenX[i] = (scaleX * (dx * rx + dy * ry + dz * rz) / z + 1f) * halfWidth;
+        screenY[i] = (scaleY * (dx * ux + dy * uy + dz * uz) / z + 1f) * halfHeight;
+        inverseDepth[i] = 1f / z;
+        return true;
+    }
+}
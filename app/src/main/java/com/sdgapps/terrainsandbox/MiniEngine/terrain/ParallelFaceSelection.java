@@ -0,0 +1,113 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the node selection of several CDLOD quad trees (the faces of a planet) on a small pool of
+ * worker threads.
+ * <p>
+ * The faces don't share any mutable state during the selection: each tree owns its node arrays,
+ * traversal stack and SelectionResults, and the camera position and frustum planes are only read.
+ * The calling thread blocks until every face is done, so the results can be used by draw() right
+ * after run() returns.
+ * <p>
+ * The tasks and the barrier are allocated once, a frame doesn't create any garbage.
+ */
+class ParallelFaceSelection {
+
+    private final CDLODQuadTree[] trees;
+    private final FaceTask[] tasks;
+    private final int[] lowestLods;
+    private final ThreadPoolExecutor executor;
+    private final Phaser barrier;
+
+    private volatile Camera camera;
+    private volatile SelectionView[] views;
+    private volatile int viewCount;
+    private volatile Throwable failure;
+
+    ParallelFaceSelection(CDLODQuadTree[] _trees, int threads) {
+        trees = _trees;
+        tasks = new FaceTask[trees.length];
+        lowestLods = new int[trees.length];
+
+        for (int i = 0; i < trees.length; i++)
+            tasks[i] = new FaceTask(i);
+
+        // the calling thread is always registered, the faces register for every run
+        barrier = new Phaser(1);
+
+        executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(trees.length), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CDLOD selection " + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // there is no planet teardown, let the workers of a discarded planet die on their own
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static int defaultThreadCount(int faces) {
+        return Math.max(1, Math.min(faces, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Run the node selection of every tree and wait for all of them
+     *
+     * @param _views secondary views selected in the same traversal (see CDLODQuadTree.selectNodes),
+     *               each face writes its own entry of the views' selections
+     * @return the lowest lod reached by any face, Integer.MAX_VALUE if nothing was selected
+     */
+    int run(Camera _camera, SelectionView[] _views, int _viewCount) {
+        camera = _camera;
+        views = _views;
+        viewCount = _viewCount;
+        failure = null;
+
+        barrier.bulkRegister(tasks.length);
+        for (FaceTask task : tasks)
+            executor.execute(task);
+
+        barrier.arriveAndAwaitAdvance();
+
+        if (failure != null)
+            throw new RuntimeException("CDLOD face selection failed", failure);
+
+        // merge the per face min lod, results stay in each tree's SelectionResults
+        int minLod = Integer.MAX_VALUE;
+        for (int lod : lowestLods)
+            minLod = Math.min(minLod, lod);
+
+        return minLod;
+    }
+
+    private class FaceTask implements Runnable {
+        private final int face;
+
+        FaceTask(int _face) {
+            face = _face;
+        }
+
+        @Override
+        public void run() {
+            try {
+                lowestLods[face] = trees[face].selectNodes(camera, views, viewCount);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                barrier.arriveAndDeregister();
+            }
+        }
+    }
+}
@@ -3,21 +3,30 @@ package com.sdgapps.terrainsandbox.MiniEngine.terrain;
 import android.opengl.GLES30;
 
 import com.sdgapps.terrainsandbox.MiniEngine.DefaultRenderPackage;
+import com.sdgapps.terrainsandbox.GLSurfaceRenderer;
 import com.sdgapps.terrainsandbox.MiniEngine.RenderPackage;
+import com.sdgapps.terrainsandbox.MiniEngine.RenderQueue;
+import com.sdgapps.terrainsandbox.MiniEngine.ShadowmapRenderPackage;
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
 import com.sdgapps.terrainsandbox.MiniEngine.behaviours.FlyAround;
 import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Light;
 import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Renderer;
 import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Sphere;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Color4f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.FrameBufferInterface;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Frustum;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.GLState;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.LineCube;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.MiniMath;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Quaternion;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.ShadowMapFrameBuffer;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Material;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Sampler;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform3f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.ArrayTexture;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture;
 import com.sdgapps.terrainsandbox.SimpleQuaternionPool;
 import com.sdgapps.terrainsandbox.SimpleVec3fPool;
@@ -25,9 +34,13 @@ import com.sdgapps.terrainsandbox.shaders.AtmosphereProgram;
 import com.sdgapps.terrainsandbox.shaders.BoundingBoxProgram;
 import com.sdgapps.terrainsandbox.shaders.CloudProgram;
 import com.sdgapps.terrainsandbox.shaders.PlanetShader;
+import com.sdgapps.terrainsandbox.shaders.PlanetShadowPassProgram;
+import com.sdgapps.terrainsandbox.shaders.ShadowedTerrainShader;
 import com.sdgapps.terrainsandbox.utils.Logger;
 import com.sdgapps.terrainsandbox.utils.TimingHelper;
 
+import java.util.Arrays;
+
 /**
  * Class that represents a planet
  * <p>
@@ -46,7 +59,9 @@ import com.sdgapps.terrainsandbox.utils.TimingHelper;
  *
  * <p>
  * Texturing: The following textures are loaded as cubemap faces (separately, every face is an image) that have been
- * prepared for this class using World Machine and a Python script that pre-processes the set of textures.
+ * prepared for this class using World Machine and a Python script that pre-processes the set of textures. The images
+ * of the 6 faces are the layers of an array texture, the faces share a single material and the layer of every
+ * node's face is part of its instance data (see CDLODQuadTree.layer).
  * <p>
  * <p>
  * - Heightmap: grayscale image where every pixel represents a height value. An external script has been used so that
@@ -66,10 +81,52 @@ public class Planet extends Renderer implements TerrainInterface {
     private CDLODQuadTree[] cube;
 
     /**
-     * The mesh used to render every node of the 6 quadtree terrains that conform
-     * the shape of the planet. (gridsize+1)^2 verts, gridsize^2 quads
+     * Runs the selection of the 6 faces on worker threads, null on single core devices
+     */
+    private ParallelFaceSelection faceSelection;
+
+    /**
+     * Selection of the 6 faces driven by screen space error (CDLODSettings.screenSpaceError)
+     */
+    private ScreenErrorSelection screenErrorSelection;
+
+    /**
+     * CPU depth buffer of the terrain occluders (CDLODSettings.occlusionCulling), created the
+     * first time it's enabled
+     */
+    private OcclusionBuffer occlusionBuffer;
+
+    /**
+     * Secondary views selected together with the main camera (see addView)
      */
-    private GridMesh gridMesh;
+    private SelectionView[] views = new SelectionView[CDLODQuadTree.MAX_VIEWS - 1];
+    private int viewCount = 0;
+    private SelectionView[] selectedViews = new SelectionView[CDLODQuadTree.MAX_VIEWS - 1];
+
+    /**
+     * Cascaded shadow maps of the sun (CDLODSettings.shadowmap), null while disabled
+     */
+    private ShadowCascades shadows;
+    private ShadowMapFrameBuffer shadowFB;
+    private RenderPackage shadowPass;
+    private GLSLProgram planetProgram;
+    private GLSLProgram shadowedProgram;
+    private Texture shadowTexture = new Texture();
+
+    /**
+     * Shadows are drawn up to the range of this LOD
+     */
+    private static final int shadowLod = 3;
+
+    private static final int occlusionBufferWidth = 128;
+    private static final int occlusionBufferHeight = 64;
+
+    /**
+     * The meshes used to render every node of the 6 quadtree terrains that conform the shape of
+     * the planet, (g+1)^2 verts and g^2 quads for every g of gridSizes. Every LOD level is drawn
+     * with one of them, see selectLodGrids.
+     */
+    private GridMeshSet gridMeshes;
     private Sphere atmosphere;
     private Sphere clouds;
 
@@ -77,9 +134,23 @@ public class Planet extends Renderer implements TerrainInterface {
      * Render configuration of this CDLODQuadTree terrain
      */
     private CDLODSettings config = new CDLODSettings();
+
+    /**
+     * Selection and draw counters of the current frame, and of the last statsFrames frames
+     */
+    private SelectionStats frameStats;
+    private SelectionStatsHistory statsHistory;
+    private static final int statsFrames = 300;
+    private long selectionNanos;
     private RenderPackage defaultPass;
 
     private int gridSize = 64;
+
+    /**
+     * Grid densities (quads per node side) the LOD levels can be drawn with, gridSize only sets
+     * the size of the nodes
+     */
+    private static final int[] gridSizes = {16, 32, 64, 128};
     private float rootQuadScale = 100000;
     private short nLods = 8;
     private float yscale = 60000;
@@ -93,6 +164,19 @@ public class Planet extends Renderer implements TerrainInterface {
     private float[] morphconstz;
     private float[] ranges;
 
+    /**
+     * Last value of the range slider, and the screen space error parameters the ranges were last
+     * built from (pixelsPerUnit < 0: the ranges come from the slider)
+     */
+    private float rangeDetail;
+    private float screenErrorPixelsPerUnit = -1;
+    private float screenErrorThreshold;
+
+    /**
+     * Drives the range detail when CDLODSettings.adaptiveDetail is enabled
+     */
+    private AdaptiveDetailController detailController;
+
     // Range distance slider(frontend) attributes
     private final int rangeDistMax = 10;
     private final int rangeDistMin = 1;
@@ -100,7 +184,7 @@ public class Planet extends Renderer implements TerrainInterface {
     // The slidder must go from rangeDistMin to rangeDistMax in rangeDistSteps steps
     private final int rangeDistSteps = 10;
 
-    private static final float morphstartratio = .1f;
+    static final float morphstartratio = .1f;
 
     public Color4f atmosphereColor = new Color4f(218, 220, 255, 1);
     private float atmosphereRadius,cloudlayerRadius;
@@ -108,17 +192,38 @@ public class Planet extends Renderer implements TerrainInterface {
 
     private static final String planetShaderID = "IDPlanetShader";
     private static final String planetShadowedID = "IDPlanetShadowedShader";
+    private static final String planetShadowPassID = "IDPlanetShadowPassShader";
 
     public FlyAround camFly;
 
     static final String colormapUniformName="u_colorMap";
     static final String bumpMapUniformName="u_normalMap";
     static final String heightmapUniformName="u_heightMap";
+    static final int heightmapUniformId = GLSLProgram.uniformId(heightmapUniformName);
     static final String splatmapUniformName="u_splatMap";
     static final String splatsheetUniformName="u_splatSheet";
     static final String splatarrayUniformName="u_splatArray";
 
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int atmosphereColorId = GLSLProgram.uniformId("u_atmosphere_color");
+    private static final int camPosId = GLSLProgram.uniformId("camPos");
+    private static final int lightPosId = GLSLProgram.uniformId("lightPos");
+    private static final int cameraPositionId = GLSLProgram.uniformId("cameraPosition");
+    private static final int meshInfoId = GLSLProgram.uniformId("meshInfo");
+    private static final int fogColorId = GLSLProgram.uniformId("u_Fogcolor");
+    private static final int zfarId = GLSLProgram.uniformId("zfar");
+    private static final int lightPosEyeId = GLSLProgram.uniformId("u_LightPos");
+    private static final int ambientLightId = GLSLProgram.uniformId("ambientLight");
+    private static final int shadowMapId = GLSLProgram.uniformId("u_shadowMap");
+    private static final int modeId = GLSLProgram.uniformId("mode");
+
+    /**
+     * Debug bounds of every face's selected and culled nodes, drawn in one batch
+     */
     LineCube BoundingBoxGeometry;
+    Material boundingBoxMaterial;
 
     public void initialize(TerrainData data, Texture atmosphereGradient) {
 
@@ -136,76 +241,40 @@ public class Planet extends Renderer implements TerrainInterface {
         CDLODQuadTree planetChunkC;
         CDLODQuadTree planetChunkD;
 
-        Material materialN = new Material();
-        Material materialS = new Material();
-        Material materialA = new Material();
-        Material materialB = new Material();
-        Material materialC = new Material();
-        Material materialD = new Material();
-
         this.material = new Material();
         GLSLProgram myPlanetShader = PlanetShader.createInstance(planetShaderID,gameObject.engineManagers.sShaderSystem);
         material.shader = myPlanetShader;
-        materialN.shader = myPlanetShader;
-        materialS.shader = myPlanetShader;
-        materialA.shader = myPlanetShader;
-        materialB.shader = myPlanetShader;
-        materialC.shader = myPlanetShader;
-        materialD.shader = myPlanetShader;
-
-        //texturing
-        materialN.addTexture(data.TexColorMaps[0],colormapUniformName);
-        materialS.addTexture(data.TexColorMaps[2],colormapUniformName);
-        materialA.addTexture(data.TexColorMaps[3],colormapUniformName);
-        materialB.addTexture(data.TexColorMaps[5],colormapUniformName);
-        materialC.addTexture(data.TexColorMaps[1],colormapUniformName);
-        materialD.addTexture(data.TexColorMaps[4],colormapUniformName);
-
-        materialN.addTexture(data.TexNormalMaps[0],bumpMapUniformName);
-        materialS.addTexture(data.TexNormalMaps[2],bumpMapUniformName);
-        materialA.addTexture(data.TexNormalMaps[3],bumpMapUniformName);
-        materialB.addTexture(data.TexNormalMaps[5],bumpMapUniformName);
-        materialC.addTexture(data.TexNormalMaps[1],bumpMapUniformName);
-        materialD.addTexture(data.TexNormalMaps[4],bumpMapUniformName);
-
-        materialN.addTexture(data.TexDisplacementMaps[0],heightmapUniformName);
-        materialS.addTexture(data.TexDisplacementMaps[2],heightmapUniformName);
-        materialA.addTexture(data.TexDisplacementMaps[3],heightmapUniformName);
-        materialB.addTexture(data.TexDisplacementMaps[5],heightmapUniformName);
-        materialC.addTexture(data.TexDisplacementMaps[1],heightmapUniformName);
-        materialD.addTexture(data.TexDisplacementMaps[4],heightmapUniformName);
-
-        materialN.addTexture(data.TexSplatMaps[0],splatmapUniformName);
-        materialS.addTexture(data.TexSplatMaps[2],splatmapUniformName);
-        materialA.addTexture(data.TexSplatMaps[3],splatmapUniformName);
-        materialB.addTexture(data.TexSplatMaps[5],splatmapUniformName);
-        materialC.addTexture(data.TexSplatMaps[1],splatmapUniformName);
-        materialD.addTexture(data.TexSplatMaps[4],splatmapUniformName);
-
-        materialN.addTexture(data.TexArraySplat,splatarrayUniformName);
-        materialS.addTexture(data.TexArraySplat,splatarrayUniformName);
-        materialA.addTexture(data.TexArraySplat,splatarrayUniformName);
-        materialB.addTexture(data.TexArraySplat,splatarrayUniformName);
-        materialC.addTexture(data.TexArraySplat,splatarrayUniformName);
-        materialD.addTexture(data.TexArraySplat,splatarrayUniformName);
+
+        //texturing: the maps of every face are layers of the same array textures
+        material.addTexture(data.TexColorMaps,colormapUniformName);
+        material.addTexture(data.TexNormalMaps,bumpMapUniformName);
+        material.addTexture(data.TexDisplacementMaps,heightmapUniformName);
+        material.addTexture(data.TexSplatMaps,splatmapUniformName);
+        material.addTexture(data.TexArraySplat,splatarrayUniformName);
 
         terrainXZ = rootQuadScale * gridSize;
 
-        float maxverts = (float) Math.sqrt(Math.pow(4, nLods - 1) * (gridSize + 1) * (gridSize + 1));
-        Logger.log("CDLOD planet: Mesh XZ " + terrainXZ + " mesh side (in verts) at max detail " + maxverts);
         ranges = new float[nLods];
         rangeDistance = new float[nLods];
         morphconstz = new float[nLods];
         setRangeDetail(rangeDistMin);
 
-        Material boundingBoxMaterial = new Material();
+        // node bounds come from the heightmap pyramids, reuse the ones built by previous launches
+        HeightPyramidCache pyramidCache = null;
+        if (gameObject.engineManagers.cacheDir != null)
+            pyramidCache = new HeightPyramidCache(gameObject.engineManagers.cacheDir);
+
+        //layer of each cube face in the texture arrays
+        final int layerN = 0, layerC = 1, layerS = 2, layerA = 3, layerD = 4, layerB = 5;
+
+        boundingBoxMaterial = new Material();
         boundingBoxMaterial.shader = BoundingBoxProgram.createInstance("bbmat", gameObject.engineManagers.sShaderSystem);
-        planetChunkN = new CDLODQuadTree(materialN, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
-        planetChunkS = new CDLODQuadTree(materialS, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
-        planetChunkA = new CDLODQuadTree(materialA, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
-        planetChunkB = new CDLODQuadTree(materialB, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
-        planetChunkC = new CDLODQuadTree(materialC, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
-        planetChunkD = new CDLODQuadTree(materialD, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, boundingBoxMaterial);
+        planetChunkN = new CDLODQuadTree(material, layerN, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
+        planetChunkS = new CDLODQuadTree(material, layerS, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
+        planetChunkA = new CDLODQuadTree(material, layerA, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
+        planetChunkB = new CDLODQuadTree(material, layerB, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
+        planetChunkC = new CDLODQuadTree(material, layerC, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
+        planetChunkD = new CDLODQuadTree(material, layerD, gridSize, rootQuadScale, nLods, yscale, ranges, morphconstz, rangeDistance, pyramidCache);
         th.end();
         cube = new CDLODQuadTree[6];
 
@@ -228,9 +297,7 @@ public class Planet extends Renderer implements TerrainInterface {
         planetChunkB.transform.rotation.fromAngleNormalAxis(MiniMath.H_PI, Vec3f.Xvector);
         planetChunkD.transform.rotation.fromAngleNormalAxis(-MiniMath.H_PI, Vec3f.Xvector);
 
-        gridMesh = new GridMesh(gridSize + 1);
-        gridMesh.timeSystem=gameObject.engineManagers.sTime;
-        gridMesh.GenBuffersAndSubmitToGL();
+        gridMeshes = new GridMeshSet(gridSizes, nLods, gameObject.engineManagers.sTime);
 
         //pack the 6 cube faces in an array
         cube[0] = planetChunkA;
@@ -240,6 +307,30 @@ public class Planet extends Renderer implements TerrainInterface {
         cube[4] = planetChunkS;
         cube[5] = planetChunkN;
 
+        for (int i = 0; i < cube.length; i++) {
+            cube[i].setMaterialId(i);
+            cube[i].face = i;
+        }
+
+        int[] lodGrids = selectLodGrids();
+        gridMeshes.setLodGrids(lodGrids);
+        for (CDLODQuadTree chunk : cube)
+            chunk.setLodGrids(lodGrids);
+
+        float maxverts = (float) Math.sqrt(Math.pow(4, nLods - 1) * (lodGrids[0] + 1) * (lodGrids[0] + 1));
+        Logger.log("CDLOD planet: Mesh XZ " + terrainXZ + " mesh side (in verts) at max detail " + maxverts);
+        Logger.log("CDLOD planet: grid of every LOD " + Arrays.toString(lodGrids));
+
+        frameStats = new SelectionStats(nLods);
+        statsHistory = new SelectionStatsHistory(statsFrames, nLods);
+
+        screenErrorSelection = new ScreenErrorSelection(cube);
+        detailController = new AdaptiveDetailController(rangeDistMin, rangeDistMax, rangeDetail);
+
+        int selectionThreads = ParallelFaceSelection.defaultThreadCount(cube.length);
+        if (selectionThreads > 1)
+            faceSelection = new ParallelFaceSelection(cube, selectionThreads);
+
         //setup up the atmosphere (inverted sphere around the planet)
         atmosphere = new Sphere(
                 AtmosphereProgram.createInstance("atmosphereShader",gameObject.engineManagers.sShaderSystem),
@@ -250,7 +341,7 @@ public class Planet extends Renderer implements TerrainInterface {
         atmosphereColor.normalize_noalpha();
         atmosphere.material.addTexture(atmosphereGradient,"u_Texture");
 
-        ShaderUniform3f atmosphereCol = (ShaderUniform3f) atmosphere.material.shader.getUniform("u_atmosphere_color");
+        ShaderUniform3f atmosphereCol = (ShaderUniform3f) atmosphere.material.shader.getUniform(atmosphereColorId);
         atmosphereCol.set(atmosphereColor);
 
         //setup up the cloud layer
@@ -278,16 +369,65 @@ public class Planet extends Renderer implements TerrainInterface {
 
     private void LodSelect() {
         if (config.solid || config.wireframe) {
+            long start = System.nanoTime();
             transform.updateModelMatrix();
 
             int minLod = Integer.MAX_VALUE;
             int res;
             for (CDLODQuadTree chunk : cube) {
-                res = chunk.LodSelect(gameObject.engineManagers.mainCamera);
-                minLod = Math.min(minLod, res);
+                chunk.incrementalSelection = config.incrementalSelection;
+                chunk.recordCulled = config.debug;
             }
 
-            SelectionResults.drawnNodes=0;
+            // views that keep their selection are left out of the traversal
+            int selectedCount = 0;
+            for (int i = 0; i < viewCount; i++) {
+                SelectionView view = views[i];
+                if (view.keepSelection) {
+                    for (CDLODQuadTree chunk : cube)
+                        chunk.keepSelection(view);
+                } else {
+                    view.updateRanges(ranges);
+                    selectedViews[selectedCount++] = view;
+                }
+            }
+
+            if (config.screenSpaceError) {
+                // projection scale: 1 / tan(vertical fov / 2)
+                float pixelsPerUnit = GLSurfaceRenderer.surface_height * 0.5f
+                        * gameObject.engineManagers.mainCamera.frustum.projectionMatrix[5];
+                updateScreenErrorRanges(pixelsPerUnit,
+                        screenErrorSelection.rangeThreshold(config.maxPixelError, config.triangleBudget));
+
+                for (CDLODQuadTree chunk : cube)
+                    chunk.transform.updateModelMatrix();
+
+                minLod = screenErrorSelection.run(gameObject.engineManagers.mainCamera, pixelsPerUnit,
+                        config.triangleBudget);
+
+                for (CDLODQuadTree chunk : cube)
+                    chunk.selectViews(selectedViews, selectedCount);
+            } else {
+                if (screenErrorPixelsPerUnit >= 0)
+                    applyRangeDetail(rangeDetail);
+
+                // model matrices use the vector pools, keep them on this thread
+                for (CDLODQuadTree chunk : cube)
+                    chunk.transform.updateModelMatrix();
+
+                prepareOcclusion(gameObject.engineManagers.mainCamera);
+
+                if (config.parallelSelection && faceSelection != null) {
+                    minLod = faceSelection.run(gameObject.engineManagers.mainCamera, selectedViews, selectedCount);
+                } else {
+                    for (CDLODQuadTree chunk : cube) {
+                        res = chunk.selectNodes(gameObject.engineManagers.mainCamera, selectedViews, selectedCount);
+                        minLod = Math.min(minLod, res);
+                    }
+                }
+            }
+            selectionNanos = System.nanoTime() - start;
+
             if (minLod != Integer.MAX_VALUE) {
 
                 float factor = (minLod + 1) / ((float) cube[0].nLods + 1f);
@@ -299,8 +439,139 @@ public class Planet extends Renderer implements TerrainInterface {
         }
     }
 
+    /**
+     * Select nodes for another point of view every frame, in the same traversal as the main
+     * camera. The view's frustum and position must be updated before the planet's update.
+     */
+    public SelectionView addView(Frustum frustum) {
+        if (viewCount == views.length)
+            throw new IllegalStateException("CDLOD: at most " + views.length + " secondary views");
+
+        SelectionView view = new SelectionView(frustum, nLods, cube.length);
+        view.updateRanges(ranges);
+        views[viewCount++] = view;
+        return view;
+    }
+
+    public void removeView(SelectionView view) {
+        for (int i = 0; i < viewCount; i++)
+            if (views[i] == view) {
+                System.arraycopy(views, i + 1, views, i, viewCount - i - 1);
+                views[--viewCount] = null;
+                return;
+            }
+    }
+
+    /**
+     * Create or release the shadow cascades to match CDLODSettings.shadowmap, and place them
+     * for this frame
+     */
+    private void updateShadows() {
+        if (config.shadowmap && shadowPass != null) {
+            if (shadows == null)
+                shadows = new ShadowCascades(this, shadowFB.getSize(), planetRadius * 0.2f);
+
+            shadows.update(gameObject.engineManagers.mainCamera, gameObject.engineManagers.mainLight.transform.position,
+                    transform.objectPivotPosition, ranges[shadowLod]);
+        } else if (shadows != null) {
+            shadows.release(this);
+            shadows = null;
+        }
+    }
+
+    /**
+     * Draw the pending shadow cascades, the cached ones keep their shadow map
+     */
+    private void renderShadowMaps() {
+        if (!shadowFB.isReady()) {
+            shadowFB.setup();
+            shadowTexture.glID = shadowFB.glID;
+        }
+
+        GLSLProgram shader = shadowPass.targetProgram;
+        boolean bound = false;
+
+        for (int i = 0; i < ShadowCascades.CASCADES; i++) {
+            if (!shadows.pending[i])
+                continue;
+
+            if (!bound) {
+                shadowPass.bind();
+                shader.useProgram();
+                gridMeshes.bindAttributes(shader);
+                bindPlanetInfo(shader);
+
+                Sampler heightmap = (Sampler) shader.getUniform(heightmapUniformId);
+                heightmap.setTexture(material.getTexture(heightmapUniformId));
+                heightmap.bind();
+                bound = true;
+            }
+
+            // the LOD ranges of the cascade are measured from where its selection was made
+            ShaderUniform3f lodOrigin = (ShaderUniform3f) shader.getUniform(cameraPositionId);
+            lodOrigin.set(shadows.views[i].position);
+            lodOrigin.bind();
+
+            shadowFB.bindLayer(i);
+            for (CDLODQuadTree chunk : cube)
+                chunk.drawView(shader, gridMeshes, transform, shadows.views[i], shadows.viewProjection[i]);
+
+            shadows.pending[i] = false;
+        }
+
+        if (bound) {
+            gridMeshes.unbindAttributes();
+            shadowFB.unbind();
+        }
+    }
+
+    /**
+     * Planet shader of the default pass, the faces share the planet's material
+     */
+    private void setTerrainShader(GLSLProgram shader) {
+        if (defaultPass.targetProgram == shader)
+            return;
+
+        defaultPass.targetProgram = shader;
+        material.shader = shader;
+    }
+
+    /**
+     * Draw the occluders of every face into the occlusion buffer, or disable the occlusion
+     * culling of the faces
+     */
+    private void prepareOcclusion(Camera camera) {
+        if (!config.occlusionCulling) {
+            for (CDLODQuadTree chunk : cube)
+                chunk.occlusion = null;
+            return;
+        }
+
+        if (occlusionBuffer == null)
+            occlusionBuffer = new OcclusionBuffer(occlusionBufferWidth, occlusionBufferHeight);
+
+        Frustum f = camera.frustum;
+        occlusionBuffer.begin(f.origin, f.rightAxis, f.upAxis, f.viewAxis,
+                f.projectionMatrix[0], f.projectionMatrix[5], f.znear);
+
+        for (CDLODQuadTree chunk : cube)
+            chunk.rasterizeOccluders(occlusionBuffer, camera.gameObject.transform.position);
+
+        occlusionBuffer.buildHiZ();
+
+        for (CDLODQuadTree chunk : cube)
+            chunk.occlusion = occlusionBuffer;
+    }
+
     @Override
     public void update() {
+        // the screen space error mode doesn't use the range detail
+        if (config.adaptiveDetail && !config.screenSpaceError
+                && detailController.update(gameObject.engineManagers.sTime, config.targetFrameMs))
+            applyRangeDetail(detailController.getDetail());
+
+        updateShadows();
+
         //run the node selection
         LodSelect();
         Quaternion rotation = SimpleQuaternionPool.create();
@@ -309,45 +580,120 @@ public class Planet extends Renderer implements TerrainInterface {
     }
 
 
-    @Override
-    public void draw() {
+    /**
+     * Draw packets of the planet, see submit
+     */
+    private static final int PACKET_SHADOWS = 0;
+    private static final int PACKET_TERRAIN = 1;
+    private static final int PACKET_ATMOSPHERE = 2;
+    private static final int PACKET_CLOUDS = 3;
+    private static final int PACKET_BOUNDS = 4;
 
-        if (!gridMesh.uploadedVBO)
-            gridMesh.GenBuffersAndSubmitToGL();
+    /**
+     * Time and draw calls of this frame's shadow maps, added to the terrain's stats
+     */
+    private long shadowDrawNanos;
+    private int shadowDrawCalls;
+
+    @Override
+    public void submit(RenderQueue queue) {
+        if (!gridMeshes.uploaded())
+            gridMeshes.GenBuffersAndSubmitToGL();
 
         if (!atmosphere.uploadedVBO)
             atmosphere.GenBuffersAndSubmitToGL();
 
+        if (!clouds.uploadedVBO)
+            clouds.GenBuffersAndSubmitToGL();
+
+        shadowDrawNanos = 0;
+        shadowDrawCalls = 0;
+
+        if (shadows != null)
+            queue.add(queue.opaqueKey(RenderQueue.LAYER_SHADOW, shadowPass.targetProgram.sortId, material.sortId, 0),
+                    this, PACKET_SHADOWS);
+
+        // distance to the surface: the planet is in front of whatever it covers
+        float centerDistance = queue.distance(transform.objectPivotPosition);
+        GLSLProgram terrainProgram = shadows != null ? shadowedProgram : planetProgram;
+        queue.add(queue.opaqueKey(RenderQueue.LAYER_OPAQUE, terrainProgram.sortId, material.sortId,
+                Math.max(0, centerDistance - planetRadius)), this, PACKET_TERRAIN);
+
+        // the spheres are sorted by their farthest point, the atmosphere is drawn under the clouds
+        queue.add(queue.blendedKey(RenderQueue.LAYER_BLENDED, atmosphere.material.shader.sortId,
+                atmosphere.material.sortId, centerDistance + atmosphereRadius), this, PACKET_ATMOSPHERE);
+        queue.add(queue.blendedKey(RenderQueue.LAYER_BLENDED, clouds.material.shader.sortId,
+                clouds.material.sortId, centerDistance + cloudlayerRadius), this, PACKET_CLOUDS);
+
+        if (config.debug)
+            queue.add(queue.opaqueKey(RenderQueue.LAYER_OVERLAY, 0, 0, 0), this, PACKET_BOUNDS);
+    }
+
+    @Override
+    public void execute(int packet) {
+        switch (packet) {
+            case PACKET_SHADOWS:
+                long start = System.nanoTime();
+                int drawcalls = gridMeshes.timeSystem.drawcalls;
+
+                renderShadowMaps();
+
+                shadowDrawNanos = System.nanoTime() - start;
+                shadowDrawCalls = gridMeshes.timeSystem.drawcalls - drawcalls;
+                break;
+            case PACKET_TERRAIN:
+                renderTerrain();
+                break;
+            case PACKET_ATMOSPHERE:
+                renderAtmosphere();
+                break;
+            case PACKET_CLOUDS:
+                renderClouds();
+                break;
+            case PACKET_BOUNDS:
+                BoundingBoxGeometry.begin();
+                for (CDLODQuadTree chunk : cube)
+                    chunk.addBounds(BoundingBoxGeometry);
+
+                GLState.disable(GLES30.GL_DEPTH_TEST);
+                boundingBoxMaterial.shader.useProgram();
+                BoundingBoxGeometry.draw(boundingBoxMaterial.shader);
+                GLState.enable(GLES30.GL_DEPTH_TEST);
+                break;
+        }
+    }
+
+    private void renderTerrain() {
+        setTerrainShader(shadows != null ? shadowedProgram : planetProgram);
+
+        long terrainDrawNanos = shadowDrawNanos;
+        int terrainDrawCalls = shadowDrawCalls;
+
         for (RenderPackage pass : renderPackages) {
             pass.bind();//binds the frame buffer
             GLSLProgram targetShader = pass.targetProgram;
             targetShader.useProgram();
             setRenderMode();
-            gridMesh.bindAttributes(targetShader, false);
+            gridMeshes.bindAttributes(targetShader);
             bindPlanetInfo(targetShader);
+            material.bindTextures();
+            if (shadows != null)
+                bindShadowMap(targetShader);
 
+            long start = System.nanoTime();
+            int drawcalls = gridMeshes.timeSystem.drawcalls;
 
             for (CDLODQuadTree chunk : cube) {
-                chunk.draw(pass, gridMesh, transform);
+                chunk.draw(pass, gridMeshes, transform, shadows);
             }
 
-            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
-            GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
-        }
-
-        renderAtmosphere();
-        renderClouds();
+            terrainDrawNanos += System.nanoTime() - start;
+            terrainDrawCalls += gridMeshes.timeSystem.drawcalls - drawcalls;
 
-        if (config.debug) {
-            GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-            for (CDLODQuadTree chunk : cube) {
-                chunk.drawAABB(BoundingBoxGeometry);
-            }
-            GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+            gridMeshes.unbindAttributes();
         }
 
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, 0);
+        recordStats(terrainDrawNanos, terrainDrawCalls);
     }
 
     private void renderClouds() {
@@ -355,97 +701,103 @@ public class Planet extends Renderer implements TerrainInterface {
         clouds.material.bindShader();
 
        
-        ShaderUniform3f camPos = (ShaderUniform3f) clouds.material.shader.getUniform("camPos");
+        ShaderUniform3f camPos = (ShaderUniform3f) clouds.material.shader.getUniform(camPosId);
         camPos.set( gameObject.engineManagers.mainCamera.transform.position);
         camPos.bind();
 
-        ShaderUniform3f lightPos = (ShaderUniform3f) clouds.material.shader.getUniform("lightPos");
+        ShaderUniform3f lightPos = (ShaderUniform3f) clouds.material.shader.getUniform(lightPosId);
         lightPos.set(gameObject.engineManagers.mainLight.transform.position);
         lightPos.bind();
 
-        GLES30.glEnable(GLES30.GL_BLEND);
-        GLES30.glBlendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE);
+        GLState.enable(GLES30.GL_BLEND);
+        GLState.blendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE);
 
         boolean cameraIsInside=clouds.isPointInside(gameObject.engineManagers.mainCamera.transform.position);
 
         if(cameraIsInside)
-            GLES30.glCullFace(GLES30.GL_FRONT);
+            GLState.cullFace(GLES30.GL_FRONT);
         else
             // To avoid zfighting issues when the camera is outside of the sphere
-            GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+            GLState.disable(GLES30.GL_DEPTH_TEST);
 
         clouds.draw();
 
         if(!cameraIsInside)
-            GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+            GLState.enable(GLES30.GL_DEPTH_TEST);
 
-        GLES30.glCullFace(GLES30.GL_BACK);
-        GLES30.glDisable(GLES30.GL_BLEND);
+        GLState.cullFace(GLES30.GL_BACK);
+        GLState.disable(GLES30.GL_BLEND);
     }
 
     private void renderAtmosphere() {
 
         atmosphere.material.bindShader();
-        ShaderUniform3f atmosphereCol = (ShaderUniform3f) atmosphere.material.shader.getUniform("u_atmosphere_color");
+        ShaderUniform3f atmosphereCol = (ShaderUniform3f) atmosphere.material.shader.getUniform(atmosphereColorId);
         atmosphereCol.bind();
 
-        ShaderUniform3f camPos = (ShaderUniform3f) atmosphere.material.shader.getUniform("camPos");
+        ShaderUniform3f camPos = (ShaderUniform3f) atmosphere.material.shader.getUniform(camPosId);
         camPos.set(gameObject.engineManagers.mainCamera.transform.position);
         camPos.bind();
 
-        ShaderUniform3f lightPos = (ShaderUniform3f) atmosphere.material.shader.getUniform("lightPos");
+        ShaderUniform3f lightPos = (ShaderUniform3f) atmosphere.material.shader.getUniform(lightPosId);
         lightPos.set(gameObject.engineManagers.mainLight.transform.position);
         lightPos.bind();
 
-        GLES30.glEnable(GLES30.GL_BLEND);
-        GLES30.glBlendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE);
+        GLState.enable(GLES30.GL_BLEND);
+        GLState.blendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE);
 
-        GLES30.glCullFace(GLES30.GL_FRONT);
+        GLState.cullFace(GLES30.GL_FRONT);
 
         atmosphere.draw();
 
-        GLES30.glCullFace(GLES30.GL_BACK);
-        GLES30.glDisable(GLES30.GL_BLEND);
+        GLState.cullFace(GLES30.GL_BACK);
+        GLState.disable(GLES30.GL_BLEND);
     }
 
     private void bindPlanetInfo(GLSLProgram shader) {
-        ShaderUniform3f meshInfoUniform = (ShaderUniform3f) shader.getUniform("meshInfo");
+        ShaderUniform3f meshInfoUniform = (ShaderUniform3f) shader.getUniform(meshInfoId);
         meshInfoUniform.set(terrainXZ, gridSize * rootQuadScale, yscale);
         meshInfoUniform.bind();
 
-        ShaderUniform3f v = (ShaderUniform3f) shader.getUniform("u_Fogcolor");
+        ShaderUniform3f v = (ShaderUniform3f) shader.getUniform(fogColorId);
         if (v != null) {
             Color4f fogColor = gameObject.engineManagers.mainLight.fogColor;
             v.set(fogColor.r, fogColor.g, fogColor.b);
             v.bind();
         }
 
-        ShaderUniform1f zfarVar = (ShaderUniform1f) shader.getUniform("zfar");
+        ShaderUniform1f zfarVar = (ShaderUniform1f) shader.getUniform(zfarId);
         if (zfarVar != null) {
             zfarVar.v = gameObject.engineManagers.mainCamera.frustum.zfar;
             zfarVar.bind();
         }
 
-        ShaderUniform3f camPosVar = (ShaderUniform3f) shader.getUniform("cameraPosition");
+        ShaderUniform3f camPosVar = (ShaderUniform3f) shader.getUniform(cameraPositionId);
         if (camPosVar != null) {
             camPosVar.set(gameObject.engineManagers.mainCamera.transform.position);
             camPosVar.bind();
         }
         Light l = gameObject.engineManagers.mainLight;
-        ShaderUniform3f lightpos = (ShaderUniform3f) shader.getUniform("u_LightPos");
+        ShaderUniform3f lightpos = (ShaderUniform3f) shader.getUniform(lightPosEyeId);
         if (lightpos != null) {
 
             lightpos.set(l.mLightPosInEyeSpace[0],l.mLightPosInEyeSpace[1],l.mLightPosInEyeSpace[2]);
             lightpos.bind();
         }
 
-        ShaderUniform3f ambientcolor = (ShaderUniform3f) shader.getUniform("ambientLight");
+        ShaderUniform3f ambientcolor = (ShaderUniform3f) shader.getUniform(ambientLightId);
         if (ambientcolor != null) {
             ambientcolor.set(l.lightAmbient[0],l.lightAmbient[1],l.lightAmbient[2]);
             ambientcolor.bind();
         }
     }
 
+    private void bindShadowMap(GLSLProgram shader) {
+        Sampler shadowMap = (Sampler) shader.getUniform(shadowMapId);
+        shadowMap.setTexture(shadowTexture);
+        shadowMap.bind();
+    }
+
     private void setRenderMode() {
         short solid = 0, wire = 0, texture = 0;
 
@@ -458,41 +810,49 @@ public class Planet extends Renderer implements TerrainInterface {
         if (config.texture)
             texture = 4;
 
-        ShaderUniform1f meshMode = (ShaderUniform1f) material.shader.getUniform("mode");
+        ShaderUniform1f meshMode = (ShaderUniform1f) material.shader.getUniform(modeId);
         meshMode.v = (solid | wire | texture);
         meshMode.bind();
     }
 
-    public void initializeRenderModes(FrameBufferInterface defaultFB, FrameBufferInterface shadowmapFB) {
-        defaultPass = new DefaultRenderPackage(defaultFB, material.shader);
-       // shadowPass = new ShadowmapRenderPackage(shadowmapFB, gameObject.engineManagers.sShaderSystem.shadowMapProgram);
-      //  shadowedDefaultPass =
-               // new DefaultRenderPackage(defaultFB, ShadowedTerrainShader.createInstance("shadowedterrain"));
+    /**
+     * Requires to run on the GL thread. The shadow map is only created when the shadows are
+     * enabled.
+     */
+    public void initializeRenderModes(FrameBufferInterface defaultFB, ShadowMapFrameBuffer shadowmapFB) {
+        planetProgram = material.shader;
+        defaultPass = new DefaultRenderPackage(defaultFB, planetProgram);
         renderPackages.add(defaultPass);
+
+        shadowFB = shadowmapFB;
+        shadowPass = new ShadowmapRenderPackage(shadowmapFB,
+                PlanetShadowPassProgram.createInstance(planetShadowPassID, gameObject.engineManagers.sShaderSystem));
+        shadowedProgram = ShadowedTerrainShader.createInstance(planetShadowedID, gameObject.engineManagers.sShaderSystem);
     }
 
     public void setConfig(CDLODSettings _config) {
         config = _config;
     }
 
+    /**
+     * The cascades are created (or released) by the next update, on the GL thread
+     */
     @Override
     public void shadowMapMode(boolean enabled) {
         config.shadowmap = enabled;
-
-        if (enabled) {
-            GLSLProgram shadowed = gameObject.engineManagers.sShaderSystem.getProgram(planetShadowedID);
-            if (shadowed != null) {
-                material.shader = shadowed;
-                ConfigShadowMapModeOn();
-            }
-        } else {
-            material.shader = gameObject.engineManagers.sShaderSystem.getProgram(planetShaderID);
-            ConfigShadowMapModeOff();
-        }
     }
 
     @Override
     public void setRangeDetail(float distRange) {
+        if (detailController != null)
+            detailController.reset(distRange);
+        applyRangeDetail(distRange);
+    }
+
+    private void applyRangeDetail(float distRange) {
+        rangeDetail = distRange;
+        screenErrorPixelsPerUnit = -1;
+
         float f = .004f;
         float prevPos = distRange * terrainXZ * f;
 
@@ -501,28 +861,101 @@ public class Planet extends Renderer implements TerrainInterface {
             prevPos = ranges[i - 1];
         }
 
-        gameObject.engineManagers.mainCamera.frustum.change_zvalues(rootQuadScale / (float) Math.pow(4, nLods - 1), ranges[nLods - 1]);
+        applyRanges();
+    }
 
-        //generate morph constants
+    /**
+     * Grid density (quads per node side) of every LOD level, the same for the 6 faces
+     * <p>
+     * The nodes of a level are seen from distances proportional to their side, so the error of a
+     * quad relative to the side of its node is seen with about the same size on the screen at
+     * every level. The target relative error is the default grid's (gridSize) averaged over the
+     * levels: a level gets the coarsest grid that meets it, denser where the terrain is rough at
+     * the scale of its quads and coarser where it's smooth. Then quads aren't made smaller than
+     * a heightmap texel (they would add triangles, not detail), and consecutive levels are kept
+     * within a factor of 2 so their vertices can morph (see GridMeshSet).
+     */
+    private int[] selectLodGrids() {
+        float target = 0;
+        for (int lod = 0; lod < nLods; lod++)
+            target += relativeQuadError(lod, gridSize) / nLods;
+
+        int[] grids = new int[nLods];
         for (int lod = 0; lod < nLods; lod++) {
-            float morphend = ranges[lod];
-            float morphstart = 0;
+            int grid = gridSizes[gridSizes.length - 1];
+            for (int g : gridSizes) {
+                if (relativeQuadError(lod, g) <= target * 1.0001f) {
+                    grid = g;
+                    break;
+                }
+            }
+
+            float texels = Float.MAX_VALUE;
+            for (CDLODQuadTree chunk : cube)
+                if (chunk.lodTexels(lod) > 0)
+                    texels = Math.min(texels, chunk.lodTexels(lod));
+
+            while (grid > gridSizes[0] && grid > texels)
+                grid /= 2;
 
             if (lod > 0)
-                morphstart = ranges[lod - 1];
+                grid = Math.max(grids[lod - 1] / 2, Math.min(2 * grids[lod - 1], grid));
 
-            morphstart = MiniMath.lerp(morphend, morphstart, morphstartratio);
-            rangeDistance[lod] = 1f / (morphend - morphstart); //y
-            morphconstz[lod] = morphend / (morphend - morphstart); //x
+            grids[lod] = grid;
         }
+        return grids;
+    }
+
+    /**
+     * @return biggest quad error of a LOD level on any face, relative to the side of its nodes
+     */
+    private float relativeQuadError(int lod, int grid) {
+        float error = 0;
+        for (CDLODQuadTree chunk : cube)
+            error = Math.max(error, chunk.quadError(lod, grid));
+        return error / cube[0].lodSide(lod);
     }
 
-    private void ConfigShadowMapModeOn() {
+    /**
+     * LOD ranges for the screen space error selection
+     * <p>
+     * A node of LOD l+1 is refined when its error, seen from the camera, is bigger than the
+     * threshold: at distances under error(l+1) * pixelsPerUnit / threshold, which is the range of
+     * LOD l. The per LOD errors are upper bounds of the node errors (see
+     * CDLODNodeArrays.lodError), so the ranges never stop a refinement the errors ask for. The
+     * root range is kept big enough to see the whole planet.
+     */
+    private void updateScreenErrorRanges(float pixelsPerUnit, float threshold) {
+        if (pixelsPerUnit == screenErrorPixelsPerUnit && threshold == screenErrorThreshold)
+            return;
+
+        screenErrorPixelsPerUnit = pixelsPerUnit;
+        screenErrorThreshold = threshold;
+
+        for (int lod = 0; lod < nLods; lod++) {
+            float error = 0;
+            for (CDLODQuadTree chunk : cube)
+                error = Math.max(error, lod + 1 < nLods ? chunk.lodError(lod + 1) : 2 * chunk.lodError(lod));
 
+            ranges[lod] = error * pixelsPerUnit / Math.max(threshold, 0.01f);
+
+            // same growth as the slider ranges: a LOD must cover at least twice the previous one
+            if (lod > 0)
+                ranges[lod] = Math.max(ranges[lod], 2 * ranges[lod - 1]);
+        }
+        ranges[nLods - 1] = Math.max(ranges[nLods - 1], 2 * terrainXZ);
+
+        applyRanges();
     }
 
-    private void ConfigShadowMapModeOff() {
+    /**
+     * Camera far plane and morph constants for the current ranges
+     */
+    private void applyRanges() {
+        gameObject.engineManagers.mainCamera.frustum.change_zvalues(rootQuadScale / (float) Math.pow(4, nLods - 1), ranges[nLods - 1]);
 
+        //generate morph constants
+        SelectionView.morphConstants(ranges, rangeDistance, morphconstz);
     }
 
     @Override
@@ -547,17 +980,50 @@ public class Planet extends Renderer implements TerrainInterface {
 
     @Override
     public void invalidateGLData() {
-        if (gridMesh != null)
-            gridMesh.invalidateVBO();
+        if (gridMeshes != null)
+            gridMeshes.invalidateVBO();
         if (atmosphere != null)
             atmosphere.invalidateVBO();
+        if (clouds != null)
+            clouds.invalidateVBO();
+        if (BoundingBoxGeometry != null)
+            BoundingBoxGeometry.invalidateVBO();
+        if (shadowFB != null)
+            shadowFB.invalidate();
+        if (shadows != null)
+            shadows.invalidate();
     }
 
+    /**
+     * The heightmap pixels are only needed to build the node bounds (see MinMaxHeightPyramid)
+     */
     public void freeHeightmapPixels() {
-        //TODO FIX
-        for (CDLODQuadTree chunk : cube) {
-           // chunk.material.displacementMap.freepixels();
-        }
+        Texture heightmap = material.getTexture(heightmapUniformId);
+        if (heightmap instanceof ArrayTexture)
+            ((ArrayTexture) heightmap).freepixels();
+    }
+
+    /**
+     * Merge the counters of the 6 faces into the frame's stats and keep them in the history
+     */
+    private void recordStats(long drawNanos, int drawCalls) {
+        frameStats.clear();
+        for (CDLODQuadTree chunk : cube)
+            frameStats.add(chunk.stats);
+
+        // the faces may have been selected in parallel, use the wall time instead of their sum
+        frameStats.selectionNanos = selectionNanos;
+        frameStats.drawNanos = drawNanos;
+        frameStats.drawCalls = drawCalls;
+        statsHistory.record(frameStats);
+    }
+
+    /**
+     * Per frame selection and terrain draw stats of the last frames
+     */
+    @Override
+    public SelectionStatsHistory getSelectionStats() {
+        return statsHistory;
     }
 
     @Override
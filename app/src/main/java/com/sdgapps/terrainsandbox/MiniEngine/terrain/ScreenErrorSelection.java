@@ -0,0 +1,201 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+import java.util.Arrays;
+
+/**
+ * Screen space error node selection for the faces of a planet, with an optional triangle budget
+ * <p>
+ * The LOD ranges are built from the projected geometric error bound of every LOD level (see
+ * Planet.updateScreenErrorRanges): a node is split when its error, seen from the camera, is over
+ * the pixel threshold. The selection itself follows the ranges like the depth first one does, a
+ * node is drawn whole only when none of its children is in range, and keeps the quarters whose
+ * children are out of range. That's what keeps the vertex morphing crack free: a node of level L
+ * is never drawn inside the range of level L-1, so neighbor nodes are at most one level apart
+ * and the finer one is fully morphed at their shared edge.
+ * <p>
+ * The triangle budget can't stop a refinement the ranges ask for, it acts on the threshold the
+ * ranges are built from instead (see rangeThreshold). The visible nodes of all the faces are
+ * split in order of their projected error (a max heap across the faces), so when the triangles
+ * go over the budget, the error of the node being split is the threshold whose ranges would have
+ * stopped before it. The next frames use that threshold, and move back towards the configured
+ * one while there is room in the budget.
+ */
+class ScreenErrorSelection {
+
+    /**
+     * The budget threshold goes back down while the selection uses less than this part of the
+     * budget, by this factor per frame
+     */
+    private static final float relaxBudget = 0.75f;
+    private static final float relaxRate = 0.95f;
+
+    private final CDLODQuadTree[] trees;
+
+    /*
+     * Binary max heap of (face, node) keyed by the projected error
+     */
+    private int[] heapFace = new int[256];
+    private int[] heapNode = new int[256];
+    private float[] heapError = new float[256];
+    private int heapSize;
+
+    private final int[] children = new int[4];
+
+    /**
+     * Threshold the triangle budget asks for, 0 while the budget isn't limiting
+     */
+    private float budgetError = 0;
+
+    ScreenErrorSelection(CDLODQuadTree[] _trees) {
+        trees = _trees;
+    }
+
+    /**
+     * @param maxPixelError  configured screen space error threshold, in pixels
+     * @param triangleBudget max triangles of the selection, 0 for no limit
+     * @return threshold to build the LOD ranges from: the configured one, raised while the
+     * selection doesn't fit in the triangle budget
+     */
+    float rangeThreshold(float maxPixelError, int triangleBudget) {
+        if (triangleBudget <= 0 || budgetError <= maxPixelError)
+            budgetError = 0;
+        return Math.max(maxPixelError, budgetError);
+    }
+
+    /**
+     * Select the nodes of every face with the current LOD ranges
+     *
+     * @param pixelsPerUnit  viewport height / (2 * tan(vertical fov / 2))
+     * @param triangleBudget max triangles of the selection, 0 for no limit. Only used to update
+     *                       the next rangeThreshold, this selection isn't cut short.
+     * @return the lowest lod reached by any face, Integer.MAX_VALUE if nothing was selected
+     */
+    int run(Camera camera, float pixelsPerUnit, int triangleBudget) {
+        long start = System.nanoTime();
+        Vec3f cameraPos = camera.gameObject.transform.position;
+
+        long triangles = 0;
+        float overBudgetError = 0;
+        heapSize = 0;
+
+        for (int face = 0; face < trees.length; face++) {
+            CDLODQuadTree tree = trees[face];
+            tree.beginScreenErrorSelection();
+
+            if (tree.rootVisible(camera)) {
+                push(face, 0, tree.projectedError(0, cameraPos, pixelsPerUnit));
+                triangles += tree.nodeTriangles(tree.lod(0));
+            }
+        }
+
+        while (heapSize > 0) {
+            int face = heapFace[0];
+            int node = heapNode[0];
+            float error = heapError[0];
+            pop();
+
+            CDLODQuadTree tree = trees[face];
+
+            if (tree.lod(node) == 0) {
+                tree.select(node, CDLODNodeArrays.SELECTED_WHOLE);
+                continue;
+            }
+
+            int quarters = tree.refine(node, camera, children);
+
+            if (quarters == CDLODNodeArrays.SELECTED_QUARTERS) {
+                // no child in range
+                tree.select(node, CDLODNodeArrays.SELECTED_WHOLE);
+                continue;
+            }
+
+            // the children may be drawn with a grid of a different density
+            int wholeTriangles = tree.nodeTriangles(tree.lod(node));
+            int childTriangles = tree.nodeTriangles(tree.lod(node) - 1);
+            triangles += Integer.bitCount(quarters) * wholeTriangles / 4 - wholeTriangles;
+            for (int child : children)
+                if (child != -1)
+                    triangles += childTriangles;
+
+            if (triangleBudget > 0 && triangles > triangleBudget && overBudgetError == 0)
+                overBudgetError = error;
+
+            if (quarters != 0)
+                tree.select(node, (byte) quarters);
+
+            for (int child : children)
+                if (child != -1)
+                    push(face, child, tree.projectedError(child, cameraPos, pixelsPerUnit));
+        }
+
+        if (overBudgetError > 0)
+            budgetError = Math.max(budgetError, overBudgetError);
+        else if (triangles < relaxBudget * triangleBudget)
+            budgetError *= relaxRate;
+
+        int minLod = Integer.MAX_VALUE;
+        for (CDLODQuadTree tree : trees)
+            minLod = Math.min(minLod, tree.endSelection(start));
+
+        return minLod;
+    }
+
+    private void push(int face, int node, float error) {
+        if (heapSize == heapNode.length) {
+            heapFace = Arrays.copyOf(heapFace, heapSize * 2);
+            heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+            heapError = Arrays.copyOf(heapError, heapSize * 2);
+        }
+
+        // sift up
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapError[parent] >= error)
+                break;
+            move(parent, i);
+            i = parent;
+        }
+
+        heapFace[i] = face;
+        heapNode[i] = node;
+        heapError[i] = error;
+    }
+
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0)
+            return;
+
+        int face = heapFace[heapSize];
+        int node = heapNode[heapSize];
+        float error = heapError[heapSize];
+
+        // sift the last entry down from the root
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && heapError[child + 1] > heapError[child])
+                child++;
+            if (heapError[child] <= error)
+                break;
+            move(child, i);
+            i = child;
+        }
+
+        heapFace[i] = face;
+        heapNode[i] = node;
+        heapError[i] = error;
+    }
+
+    private void move(int from, int to) {
+        heapFace[to] = heapFace[from];
+        heapNode[to] = heapNode[from];
+        heapError[to] = heapError[from];
+    }
+}
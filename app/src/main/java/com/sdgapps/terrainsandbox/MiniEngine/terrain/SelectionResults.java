@@ -1,15 +1,60 @@
 package com.sdgapps.terrainsandbox.MiniEngine.terrain;
 
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1fv;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform2fv;
-
-import java.util.HashSet;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
+/**
+ * Nodes selected by a CDLOD node selection pass.
+ * <p>
+ * Every entry holds the node index (in the CDLODNodeArrays of the tree), its LOD level, the
+ * selection bits ([0,3] -> quarters, [4] -> whole node) and a material id. Entries are kept in
+ * parallel primitive arrays that only grow, so clearing and refilling them every frame
+ * doesn't allocate.
+ * <p>
+ * The draw order is an index permutation of the entries. It is built with a stable counting
+ * sort, so for the same selection the nodes are always drawn in the same order.
+ */
 public class SelectionResults {
 
+    public static final int ORDER_SELECTION = 0;
+    public static final int ORDER_LOD = 1;
+    public static final int ORDER_MATERIAL = 2;
+
+    private static final int initialCapacity = 256;
+
+    private int[] nodes = new int[initialCapacity];
+    private byte[] lods = new byte[initialCapacity];
+    private byte[] masks = new byte[initialCapacity];
+    private short[] materials = new short[initialCapacity];
+    private int size = 0;
+
+    /**
+     * Draw order, order[i] is the entry drawn in i-th place
+     */
+    private int[] order = new int[initialCapacity];
+    private int orderMode = ORDER_LOD;
+    private boolean orderDirty = true;
+
+    /**
+     * Counting sort buckets, grown when a bigger key shows up
+     */
+    private int[] buckets = new int[16];
+    private int[] scratch = new int[initialCapacity];
 
-    private HashSet<SelectableNode> selectionList = new HashSet<>();
+    /**
+     * Entries of every combination of quarters, first instance of every instanced draw (and
+     * its end, in the next one), and the next instance to write in each. Indexed by the
+     * combination of quarters the draw uses, see GridMesh.instancedDraw.
+     * Reused by the draws of every mesh.
+     */
+    private final int[] drawCount = new int[16];
+    private final int[] drawStart = new int[17];
+    private final int[] drawNext = new int[16];
+
+    /**
+     * Material id given to the entries added with add(node, lod, bits)
+     */
+    int materialId = 0;
 
     public int getLowestLodReached() {
         return lowestLodReached;
@@ -19,42 +64,282 @@ public class SelectionResults {
 
     public void clear() {
         lowestLodReached = Integer.MAX_VALUE;
-        selectionList.clear();
+        size = 0;
+        orderDirty = true;
+    }
+
+    /**
+     * @param selectionBits the node's selection bits (see CDLODNodeArrays.SELECTED_WHOLE)
+     */
+    void add(int node, int lod, byte selectionBits) {
+        add(node, lod, selectionBits, materialId);
     }
 
-    int fullnodes=0;
-    int partialNodes=0;
-    public void add(CDLODNode cdlodNode, int lod) {
-        selectionList.add(cdlodNode);
+    void add(int node, int lod, byte selectionBits, int material) {
+        if (size == nodes.length)
+            grow(size * 2);
+
+        nodes[size] = node;
+        lods[size] = (byte) lod;
+        masks[size] = selectionBits;
+        materials[size] = (short) material;
+        size++;
+        orderDirty = true;
         lowestLodReached = Math.min(lowestLodReached, lod);
-        if(cdlodNode.selection[4])
-            fullnodes++;
-        else
-        {
-            if(cdlodNode.selection[0])
-                partialNodes++;
-            if(cdlodNode.selection[1])
-                partialNodes++;
-            if(cdlodNode.selection[2])
-                partialNodes++;
-            if(cdlodNode.selection[3])
-                partialNodes++;
+    }
+
+    /**
+     * Append the entries [start,end) of another selection, keeping their order
+     */
+    void addRange(SelectionResults from, int start, int end) {
+        for (int i = start; i < end; i++)
+            add(from.nodes[i], from.lods[i], from.masks[i], from.materials[i]);
+    }
+
+    private void grow(int capacity) {
+        nodes = Arrays.copyOf(nodes, capacity);
+        lods = Arrays.copyOf(lods, capacity);
+        masks = Arrays.copyOf(masks, capacity);
+        materials = Arrays.copyOf(materials, capacity);
+        order = Arrays.copyOf(order, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Node index of the i-th entry (selection order)
+     */
+    int get(int i) {
+        return nodes[i];
+    }
+
+    int getLod(int i) {
+        return lods[i];
+    }
+
+    byte getSelection(int i) {
+        return masks[i];
+    }
+
+    int getMaterial(int i) {
+        return materials[i];
+    }
+
+    /**
+     * @param mode ORDER_SELECTION, ORDER_LOD or ORDER_MATERIAL (LOD is used to break ties)
+     */
+    public void setOrder(int mode) {
+        if (mode != orderMode) {
+            orderMode = mode;
+            orderDirty = true;
         }
     }
 
-    public HashSet<SelectableNode> getSelectionList() {
-        return selectionList;
+    /**
+     * @return entry index of the i-th node in draw order
+     */
+    int ordered(int i) {
+        if (orderDirty)
+            buildOrder();
+        return order[i];
     }
 
+    private void buildOrder() {
+        orderDirty = false;
 
-    public void renderSelection(GridMesh gridMesh, GLSLProgram targetShader, float[] rangeDistances, float[] morphconsts)
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+
+        switch (orderMode) {
+            case ORDER_LOD:
+                sortByLod();
+                break;
+            case ORDER_MATERIAL:
+                // LSD: sort by the secondary key first, stability keeps it inside each material
+                sortByLod();
+                sortByMaterial();
+                break;
+        }
+    }
+
+    private void sortByLod() {
+        int maxKey = 0;
+        for (int i = 0; i < size; i++)
+            maxKey = Math.max(maxKey, lods[i]);
+
+        int[] count = bucketsFor(maxKey);
+        for (int i = 0; i < size; i++)
+            count[lods[i] + 1]++;
+        for (int k = 1; k <= maxKey + 1; k++)
+            count[k] += count[k - 1];
+
+        int[] src = order;
+        int[] dst = scratchOrder(size);
+        for (int i = 0; i < size; i++) {
+            int e = src[i];
+            dst[count[lods[e]]++] = e;
+        }
+        System.arraycopy(dst, 0, order, 0, size);
+    }
+
+    private void sortByMaterial() {
+        int maxKey = 0;
+        for (int i = 0; i < size; i++)
+            maxKey = Math.max(maxKey, materials[i]);
+
+        int[] count = bucketsFor(maxKey);
+        for (int i = 0; i < size; i++)
+            count[materials[i] + 1]++;
+        for (int k = 1; k <= maxKey + 1; k++)
+            count[k] += count[k - 1];
+
+        int[] src = order;
+        int[] dst = scratchOrder(size);
+        for (int i = 0; i < size; i++) {
+            int e = src[i];
+            dst[count[materials[e]]++] = e;
+        }
+        System.arraycopy(dst, 0, order, 0, size);
+    }
+
+    private int[] bucketsFor(int maxKey) {
+        if (buckets.length < maxKey + 2)
+            buckets = new int[Math.max(maxKey + 2, buckets.length * 2)];
+        Arrays.fill(buckets, 0, maxKey + 2, 0);
+        return buckets;
+    }
+
+    private int[] scratchOrder(int n) {
+        if (scratch.length < n)
+            scratch = new int[order.length];
+        return scratch;
+    }
+
+    /**
+     * Draw the selection as node instances of the grid meshes, one instanced draw per mesh and
+     * range of its index array (see GridMeshSet.lodMesh). The partially selected nodes are either
+     * drawn with the range of their combination of quarters (one instance per node), or split
+     * into single quarters (one instance per quarter), whatever takes fewer draws. The instances
+     * of every draw keep the draw order.
+     *
+     * @param layer texture array layer of the face the selection belongs to, see CDLODQuadTree.layer
+     * @param stats receives the submitted triangles
+     */
+    void renderSelection(GridMeshSet gridMeshes, CDLODNodeArrays nodeArrays, float[] rangeDistances, float[] morphconsts,
+                         int layer, SelectionStats stats)
+    {
+        if (size == 0)
+            return;
+
+        for (int mesh = 0; mesh < gridMeshes.meshCount(); mesh++)
+            renderMesh(gridMeshes, mesh, nodeArrays, rangeDistances, morphconsts, layer, stats);
+    }
+
+    /**
+     * Draw the entries whose LOD level is drawn with a mesh of the set
+     */
+    private void renderMesh(GridMeshSet gridMeshes, int mesh, CDLODNodeArrays nodeArrays, float[] rangeDistances,
+                            float[] morphconsts, int layer, SelectionStats stats)
     {
-        for (SelectableNode snode : getSelectionList()) {
-            ((CDLODNode) snode).renderSelectedParts(gridMesh, targetShader,rangeDistances,morphconsts);
+        int[] count = drawCount;
+        Arrays.fill(count, 0);
+        int entries = 0;
+        for (int i = 0; i < size; i++) {
+            if (gridMeshes.lodMesh(lods[i]) == mesh) {
+                count[quarters(masks[i])]++;
+                entries++;
+            }
+        }
+
+        if (entries == 0)
+            return;
+
+        // a draw per combination, or a draw per quarter the partial nodes cover
+        int combinationDraws = 0;
+        int coveredQuarters = 0;
+        for (int quarters = 1; quarters < 15; quarters++) {
+            if (count[quarters] > 0) {
+                combinationDraws++;
+                coveredQuarters |= quarters;
+            }
+        }
+        boolean split = Integer.bitCount(coveredQuarters) < combinationDraws;
+
+        int[] start = drawStart;
+        Arrays.fill(start, 0);
+        start[16] = count[15];
+        for (int quarters = 1; quarters < 15; quarters++) {
+            if (!split) {
+                start[quarters + 1] += count[quarters];
+            } else {
+                for (int q = 0; q < 4; q++)
+                    if ((quarters & (1 << q)) != 0)
+                        start[(1 << q) + 1] += count[quarters];
+            }
+        }
+
+        for (int d = 1; d < start.length; d++)
+            start[d] += start[d - 1];
+
+        GridMesh gridMesh = gridMeshes.use(mesh);
+        int instances = start[16];
+        FloatBuffer data = gridMesh.instanceData(instances);
+        int[] next = drawNext;
+        System.arraycopy(start, 0, next, 0, next.length);
+
+        for (int i = 0; i < size; i++) {
+            int e = ordered(i);
+            if (gridMeshes.lodMesh(lods[e]) != mesh)
+                continue;
+
+            int quarters = quarters(masks[e]);
+            float morphStep = gridMeshes.morphStep(lods[e]);
+
+            if (!split || quarters == 15) {
+                putInstance(data, next[quarters]++, nodes[e], lods[e], layer, nodeArrays, rangeDistances, morphconsts, morphStep);
+            } else {
+                for (int q = 0; q < 4; q++)
+                    if ((quarters & (1 << q)) != 0)
+                        putInstance(data, next[1 << q]++, nodes[e], lods[e], layer, nodeArrays, rangeDistances, morphconsts, morphStep);
+            }
+        }
+
+        gridMesh.uploadInstances(instances);
+
+        for (int quarters = 1; quarters < 16; quarters++) {
+            int n = start[quarters + 1] - start[quarters];
+            if (n == 0)
+                continue;
+
+            gridMesh.bindInstances(start[quarters]);
+            stats.trianglesSubmitted += gridMesh.instancedDraw(quarters, n);
         }
-        fullnodes=0;
-        partialNodes=0;
     }
 
-    static int drawnNodes=0;
+    /**
+     * @return the quarters of the grid mesh an entry draws, 15 for the whole nodes
+     */
+    private static int quarters(byte mask) {
+        if ((mask & CDLODNodeArrays.SELECTED_WHOLE) != 0)
+            return 15;
+        return mask & 15;
+    }
+
+    /**
+     * Write the instance attributes of a node, see GridMesh.InstanceFloats
+     */
+    private static void putInstance(FloatBuffer data, int instance, int node, int lod, int layer, CDLODNodeArrays nodeArrays,
+                                    float[] rangeDistances, float[] morphconsts, float morphStep) {
+        int i = instance * GridMesh.InstanceFloats;
+        data.put(i, nodeArrays.xOffset[node]);
+        data.put(i + 1, nodeArrays.zOffset[node]);
+        data.put(i + 2, nodeArrays.lodQuadScale[lod]);
+        data.put(i + 3, lod);
+        data.put(i + 4, morphconsts[lod]);
+        data.put(i + 5, rangeDistances[lod]);
+        data.put(i + 6, morphStep);
+        data.put(i + 7, layer);
+    }
 }
@@ -0,0 +1,118 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import java.util.Arrays;
+
+/**
+ * Counters of one frame of CDLOD node selection and terrain rendering
+ * <p>
+ * Every quad tree fills its own instance while selecting and drawing (so faces selected on
+ * different threads never share one), the planet merges them into the frame totals and keeps
+ * them in a SelectionStatsHistory.
+ */
+public class SelectionStats {
+
+    /**
+     * Nodes whose culling and range tests ran (subtrees reused by the incremental selection
+     * count as one)
+     */
+    public int nodesVisited;
+
+    /**
+     * Subtrees copied from the previous frame by the incremental selection
+     */
+    public int subtreesReused;
+
+    /**
+     * Nodes out of their LOD range: the root when the camera is too far, and children whose area
+     * is drawn by their parent
+     */
+    public int culledByRange;
+    public int culledByFrustum;
+    public int culledByHorizon;
+    public int culledByOcclusion;
+
+    /**
+     * Selected nodes per LOD level: whole nodes, and quarters of partially selected nodes
+     */
+    public int[] fullSelections;
+    public int[] partialSelections;
+
+    /**
+     * Triangles and draw calls submitted by every render pass
+     */
+    public long trianglesSubmitted;
+    public int drawCalls;
+
+    public long selectionNanos;
+    public long drawNanos;
+
+    public SelectionStats(int nLods) {
+        fullSelections = new int[nLods];
+        partialSelections = new int[nLods];
+    }
+
+    public void clear() {
+        nodesVisited = 0;
+        subtreesReused = 0;
+        culledByRange = 0;
+        culledByFrustum = 0;
+        culledByHorizon = 0;
+        culledByOcclusion = 0;
+        Arrays.fill(fullSelections, 0);
+        Arrays.fill(partialSelections, 0);
+        trianglesSubmitted = 0;
+        drawCalls = 0;
+        selectionNanos = 0;
+        drawNanos = 0;
+    }
+
+    /**
+     * Add the counters of another tree (times included)
+     */
+    public void add(SelectionStats other) {
+        nodesVisited += other.nodesVisited;
+        subtreesReused += other.subtreesReused;
+        culledByRange += other.culledByRange;
+        culledByFrustum += other.culledByFrustum;
+        culledByHorizon += other.culledByHorizon;
+        culledByOcclusion += other.culledByOcclusion;
+
+        for (int lod = 0; lod < fullSelections.length; lod++) {
+            fullSelections[lod] += other.fullSelections[lod];
+            partialSelections[lod] += other.partialSelections[lod];
+        }
+
+        trianglesSubmitted += other.trianglesSubmitted;
+        drawCalls += other.drawCalls;
+        selectionNanos += other.selectionNanos;
+        drawNanos += other.drawNanos;
+    }
+
+    /**
+     * Count the entries of a selection into fullSelections/partialSelections
+     */
+    void countSelection(SelectionResults selection) {
+        for (int i = 0; i < selection.size(); i++) {
+            byte bits = selection.getSelection(i);
+
+            if ((bits & CDLODNodeArrays.SELECTED_WHOLE) != 0)
+                fullSelections[selection.getLod(i)]++;
+            else
+                partialSelections[selection.getLod(i)] += Integer.bitCount(bits & CDLODNodeArrays.SELECTED_QUARTERS);
+        }
+    }
+
+    public int totalFullSelections() {
+        int total = 0;
+        for (int n : fullSelections)
+            total += n;
+        return total;
+    }
+
+    public int totalPartialSelections() {
+        int total = 0;
+        for (int n : partialSelections)
+            total += n;
+        return total;
+    }
+}
@@ -0,0 +1,151 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size ring buffer with the SelectionStats of the last frames
+ * <p>
+ * Every metric is stored in its own array of samples, so averages and percentiles only read the
+ * values they need. Nothing is allocated after construction.
+ */
+public class SelectionStatsHistory {
+
+    public static final int NODES_VISITED = 0;
+    public static final int SUBTREES_REUSED = 1;
+    public static final int CULLED_BY_RANGE = 2;
+    public static final int CULLED_BY_FRUSTUM = 3;
+    public static final int CULLED_BY_HORIZON = 4;
+    public static final int FULL_SELECTIONS = 5;
+    public static final int PARTIAL_SELECTIONS = 6;
+    public static final int TRIANGLES = 7;
+    public static final int DRAW_CALLS = 8;
+    public static final int SELECTION_NANOS = 9;
+    public static final int DRAW_NANOS = 10;
+    public static final int CULLED_BY_OCCLUSION = 11;
+    private static final int METRICS = 12;
+
+    private final int capacity;
+    private final long[][] samples;
+
+    /**
+     * Per LOD selections: [lod][frame]
+     */
+    private final int[][] fullPerLod;
+    private final int[][] partialPerLod;
+
+    private int next = 0;
+    private int size = 0;
+
+    private long[] sortScratch;
+
+    public SelectionStatsHistory(int _capacity, int nLods) {
+        capacity = _capacity;
+        samples = new long[METRICS][capacity];
+        fullPerLod = new int[nLods][capacity];
+        partialPerLod = new int[nLods][capacity];
+        sortScratch = new long[capacity];
+    }
+
+    public void record(SelectionStats stats) {
+        samples[NODES_VISITED][next] = stats.nodesVisited;
+        samples[SUBTREES_REUSED][next] = stats.subtreesReused;
+        samples[CULLED_BY_RANGE][next] = stats.culledByRange;
+        samples[CULLED_BY_FRUSTUM][next] = stats.culledByFrustum;
+        samples[CULLED_BY_HORIZON][next] = stats.culledByHorizon;
+        samples[FULL_SELECTIONS][next] = stats.totalFullSelections();
+        samples[PARTIAL_SELECTIONS][next] = stats.totalPartialSelections();
+        samples[TRIANGLES][next] = stats.trianglesSubmitted;
+        samples[DRAW_CALLS][next] = stats.drawCalls;
+        samples[SELECTION_NANOS][next] = stats.selectionNanos;
+        samples[DRAW_NANOS][next] = stats.drawNanos;
+        samples[CULLED_BY_OCCLUSION][next] = stats.culledByOcclusion;
+
+        for (int lod = 0; lod < fullPerLod.length; lod++) {
+            fullPerLod[lod][next] = stats.fullSelections[lod];
+            partialPerLod[lod][next] = stats.partialSelections[lod];
+        }
+
+        next = (next + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+    }
+
+    /**
+     * @return number of recorded frames, at most the capacity
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * @param framesAgo 0 is the last recorded frame, must be under size()
+     */
+    public long get(int metric, int framesAgo) {
+        if (framesAgo < 0 || framesAgo >= size)
+            throw new IndexOutOfBoundsException("SelectionStatsHistory: frame " + framesAgo + " of " + size);
+        return samples[metric][index(framesAgo)];
+    }
+
+    public double average(int metric) {
+        if (size == 0)
+            return 0;
+
+        long sum = 0;
+        long[] values = samples[metric];
+        for (int i = 0; i < size; i++)
+            sum += values[i];
+
+        return sum / (double) size;
+    }
+
+    public double averageFullSelections(int lod) {
+        return average(fullPerLod[lod]);
+    }
+
+    public double averagePartialSelections(int lod) {
+        return average(partialPerLod[lod]);
+    }
+
+    private double average(int[] values) {
+        if (size == 0)
+            return 0;
+
+        long sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += values[i];
+
+        return sum / (double) size;
+    }
+
+    /**
+     * Nearest rank percentile of the recorded frames
+     *
+     * @param percentile in [0,100], i.e. 50 for the median or 99 for the spikes
+     */
+    public long percentile(int metric, float percentile) {
+        if (size == 0)
+            return 0;
+
+        // the ring buffer order doesn't matter, only the set of values
+        System.arraycopy(samples[metric], 0, sortScratch, 0, size);
+        Arrays.sort(sortScratch, 0, size);
+
+        int rank = (int) Math.ceil(percentile / 100f * size);
+        return sortScratch[Math.max(0, Math.min(size - 1, rank - 1))];
+    }
+
+    public long max(int metric) {
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++)
+            max = Math.max(max, samples[metric][i]);
+        return size == 0 ? 0 : max;
+    }
+
+    private int index(int framesAgo) {
+        return ((next - 1 - framesAgo) % capacity + capacity) % capacity;
+    }
+}
@@ -0,0 +1,102 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Frustum;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.MiniMath;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+/**
+ * A secondary point of view the planet selects nodes for, in the same traversal as the main
+ * camera (i.e. a shadow map camera or another viewport)
+ * <p>
+ * Every view has its own culling frustum, its own LOD ranges (measured from its position) and
+ * its own selection of every face of the planet. The owner keeps the frustum planes and the
+ * position up to date before the planet's update, see Planet.addView.
+ */
+public class SelectionView {
+
+    public final Frustum frustum;
+
+    /**
+     * LOD ranges are measured from here, usually the frustum origin
+     */
+    public final Vec3f position = new Vec3f();
+
+    /**
+     * Horizon culling from the view position. Disable it for views whose visible set isn't
+     * bounded by the planet's horizon seen from their position.
+     */
+    public boolean horizonCulling = true;
+
+    /**
+     * The view's LOD ranges are the planet's times this, i.e. smaller than 1 for a coarser
+     * selection than the main camera's
+     */
+    public float rangeScale = 1f;
+
+    /**
+     * Keep the last selection instead of selecting again (i.e. a cached shadow cascade that
+     * isn't redrawn this frame). Its nodes are kept alive, see CDLODQuadTree.keepSelection.
+     */
+    public boolean keepSelection = false;
+
+    /**
+     * LOD ranges of the view, and the morph constants to draw its selection with
+     */
+    final float[] ranges;
+    final float[] rangeDistance;
+    final float[] morphconstz;
+
+    /**
+     * Selection of each face, indexed by CDLODQuadTree.face
+     */
+    final SelectionResults[] selections;
+
+    public SelectionView(Frustum _frustum, int nLods, int faces) {
+        frustum = _frustum;
+        ranges = new float[nLods];
+        rangeDistance = new float[nLods];
+        morphconstz = new float[nLods];
+        selections = new SelectionResults[faces];
+
+        for (int i = 0; i < faces; i++)
+            selections[i] = new SelectionResults();
+    }
+
+    /**
+     * Refresh the ranges from the planet's, done by the planet before every selection
+     */
+    void updateRanges(float[] planetRanges) {
+        for (int lod = 0; lod < ranges.length; lod++)
+            ranges[lod] = planetRanges[lod] * rangeScale;
+
+        morphConstants(ranges, rangeDistance, morphconstz);
+    }
+
+    /**
+     * @return entries selected for every face
+     */
+    public int size() {
+        int size = 0;
+        for (SelectionResults selection : selections)
+            size += selection.size();
+        return size;
+    }
+
+    /**
+     * Vertex morph constants of a set of LOD ranges: the morph of each LOD starts at
+     * Planet.morphstartratio of the way from its own range to the previous one
+     */
+    static void morphConstants(float[] ranges, float[] rangeDistance, float[] morphconstz) {
+        for (int lod = 0; lod < ranges.length; lod++) {
+            float morphend = ranges[lod];
+            float morphstart = 0;
+
+            if (lod > 0)
+                morphstart = ranges[lod - 1];
+
+            morphstart = MiniMath.lerp(morphend, morphstart, Planet.morphstartratio);
+            rangeDistance[lod] = 1f / (morphend - morphstart); //y
+            morphconstz[lod] = morphend / (morphend - morphstart); //x
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import android.opengl.Matrix;
+
+import com.sdgapps.terrainsandbox.MiniEngine.behaviours.Camera;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Frustum;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.ShadowMapFrameBuffer;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1fv;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
+
+/**
+ * Cascaded shadow maps of the sun over the planet
+ * <p>
+ * The distance to the camera is split in CASCADES slices, a blend of a logarithmic and a
+ * uniform split. Every cascade is an orthographic light view around a bounding sphere of its
+ * slice, snapped to the shadow map texels, so the shadows don't shimmer when the camera moves
+ * or turns. Each cascade is a SelectionView of the planet, with coarser LOD ranges the further
+ * the cascade is, selected in the same traversal as the main camera.
+ * <p>
+ * Distant cascades (from firstCachedCascade on) are cached: their sphere is centered on the
+ * camera, covers all directions and has a margin around the slice, so they stay valid while
+ * the camera moves less than the margin and the light turns less than lightThreshold. They
+ * keep their selection and their shadow map until then.
+ */
+class ShadowCascades {
+
+    static final int CASCADES = ShadowMapFrameBuffer.LAYERS;
+
+    private static final int firstCachedCascade = 2;
+
+    /**
+     * Camera movement a cached cascade allows, relative to its slice's far distance
+     */
+    private static final float cacheMargin = 0.25f;
+
+    /**
+     * Cosine of the light direction change that redraws the cached cascades (0.5 degrees)
+     */
+    private static final float lightThreshold = (float) Math.cos(Math.toRadians(0.5));
+
+    /**
+     * 0: uniform splits, 1: logarithmic splits
+     */
+    private static final float splitLambda = 0.75f;
+
+    /**
+     * Uniform ids, see GLSLProgram.uniformId
+     */
+    private static final int shadowMatricesId = GLSLProgram.uniformId("u_shadowMatrices");
+    private static final int cascadeSplitsId = GLSLProgram.uniformId("u_cascadeSplits");
+
+    final SelectionView[] views = new SelectionView[CASCADES];
+    private final Frustum[] frusta = new Frustum[CASCADES];
+
+    /**
+     * World to clip space of every cascade's light view
+     */
+    final float[][] viewProjection = new float[CASCADES][16];
+
+    /**
+     * World to shadow map texture space ([0,1] xyz)
+     */
+    private final float[][] textureProjection = new float[CASCADES][16];
+
+    /**
+     * Distance to the camera where every cascade ends, as they were drawn
+     */
+    private final float[] splits = new float[CASCADES];
+
+    /**
+     * Cascades to draw this frame
+     */
+    final boolean[] pending = new boolean[CASCADES];
+
+    /*
+     * State the cached cascades were drawn with
+     */
+    private final boolean[] valid = new boolean[CASCADES];
+    private final Vec3f[] drawnCenter = new Vec3f[CASCADES];
+    private final Vec3f[] drawnLight = new Vec3f[CASCADES];
+    private final float[] drawnSplit = new float[CASCADES];
+
+    private final int mapSize;
+
+    /**
+     * Distance behind a cascade (towards the light) the casters are taken from
+     */
+    private final float casterDistance;
+
+    private final Vec3f lightDir = new Vec3f();
+    private final Vec3f lightUp = new Vec3f();
+    private final Vec3f lightRight = new Vec3f();
+    private final Vec3f center = new Vec3f();
+    private final Vec3f eye = new Vec3f();
+    private final float[] view = new float[16];
+    private final float[] projection = new float[16];
+    private final float[] bias = new float[16];
+
+    ShadowCascades(Planet planet, int _mapSize, float _casterDistance) {
+        mapSize = _mapSize;
+        casterDistance = _casterDistance;
+
+        // clip space [-1,1] to texture space [0,1]
+        Matrix.setIdentityM(bias, 0);
+        Matrix.translateM(bias, 0, 0.5f, 0.5f, 0.5f);
+        Matrix.scaleM(bias, 0, 0.5f, 0.5f, 0.5f);
+
+        for (int i = 0; i < CASCADES; i++) {
+            frusta[i] = new Frustum();
+            views[i] = planet.addView(frusta[i]);
+            // the light sees the far side of the hills the camera doesn't
+            views[i].horizonCulling = false;
+            views[i].rangeScale = 1f / (2 << i);
+            drawnCenter[i] = new Vec3f();
+            drawnLight[i] = new Vec3f();
+        }
+    }
+
+    void release(Planet planet) {
+        for (SelectionView v : views)
+            planet.removeView(v);
+    }
+
+    /**
+     * Draw every cascade again (i.e. the shadow map was lost with the GL context)
+     */
+    void invalidate() {
+        for (int i = 0; i < CASCADES; i++)
+            valid[i] = false;
+    }
+
+    /**
+     * Place the cascades for this frame and decide which ones are drawn, before the planet's
+     * node selection
+     *
+     * @param lightPosition  the sun, far enough to be a directional light
+     * @param planetCenter   world space
+     * @param shadowDistance distance to the camera where the last cascade ends
+     */
+    void update(Camera camera, Vec3f lightPosition, Vec3f planetCenter, float shadowDistance) {
+        Vec3f cameraPos = camera.gameObject.transform.position;
+        Frustum f = camera.frustum;
+
+        // light direction from the planet's center: it doesn't change when the camera moves
+        lightDir.set(planetCenter);
+        lightDir.sub(lightPosition);
+        lightDir.normalize();
+
+        // stable light basis, only changes with the light
+        if (Math.abs(lightDir.y) < 0.99f)
+            lightRight.set(lightDir.calcCross(Vec3f.Yvector));
+        else
+            lightRight.set(lightDir.calcCross(Vec3f.Xvector));
+        lightRight.normalize();
+        lightUp.set(lightRight.calcCross(lightDir));
+        lightUp.normalize();
+
+        // slices by distance to the eye (the shader picks the cascade by distance): a slice
+        // starting at distance n starts at depth n / sqrt(1 + k2) at the frustum's corners
+        float tanX = 1f / f.projectionMatrix[0];
+        float tanY = 1f / f.projectionMatrix[5];
+        float k2 = tanX * tanX + tanY * tanY;
+        float cornerScale = (float) Math.sqrt(1 + k2);
+
+        float near = f.znear;
+        float start = near;
+
+        for (int i = 0; i < CASCADES; i++) {
+            float t = (i + 1) / (float) CASCADES;
+            float uniform = near + (shadowDistance - near) * t;
+            float log = near * (float) Math.pow(shadowDistance / near, t);
+            float end = splitLambda * log + (1 - splitLambda) * uniform;
+
+            float radius;
+            boolean cached = i >= firstCachedCascade;
+
+            if (!cached) {
+                // bounding sphere of the slice, on the view axis
+                float sliceNear = start / cornerScale;
+                float z = Math.min(end, (end + sliceNear) * (1 + k2) * 0.5f);
+                radius = (float) Math.sqrt((end - z) * (end - z) + end * end * k2);
+                center.set(f.viewAxis);
+                center.scalarMul(z);
+                center.add(cameraPos);
+            } else {
+                radius = end * (1 + cacheMargin);
+                center.set(cameraPos);
+
+                pending[i] = !valid[i] || lightDir.calcDot(drawnLight[i]) < lightThreshold
+                        || Math.abs(end - drawnSplit[i]) > drawnSplit[i] * 0.01f
+                        || cameraPos.distance(drawnCenter[i]) > drawnSplit[i] * cacheMargin;
+
+                views[i].keepSelection = !pending[i];
+                if (!pending[i]) {
+                    start = end;
+                    continue;
+                }
+            }
+
+            pending[i] = true;
+            views[i].keepSelection = false;
+            placeCascade(i, radius);
+            views[i].position.set(cameraPos);
+
+            splits[i] = end;
+            valid[i] = true;
+            drawnCenter[i].set(cameraPos);
+            drawnLight[i].set(lightDir);
+            drawnSplit[i] = end;
+            start = end;
+        }
+    }
+
+    /**
+     * Light view of a cascade around the sphere (center, radius), snapped to its texels
+     */
+    private void placeCascade(int i, float radius) {
+        float texel = 2 * radius / mapSize;
+
+        // move the center in texel steps across the light's view plane
+        float x = (float) Math.floor(center.calcDot(lightRight) / texel) * texel;
+        float y = (float) Math.floor(center.calcDot(lightUp) / texel) * texel;
+        float z = center.calcDot(lightDir);
+
+        float back = radius + casterDistance;
+        eye.x = lightRight.x * x + lightUp.x * y + lightDir.x * (z - back);
+        eye.y = lightRight.y * x + lightUp.y * y + lightDir.y * (z - back);
+        eye.z = lightRight.z * x + lightUp.z * y + lightDir.z * (z - back);
+
+        float far = back + radius;
+        frusta[i].calcOrthoClippingPlanes(eye, lightDir, lightUp, lightRight, radius, radius, 0, far);
+
+        Matrix.setLookAtM(view, 0, eye.x, eye.y, eye.z,
+                eye.x + lightDir.x, eye.y + lightDir.y, eye.z + lightDir.z,
+                lightUp.x, lightUp.y, lightUp.z);
+        Matrix.orthoM(projection, 0, -radius, radius, -radius, radius, 0, far);
+        Matrix.multiplyMM(viewProjection[i], 0, projection, 0, view, 0);
+        Matrix.multiplyMM(textureProjection[i], 0, bias, 0, viewProjection[i], 0);
+    }
+
+    /**
+     * Send the cascade splits and the shadow map matrices of a node tree to the shadowed
+     * terrain shader
+     *
+     * @param modelMatrix the tree's object to world space
+     */
+    void bindShadowMatrices(GLSLProgram shader, float[] modelMatrix) {
+        ShaderUniformMatrix4fv matrices = (ShaderUniformMatrix4fv) shader.getUniform(shadowMatricesId);
+        if (matrices == null)
+            return;
+
+        for (int i = 0; i < CASCADES; i++)
+            Matrix.multiplyMM(matrices.array, i * 16, textureProjection[i], 0, modelMatrix, 0);
+        matrices.bind();
+
+        ShaderUniform1fv cascadeSplits = (ShaderUniform1fv) shader.getUniform(cascadeSplitsId);
+        System.arraycopy(splits, 0, cascadeSplits.array, 0, CASCADES);
+        cascadeSplits.bind();
+    }
+}
@@ -4,7 +4,7 @@ import android.content.res.AssetManager;
 
 import com.sdgapps.terrainsandbox.MiniEngine.EngineManagers;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.Texture2D;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.texture.TextureManager;
 import com.sdgapps.terrainsandbox.utils.StringFileReader;
 
 import java.io.IOException;
@@ -28,10 +28,13 @@ public class TerrainData {
     private ArrayList<String> splatMaps;
     private String textureArraySplat;
 
-    Texture[] TexColorMaps;
-    Texture[] TexDisplacementMaps;
-    Texture[] TexNormalMaps;
-    Texture[] TexSplatMaps;
+    /**
+     * Maps of every face, one layer per face in the order of the file
+     */
+    Texture TexColorMaps;
+    Texture TexDisplacementMaps;
+    Texture TexNormalMaps;
+    Texture TexSplatMaps;
 
     Texture TexArraySplat;
     Texture Clouds;
@@ -91,30 +94,22 @@ public class TerrainData {
     }
 
     public void LoadTextures(EngineManagers engineManagers) {
-        TexColorMaps = new Texture[colorMaps.size()];
-        for (int i = 0; i < colorMaps.size(); i++) {
-            TexColorMaps[i] = engineManagers.textureManager.add2DTexture(colorMaps.get(i), true, false, Texture2D.FILTER_LINEAR, Texture2D.WRAP_CLAMP,false,true);
-        }
-
-        TexNormalMaps = new Texture2D[normalMaps.size()];
-        for (int i = 0; i < normalMaps.size(); i++) {
-            TexNormalMaps[i] = engineManagers.textureManager.add2DTexture(normalMaps.get(i), true, false, Texture2D.FILTER_LINEAR, Texture2D.WRAP_CLAMP,false,true);
-        }
-
-        TexDisplacementMaps = new Texture2D[displacementMaps.size()];
-        for (int i = 0; i < displacementMaps.size(); i++) {
-            TexDisplacementMaps[i] = engineManagers.textureManager.add2DTexture(displacementMaps.get(i), false, false, Texture2D.FILTER_LINEAR, Texture2D.WRAP_CLAMP,true,true);
-        }
-
-        TexSplatMaps = new Texture2D[splatMaps.size()];
-        for (int i = 0; i < splatMaps.size(); i++) {
-            TexSplatMaps[i] = engineManagers.textureManager.add2DTexture(splatMaps.get(i), true, false, Texture2D.FILTER_LINEAR, Texture2D.WRAP_CLAMP,false,false);
-        }
+        TextureManager textures = engineManagers.textureManager;
+        TexColorMaps = textures.addArrayTexture(toArray(colorMaps), true, false, Texture.FILTER_LINEAR, Texture.WRAP_CLAMP, false, true);
+        TexNormalMaps = textures.addArrayTexture(toArray(normalMaps), true, false, Texture.FILTER_LINEAR, Texture.WRAP_CLAMP, false, true);
+        // the node bounds are built from the heightmap pixels
+        TexDisplacementMaps = textures.addArrayTexture(toArray(displacementMaps), false, false, Texture.FILTER_LINEAR, Texture.WRAP_CLAMP, true, true);
+        // splat maps must have a non-premultiplied alpha channel
+        TexSplatMaps = textures.addArrayTexture(toArray(splatMaps), true, false, Texture.FILTER_LINEAR, Texture.WRAP_CLAMP, false, false);
 
         TexArraySplat=engineManagers.textureManager.addArrayTexture(textureArraySplat,true,false,Texture.FILTER_LINEAR,Texture.WRAP_REPEAT);
         Clouds=engineManagers.textureManager.add2DTexture("textures/cloudswithmips",true,false,true, Texture.WRAP_CLAMP,false,true);
     }
 
+    private static String[] toArray(ArrayList<String> paths) {
+        return paths.toArray(new String[0]);
+    }
+
     public boolean isPlanetaryScene() {
         return planetaryScene;
     }
@@ -20,4 +20,6 @@ public interface TerrainInterface {
     int getRangeDistMin();
 
     int getRangeSteps();
+
+    SelectionStatsHistory getSelectionStats();
 }
@@ -10,6 +10,9 @@ public class BoundingBoxProgram extends GLSLProgram {
         ShaderUniformMatrix4fv MVPMatrix=new ShaderUniformMatrix4fv("u_MVPMatrix");
         addUniform(MVPMatrix);
         linkAttribute("a_Position");
+        linkAttribute("a_boxCenter");
+        linkAttribute("a_boxScale");
+        linkAttribute("a_boxColor");
     }
 
     public static GLSLProgram createInstance(String id, ShaderSystem shaderSys)
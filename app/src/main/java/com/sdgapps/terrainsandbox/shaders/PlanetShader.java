@@ -1,17 +1,22 @@
 package com.sdgapps.terrainsandbox.shaders;
 
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Sampler2D;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Sampler2DArray;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderSystem;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1f;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform2f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform3f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
 
 public class PlanetShader extends GLSLProgram {
     private PlanetShader(String id, ShaderSystem shaderSys) {
-        super(id, "shaders/planet_vertex.glsl", "shaders/planet_fragment.glsl",shaderSys,true);
+        this(id, shaderSys, null);
+    }
+
+    /**
+     * @param defines variant of the planet shader to build, see ShadowedTerrainShader
+     */
+    protected PlanetShader(String id, ShaderSystem shaderSys, String defines) {
+        super(id, "shaders/planet_vertex.glsl", "shaders/planet_fragment.glsl",shaderSys,true,defines);
 
         configureTerrainShader();
     }
@@ -28,16 +33,15 @@ public class PlanetShader extends GLSLProgram {
     }
 
     public void configureTerrainShader() {
-        //samplers
-        Sampler2D heightmap = new Sampler2D("u_heightMap");
-        Sampler2D colormap=new Sampler2D("u_colorMap");
-        Sampler2D normalmap=new Sampler2D("u_normalMap");
-        Sampler2D splatmap=new Sampler2D("u_splatMap");
+        //samplers of the face maps, one layer per cube face
+        Sampler2DArray heightmap = new Sampler2DArray("u_heightMap");
+        Sampler2DArray colormap=new Sampler2DArray("u_colorMap");
+        Sampler2DArray normalmap=new Sampler2DArray("u_normalMap");
+        Sampler2DArray splatmap=new Sampler2DArray("u_splatMap");
         Sampler2DArray splatarray=new Sampler2DArray("u_splatArray");
 
         //uniforms
         ShaderUniform1f mode = new ShaderUniform1f("mode");
-        ShaderUniform1f gridDim = new ShaderUniform1f("gridDim");
 
         ShaderUniform3f CDLODcampos = new ShaderUniform3f("cameraPosition");
 
@@ -48,11 +52,6 @@ public class PlanetShader extends GLSLProgram {
         ShaderUniform3f lightpos = new ShaderUniform3f("u_LightPos");
         ShaderUniform3f lightambient = new ShaderUniform3f("ambientLight");
 
-        ShaderUniform1f CDLODLodlevel = new ShaderUniform1f("lodlevel");
-        ShaderUniform2f CDLODNodeOffset = new ShaderUniform2f("nodeoffset");
-        ShaderUniform2f CDLODrange = new ShaderUniform2f("range");
-        ShaderUniform1f CDLODQuadScale = new ShaderUniform1f("quad_scale");
-
         //matrices
         ShaderUniformMatrix4fv MVPMatrix=new ShaderUniformMatrix4fv("u_MVPMatrix");
         ShaderUniformMatrix4fv MVMatrix=new ShaderUniformMatrix4fv("u_MVMatrix");
@@ -60,11 +59,13 @@ public class PlanetShader extends GLSLProgram {
         //attributes
         linkAttribute("a_gridPosition");
         linkAttribute("a_barycentric");
+        linkAttribute("a_nodeInstance");
+        linkAttribute("a_nodeMorph");
+        linkAttribute("a_nodeLayer");
 
         //add everything to the shader
         addUniform(MVMatrix);
         addUniform(MVPMatrix);
-        addUniform(gridDim);
 
         addUniform(mode);
         addUniform(heightmap);
@@ -73,13 +74,9 @@ public class PlanetShader extends GLSLProgram {
         addUniform(splatmap);
         addUniform(splatarray);
 
-        addUniform(CDLODQuadScale);
-        addUniform(CDLODrange);
         addUniform(CDLODcampos);
         addUniform(CDLODMeshInfo);
         addUniform(CDLODzfar);
-        addUniform(CDLODLodlevel);
-        addUniform(CDLODNodeOffset);
         addUniform(fogcolorTerrain);
         addUniform(lightpos);
         addUniform(lightambient);
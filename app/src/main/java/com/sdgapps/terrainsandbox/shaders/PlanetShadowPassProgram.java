@@ -1,15 +1,17 @@
 package com.sdgapps.terrainsandbox.shaders;
 
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Sampler2DArray;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderSystem;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1f;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform2f;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform3f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
 
+/**
+ * Depth only pass of the planet nodes into a shadow map cascade
+ */
 public class PlanetShadowPassProgram extends GLSLProgram {
     private PlanetShadowPassProgram(String id, ShaderSystem shaderSys) {
-        //super(id, R.raw.shadowmap_vertex, R.raw.shadowmap_fragment);
-        super(id, "","",shaderSys,true);
+        super(id, "shaders/planet_shadow_vertex.glsl", "shaders/planet_shadow_fragment.glsl",shaderSys,true);
         configureShadowmapShader();
     }
 
@@ -25,20 +27,24 @@ public class PlanetShadowPassProgram extends GLSLProgram {
     }
 
     public void configureShadowmapShader() {
-        ShaderUniform1f shadowmapCDLODQuadScale = new ShaderUniform1f("quad_scale");
-        ShaderUniform3f shadowmapCDLODrange = new ShaderUniform3f("range");
+        Sampler2DArray heightmap = new Sampler2DArray("u_heightMap");
+
         ShaderUniform3f shadowmapCDLODcampos = new ShaderUniform3f("cameraPosition");
-        ShaderUniform1f shadowmapCDLODGriddim = new ShaderUniform1f("gridDim");
-        ShaderUniform2f shadowmapCDLODBaseXZ = new ShaderUniform2f("baseXZ");
         ShaderUniform3f shadowmapCDLODMeshInfo = new ShaderUniform3f("meshInfo");
-        ShaderUniform3f shadowmapCDLODnodeoffset = new ShaderUniform3f("nodeoffset");
 
-        addUniform(shadowmapCDLODQuadScale);
-        addUniform(shadowmapCDLODrange);
+        //light view projection * model, and model to measure the LOD ranges in world space
+        ShaderUniformMatrix4fv MVPMatrix = new ShaderUniformMatrix4fv("u_MVPMatrix");
+        ShaderUniformMatrix4fv MMatrix = new ShaderUniformMatrix4fv("u_MMatrix");
+
+        linkAttribute("a_gridPosition");
+        linkAttribute("a_nodeInstance");
+        linkAttribute("a_nodeMorph");
+        linkAttribute("a_nodeLayer");
+
+        addUniform(heightmap);
+        addUniform(MVPMatrix);
+        addUniform(MMatrix);
         addUniform(shadowmapCDLODcampos);
-        addUniform(shadowmapCDLODGriddim);
-        addUniform(shadowmapCDLODBaseXZ);
         addUniform(shadowmapCDLODMeshInfo);
-        addUniform(shadowmapCDLODnodeoffset);
     }
 }
@@ -1,14 +1,19 @@
 package com.sdgapps.terrainsandbox.shaders;
 
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.ShadowMapFrameBuffer;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.GLSLProgram;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.Sampler2DArray;
 import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderSystem;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1f;
-import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform3f;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniform1fv;
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.glsl.ShaderUniformMatrix4fv;
 
-public class ShadowedTerrainShader extends GLSLProgram {
+/**
+ * The planet shader with the cascaded shadow maps of the sun (SHADOWS variant of the planet
+ * shader files)
+ */
+public class ShadowedTerrainShader extends PlanetShader {
     private ShadowedTerrainShader(String id, ShaderSystem shaderSys) {
-        super(id, "","",shaderSys,true);
-        //super(id, R.raw.terrain_vertex_shadowed, R.raw.terrain_fragment_derivative_shadowed_);
+        super(id, shaderSys, "#define SHADOWS\n");
         configureShadowedTerrainShader();
     }
 
@@ -24,26 +29,18 @@ public class ShadowedTerrainShader extends GLSLProgram {
     }
 
     public void configureShadowedTerrainShader() {
+        Sampler2DArray shadowMap = new Sampler2DArray("u_shadowMap");
 
-        ShaderUniform1f CDLODQuadScaleShadowed = new ShaderUniform1f("quad_scale");
-        ShaderUniform3f CDLODrangeShadowed = new ShaderUniform3f("range");
-        ShaderUniform3f CDLODcamposShadowed = new ShaderUniform3f("cameraPosition");
-        ShaderUniform1f CDLODGriddimShadowed = new ShaderUniform1f("gridDim");
-        ShaderUniform3f CDLODMeshInfoShadowed = new ShaderUniform3f("meshInfo");
-        ShaderUniform1f CDLODzfarShadowed = new ShaderUniform1f("zfar");
-        ShaderUniform1f CDLODLodlevelShadowed = new ShaderUniform1f("lodlevel");
-        ShaderUniform3f CDLODNodeOffsetShadowed = new ShaderUniform3f("nodeoffset");
+        //object space to shadow map texture space of every cascade
+        ShaderUniformMatrix4fv shadowMatrices = new ShaderUniformMatrix4fv("u_shadowMatrices");
+        shadowMatrices.array = new float[16 * ShadowMapFrameBuffer.LAYERS];
 
-        addUniform(CDLODQuadScaleShadowed);
-        addUniform(CDLODrangeShadowed);
-        addUniform(CDLODcamposShadowed);
-        addUniform(CDLODGriddimShadowed);
-        addUniform(CDLODMeshInfoShadowed);
-        addUniform(CDLODzfarShadowed);
-        addUniform(CDLODLodlevelShadowed);
-        addUniform(CDLODNodeOffsetShadowed);
+        //distance to the eye where every cascade ends
+        ShaderUniform1fv cascadeSplits = new ShaderUniform1fv("u_cascadeSplits");
+        cascadeSplits.array = new float[ShadowMapFrameBuffer.LAYERS];
 
-        ShaderUniform3f fogcolorTerrainShadowed = new ShaderUniform3f("u_Fogcolor");
-        addUniform(fogcolorTerrainShadowed);
+        addUniform(shadowMap);
+        addUniform(shadowMatrices);
+        addUniform(cascadeSplits);
     }
 }
@@ -0,0 +1,41 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Layout of the grid mesh index array: every combination of quarters must be a single run
+ */
+public class GridMeshQuarterSequenceTest {
+
+    @Test
+    public void sequenceLayout() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 0, 2, 1, 3, 0}, GridMesh.buildQuarterSequence());
+    }
+
+    @Test
+    public void everyCombinationHasARunOfExactlyItsQuarters() {
+        int[] sequence = GridMesh.buildQuarterSequence();
+
+        for (int quarters = 1; quarters < 16; quarters++) {
+            int first = GridMesh.findRun(sequence, sequence.length, quarters);
+            assertTrue("no run for combination " + quarters, first != -1);
+
+            int length = Integer.bitCount(quarters);
+            assertTrue(first + length <= sequence.length);
+
+            int run = 0;
+            for (int i = first; i < first + length; i++)
+                run |= 1 << sequence[i];
+            assertEquals("run of combination " + quarters, quarters, run);
+        }
+    }
+
+    @Test
+    public void wholeMeshIsTheFirstRun() {
+        assertEquals(0, GridMesh.findRun(GridMesh.buildQuarterSequence(), 9, 15));
+    }
+}
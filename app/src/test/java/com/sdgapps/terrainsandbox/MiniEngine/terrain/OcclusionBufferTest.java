@@ -0,0 +1,123 @@
+package com.sdgapps.terrainsandbox.MiniEngine.terrain;
+
+import com.sdgapps.terrainsandbox.MiniEngine.graphics.Vec3f;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Software occlusion culling: conservative rasterization and hierarchical-Z box tests
+ */
+public class OcclusionBufferTest {
+
+    private OcclusionBuffer buffer;
+
+    @Before
+    public void setUp() {
+        // camera at the origin looking down +z, 90 degrees field of view
+        buffer = new OcclusionBuffer(64, 32);
+        buffer.begin(new Vec3f(0, 0, 0), new Vec3f(1, 0, 0), new Vec3f(0, 1, 0), new Vec3f(0, 0, 1),
+                1f, 1f, 1f);
+    }
+
+    /**
+     * Quad facing the camera at the given depth
+     */
+    private void wall(float minX, float minY, float maxX, float maxY, float z) {
+        float[] corners = {
+                minX, minY, z,
+                maxX, minY, z,
+                maxX, maxY, z,
+                minX, maxY, z};
+        buffer.addQuad(corners, 0);
+        buffer.buildHiZ();
+    }
+
+    @Test
+    public void emptyBufferOccludesNothing() {
+        buffer.buildHiZ();
+        assertFalse(buffer.isOccluded(-1, -1, 10, 1, 1, 12));
+    }
+
+    @Test
+    public void boxBehindWallIsOccluded() {
+        wall(-100, -100, 100, 100, 50);
+
+        assertTrue(buffer.isOccluded(-10, -10, 100, 10, 10, 120));
+        assertTrue(buffer.isOccluded(-200, -200, 500, 200, 200, 600));
+    }
+
+    @Test
+    public void boxInFrontOfWallIsVisible() {
+        wall(-100, -100, 100, 100, 50);
+
+        assertFalse(buffer.isOccluded(-1, -1, 10, 1, 1, 12));
+        // crosses the wall
+        assertFalse(buffer.isOccluded(-1, -1, 40, 1, 1, 60));
+    }
+
+    @Test
+    public void boxAroundWallEdgeIsVisible() {
+        // covers the left half of the screen
+        wall(-100, -100, 0, 100, 50);
+
+        assertTrue(buffer.isOccluded(-30, -10, 100, -20, 10, 110));
+        assertFalse(buffer.isOccluded(-10, -10, 100, 10, 10, 110));
+        assertFalse(buffer.isOccluded(20, -10, 100, 30, 10, 110));
+    }
+
+    @Test
+    public void boxCrossingNearPlaneIsVisible() {
+        wall(-100, -100, 100, 100, 50);
+
+        assertFalse(buffer.isOccluded(-1, -1, 0.5f, 1, 1, 100));
+    }
+
+    @Test
+    public void partiallyCoveredPixelsAreNotWritten() {
+        // right edge at ndc x = 0.01: the pixel it goes through is only partially covered
+        wall(-100, -100, 0.5f, 100, 50);
+
+        assertEquals(50f, buffer.depth(31, 16), 1e-3f);
+        assertEquals(Float.POSITIVE_INFINITY, buffer.depth(32, 16), 0);
+    }
+
+    @Test
+    public void depthIsTheFurthestPointOfThePixel() {
+        // floor below the camera, going away from it
+        float[] corners = {
+                -100, -10, 10,
+                100, -10, 10,
+                100, -10, 1000,
+                -100, -10, 1000};
+        buffer.addQuad(corners, 0);
+
+        for (int y = 0; y < 16; y++) {
+            float depth = buffer.depth(32, y);
+            if (depth == Float.POSITIVE_INFINITY)
+                continue;
+
+            // the top edge of the pixel row, the furthest part of the floor it sees
+            float ndcTop = (y + 1) / 16f - 1f;
+            assertEquals(-10f / ndcTop, depth, depth * 1e-4f);
+        }
+    }
+
+    @Test
+    public void trianglesCrossingNearPlaneAreIgnored() {
+        float[] corners = {
+                -100, -100, 0.5f,
+                100, -100, 0.5f,
+                100, 100, 50,
+                -100, 100, 50};
+        buffer.addQuad(corners, 0);
+        buffer.buildHiZ();
+
+        assertEquals(0, buffer.rasterizedTriangles);
+        assertFalse(buffer.isOccluded(-10, -10, 100, 10, 10, 120));
+    }
+}